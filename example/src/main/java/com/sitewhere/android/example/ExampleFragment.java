@@ -47,12 +47,10 @@ import com.google.android.gms.maps.MapFragment;
 import com.google.android.gms.maps.OnMapReadyCallback;
 import com.google.android.gms.maps.model.CameraPosition;
 import com.google.android.gms.maps.model.LatLng;
+import com.sitewhere.androidsdk.MeasurementBatch;
 import com.sitewhere.androidsdk.SiteWhereMessageClient;
 import com.sitewhere.androidsdk.messaging.SiteWhereMessagingException;
 
-import java.util.Date;
-import java.util.HashMap;
-import java.util.Map;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
@@ -82,6 +80,11 @@ public class ExampleFragment extends MapFragment implements LocationListener, Se
 
     private static final int PLAY_SERVICES_RESOLUTION_REQUEST = 9000;
 
+    /**
+     * Measurement names for rotation vector components
+     */
+    private static final String[] ROTATION_MEASUREMENTS = {"x.rotation", "y.rotation", "z.rotation"};
+
     /**
      * Text views for lat, long, altitude
      */
@@ -121,6 +124,11 @@ public class ExampleFragment extends MapFragment implements LocationListener, Se
      */
     private float[] lastRotation;
 
+    /**
+     * Reused batch for rotation measurements
+     */
+    private MeasurementBatch rotationBatch;
+
     /**
      * Used to schedule a recurring report to SiteWhere for location
      */
@@ -336,11 +344,15 @@ public class ExampleFragment extends MapFragment implements LocationListener, Se
                         }
                     });
                 }
-                Map<String, Double> measurements = new HashMap<>();
-                measurements.put("x.rotation", new Double(lastRotation[0]));
-                measurements.put("y.rotation", new Double(lastRotation[1]));
-                measurements.put("z.rotation", new Double(lastRotation[2]));
-                messageClient.sendDeviceMeasurements(messageClient.getUniqueDeviceId(), measurements, new Date());
+                if (rotationBatch == null) {
+                    rotationBatch = new MeasurementBatch(messageClient.getUniqueDeviceId(), ROTATION_MEASUREMENTS);
+                }
+                rotationBatch.clear();
+                long now = System.currentTimeMillis();
+                for (int i = 0; i < ROTATION_MEASUREMENTS.length; i++) {
+                    rotationBatch.add(i, lastRotation[i], now);
+                }
+                messageClient.sendDeviceMeasurements(rotationBatch);
             }
         } catch (Throwable e) {
             Log.e(TAG, "Unable to send location to SiteWhere.", e);
@@ -22,23 +22,19 @@ import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
 
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
-
+import com.sitewhere.androidsdk.CustomCommandRegistry;
+import com.sitewhere.androidsdk.DeviceEventDecoder;
 import com.sitewhere.androidsdk.SiteWhereMessageClient;
 import com.sitewhere.androidsdk.SiteWhereMessageClient.SiteWhereMessageClientCallback;
+import com.sitewhere.androidsdk.logging.SiteWhereLog;
 import com.sitewhere.androidsdk.messaging.SiteWhereMessagingException;
+import com.sitewhere.androidsdk.messaging.SystemCommand;
 import com.sitewhere.androidsdk.mqtt.preferences.IMqttServicePreferences;
 import com.sitewhere.androidsdk.preferences.IConnectivityPreferences;
 import com.sitewhere.androidsdk.mqtt.preferences.MqttServicePreferences;
-import com.sitewhere.communication.protobuf.proto.SiteWhere.Device.DeviceStreamAck;
-import com.sitewhere.communication.protobuf.proto.SiteWhere.Device.Header;
-import com.sitewhere.communication.protobuf.proto.SiteWhere.Device.RegistrationAck;
 import com.sitewhere.android.Android;
 import com.sitewhere.rest.model.device.event.DeviceMeasurement;
 
-import java.io.ByteArrayInputStream;
-import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -102,6 +98,51 @@ public class MainActivity extends AppCompatActivity implements IConnectivityWiza
 
         messageClient = new SiteWhereMessageClient(getApplicationContext());
 
+        // Queue events in the service so sensor reporting never waits on the broker.
+        messageClient.setAsynchronousSend(true);
+
+        // Receive system commands decoded by the service.
+        messageClient.setSystemCommandListener(new SiteWhereMessageClient.SystemCommandListener() {
+
+            @Override
+            public void onSystemCommand(SystemCommand command) {
+                MainActivity.this.onSystemCommand(command);
+            }
+        });
+
+        // Receive event messages as model objects.
+        messageClient.setEventListener(new DeviceEventDecoder.ListenerAdapter() {
+
+            @Override
+            public void onMeasurement(String topic, DeviceMeasurement measurement) {
+                SiteWhereLog.d(TAG, "Received measurement %s: %s", measurement.getName(), measurement.getValue());
+            }
+        });
+
+        // Decode 'changeBackground' commands with the generated protobuf classes.
+        messageClient.getCommandRegistry().register(Android.Spec_galaxytab3.Command.CHANGEBACKGROUND,
+                Android.Spec_galaxytab3.changeBackground.parser(),
+                new CustomCommandRegistry.Handler<Android.Spec_galaxytab3.changeBackground>() {
+
+                    @Override
+                    public void onCommand(CustomCommandRegistry.Header header,
+                                          final Android.Spec_galaxytab3.changeBackground command) {
+                        runOnUiThread(new Runnable() {
+                            @Override
+                            public void run() {
+                                getWindow().getDecorView().setBackgroundColor(Color.parseColor(command.getColor()));
+                            }
+                        });
+                        try {
+                            messageClient.sendAck(messageClient.getUniqueDeviceId(), header.getOriginator(),
+                                    "Updated background color.");
+                            Log.i(TAG, "Sent reponse to 'changeBackground' command.");
+                        } catch (SiteWhereMessagingException e) {
+                            Log.e(TAG, "Messaging exception processing custom command.", e);
+                        }
+                    }
+                });
+
         // Verify that SiteWhere API location has been specified.
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
         String hostname = prefs.getString(IConnectivityPreferences.PREF_SITEWHERE_API_HOSTNAME, null);
@@ -286,29 +327,34 @@ public class MainActivity extends AppCompatActivity implements IConnectivityWiza
      */
     @Override
     public void onReceivedSystemCommand(byte[] payload) {
-        ByteArrayInputStream stream = new ByteArrayInputStream(payload);
-        try {
-            Header header = Header.parseDelimitedFrom(stream);
-            switch (header.getCommand()) {
-                case REGISTRATION_ACK: {
-                    RegistrationAck ack = RegistrationAck.parseDelimitedFrom(stream);
-                    handleRegistrationAck(header, ack);
-                    break;
-                }
-                case DEVICE_STREAM_ACK: {
-                    DeviceStreamAck ack = DeviceStreamAck.parseDelimitedFrom(stream);
-                    handleDeviceStreamAck(header, ack);
-                    break;
-                }
-                case RECEIVE_DEVICE_STREAM_DATA: {
+        // Decoded commands are delivered to onSystemCommand().
+    }
+
+    /**
+     * Handle a system command decoded by the service.
+     *
+     * @param command
+     */
+    protected void onSystemCommand(SystemCommand command) {
+        if (command.getCommand() == null) {
+            Log.e(TAG, "Unable to process system command.");
+            return;
+        }
+        switch (command.getCommand()) {
+            case REGISTRATION_ACK: {
+                handleRegistrationAck(command);
+                break;
+            }
+            case DEVICE_STREAM_ACK: {
+                handleDeviceStreamAck(command);
+                break;
+            }
+            case RECEIVE_DEVICE_STREAM_DATA: {
 //                    // TODO
 //                    Sitewhere.Model.DeviceStreamData chunk = Sitewhere.Model.DeviceStreamData.parseDelimitedFrom(stream);
 //                    handleReceivedDeviceStreamData(header, chunk);
-                    break;
-                }
+                break;
             }
-        } catch (IOException e) {
-            Log.e(TAG, "Unable to process system command.", e);
         }
     }
 
@@ -319,25 +365,14 @@ public class MainActivity extends AppCompatActivity implements IConnectivityWiza
      */
     @Override
     public void onReceivedEventMessage(String topic, byte[] payload) {
-        Log.d(TAG, "Received event message " + new String(payload));
-        try {
-            JsonNode eventNode = new ObjectMapper().readTree(payload);
-            String eventType = eventNode.get("eventType").textValue();
-            if ("Measurements".equals(eventType)) {
-                DeviceMeasurement dm = new ObjectMapper().treeToValue(eventNode, DeviceMeasurement.class);
-                StringBuilder sb = new StringBuilder();
-                sb.append(dm.getName()).append(": ").append(dm.getValue());
-                Log.d(TAG, "Received measurements " + sb.toString());
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        // Decoded events are delivered to the listener registered in onCreate().
+        SiteWhereLog.d(TAG, "Received %d byte event message on %s.", payload.length, topic);
     }
 
-    private void handleRegistrationAck(Header header, RegistrationAck ack) {
-        switch (ack.getState()) {
+    private void handleRegistrationAck(SystemCommand ack) {
+        switch (ack.getRegistrationState()) {
             case REGISTRATION_ERROR: {
-                Log.d(TAG, "Error registering device. " + ack.getErrorType().name() + ": " + ack.getErrorMessage());
+                Log.d(TAG, "Error registering device. " + ack.getRegistrationError().name() + ": " + ack.getErrorMessage());
                 return;
             }
             case ALREADY_REGISTERED: {
@@ -362,7 +397,7 @@ public class MainActivity extends AppCompatActivity implements IConnectivityWiza
         }
     }
 
-    public void handleDeviceStreamAck(Header header, DeviceStreamAck ack) {
+    public void handleDeviceStreamAck(SystemCommand ack) {
     }
 
 //    public void handleReceivedDeviceStreamData(Header header, Sitewhere.Model.DeviceStreamData data) {
@@ -374,29 +409,8 @@ public class MainActivity extends AppCompatActivity implements IConnectivityWiza
      * @see SiteWhereMessageClientCallback
      */
     public void onReceivedCustomCommand(byte[] payload) {
-//        Log.d(TAG, "Received custom command.");
-//        ByteArrayInputStream stream = new ByteArrayInputStream(payload);
-//        try {
-//            Android.Spec_galaxytab3._Header header = Android.Spec_galaxytab3._Header.parseDelimitedFrom(stream);
-//            switch (header.getCommand()) {
-//                case CHANGEBACKGROUND: {
-//                    Android.Spec_galaxytab3.changeBackground cb = Android.Spec_galaxytab3.changeBackground.parseDelimitedFrom(stream);
-//                    runOnUiThread(new Runnable() {
-//                        @Override
-//                        public void run() {
-//                            getWindow().getDecorView().setBackgroundColor(Color.parseColor(cb.getColor()));
-//                        }
-//                    });
-//                    messageClient.sendAck(messageClient.getUniqueDeviceId(), header.getOriginator(), "Updated background color.");
-//                    Log.i(TAG, "Sent reponse to 'changeBackground' command.");
-//                    break;
-//                }
-//            }
-//        } catch (IOException e) {
-//            Log.e(TAG, "IO exception processing custom command.", e);
-//        } catch (SiteWhereMessagingException e) {
-//            Log.e(TAG, "Messaging exception processing custom command.", e);
-//        }
+        // Protobuf commands are decoded by the handlers registered in onCreate().
+        Log.d(TAG, "Received custom command.");
     }
 
     public void changeBackground(String color) {
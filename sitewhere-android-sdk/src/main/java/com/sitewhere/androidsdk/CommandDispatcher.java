@@ -0,0 +1,263 @@
+package com.sitewhere.androidsdk;
+
+import com.sitewhere.rest.model.device.event.DeviceEventOriginator;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Invokes command methods on a callback object by command name. The public methods of the
+ * callback class are scanned once and grouped by name, so dispatching a command is a map lookup
+ * and a check of parameter types rather than a reflective method search. A method whose last
+ * parameter is a {@link DeviceEventOriginator} is preferred, and is passed the originator of the
+ * command. A method whose parameter types exactly match the classes of the arguments is chosen
+ * first. Otherwise the most specific method that accepts the arguments is chosen, with ties
+ * broken by signature so the choice does not depend on the order methods are reported in.
+ * Tables are cached per class and shared between clients.
+ * <p>
+ * Methods are invoked through cached {@link Method} objects. Method handles would avoid the
+ * remaining reflective call but are not available before API 26.
+ */
+public class CommandDispatcher {
+
+    /** Dispatchers by callback class */
+    private static final Map<Class<?>, CommandDispatcher> DISPATCHERS = new ConcurrentHashMap<>();
+
+    /** Wrapper types for primitive parameter types */
+    private static final Map<Class<?>, Class<?>> WRAPPERS = new HashMap<>();
+
+    static {
+        WRAPPERS.put(boolean.class, Boolean.class);
+        WRAPPERS.put(byte.class, Byte.class);
+        WRAPPERS.put(char.class, Character.class);
+        WRAPPERS.put(short.class, Short.class);
+        WRAPPERS.put(int.class, Integer.class);
+        WRAPPERS.put(long.class, Long.class);
+        WRAPPERS.put(float.class, Float.class);
+        WRAPPERS.put(double.class, Double.class);
+    }
+
+    /** Orders methods by signature so ties are broken the same way on every device */
+    private static final Comparator<Invoker> BY_SIGNATURE = new Comparator<Invoker>() {
+
+        @Override
+        public int compare(Invoker first, Invoker second) {
+            return first.method.toGenericString().compareTo(second.method.toGenericString());
+        }
+    };
+
+    /** Candidate methods by command name */
+    private final Map<String, Invoker[]> invokers = new HashMap<>();
+
+    protected CommandDispatcher(Class<?> type) {
+        Map<String, List<Invoker>> byName = new HashMap<>();
+        for (Method method : type.getMethods()) {
+            if (Modifier.isStatic(method.getModifiers()) || method.isBridge()
+                    || (method.getDeclaringClass() == Object.class)) {
+                continue;
+            }
+            List<Invoker> list = byName.get(method.getName());
+            if (list == null) {
+                list = new ArrayList<>();
+                byName.put(method.getName(), list);
+            }
+            list.add(new Invoker(method));
+        }
+        for (Map.Entry<String, List<Invoker>> entry : byName.entrySet()) {
+            List<Invoker> list = entry.getValue();
+            // Methods taking an originator are tried first, each group most specific first.
+            List<Invoker> withOriginator = new ArrayList<>();
+            List<Invoker> withoutOriginator = new ArrayList<>();
+            for (Invoker invoker : list) {
+                (invoker.takesOriginator ? withOriginator : withoutOriginator).add(invoker);
+            }
+            List<Invoker> ordered = orderBySpecificity(withOriginator);
+            ordered.addAll(orderBySpecificity(withoutOriginator));
+            invokers.put(entry.getKey(), ordered.toArray(new Invoker[ordered.size()]));
+        }
+    }
+
+    /**
+     * Get the dispatcher for a callback class, building it on first use.
+     *
+     * @param type
+     * @return
+     */
+    public static CommandDispatcher forClass(Class<?> type) {
+        CommandDispatcher dispatcher = DISPATCHERS.get(type);
+        if (dispatcher == null) {
+            dispatcher = new CommandDispatcher(type);
+            DISPATCHERS.put(type, dispatcher);
+        }
+        return dispatcher;
+    }
+
+    /**
+     * Invoke the method for a command.
+     *
+     * @param target callback object
+     * @param commandName
+     * @param parameters
+     * @param originator
+     * @return false if no method matches the command name and parameters
+     * @throws IllegalAccessException
+     * @throws InvocationTargetException
+     */
+    public boolean dispatch(Object target, String commandName, Object[] parameters, DeviceEventOriginator originator)
+            throws IllegalAccessException, InvocationTargetException {
+        Invoker[] candidates = invokers.get(commandName);
+        if (candidates == null) {
+            return false;
+        }
+        for (Invoker invoker : candidates) {
+            if (invoker.matchesExactly(parameters)) {
+                invoker.invoke(target, parameters, originator);
+                return true;
+            }
+        }
+        for (Invoker invoker : candidates) {
+            if (invoker.accepts(parameters)) {
+                invoker.invoke(target, parameters, originator);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Indicates whether any method handles the given command name.
+     *
+     * @param commandName
+     * @return
+     */
+    public boolean handles(String commandName) {
+        return invokers.containsKey(commandName);
+    }
+
+    /**
+     * Order methods so each comes before any method it is more specific than. Among methods that
+     * are not more specific than each other, the order is by signature.
+     *
+     * @param group
+     * @return
+     */
+    private static List<Invoker> orderBySpecificity(List<Invoker> group) {
+        List<Invoker> remaining = new ArrayList<>(group);
+        Collections.sort(remaining, BY_SIGNATURE);
+        List<Invoker> ordered = new ArrayList<>(remaining.size());
+        while (!remaining.isEmpty()) {
+            int next = 0;
+            while (hasMoreSpecific(remaining.get(next), remaining)) {
+                next++;
+            }
+            ordered.add(remaining.remove(next));
+        }
+        return ordered;
+    }
+
+    private static boolean hasMoreSpecific(Invoker invoker, List<Invoker> others) {
+        for (Invoker other : others) {
+            if (other.isMoreSpecificThan(invoker)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Cached method along with the information needed to match parameters.
+     */
+    private static class Invoker {
+
+        /** Method to call */
+        final Method method;
+
+        /** Parameter types with primitives replaced by wrappers (excluding originator) */
+        final Class<?>[] types;
+
+        /** Indicates the last parameter receives the originator */
+        final boolean takesOriginator;
+
+        Invoker(Method method) {
+            this.method = method;
+            Class<?>[] declared = method.getParameterTypes();
+            this.takesOriginator = (declared.length > 0)
+                    && (declared[declared.length - 1] == DeviceEventOriginator.class);
+            this.types = new Class<?>[takesOriginator ? declared.length - 1 : declared.length];
+            for (int i = 0; i < types.length; i++) {
+                Class<?> wrapper = WRAPPERS.get(declared[i]);
+                types[i] = (wrapper != null) ? wrapper : declared[i];
+            }
+            try {
+                method.setAccessible(true);
+            } catch (SecurityException e) {
+                // Public methods of public classes can still be called.
+            }
+        }
+
+        /**
+         * Indicates every argument is non-null and of exactly the parameter type.
+         */
+        boolean matchesExactly(Object[] parameters) {
+            if (parameters.length != types.length) {
+                return false;
+            }
+            for (int i = 0; i < types.length; i++) {
+                if ((parameters[i] == null) || (parameters[i].getClass() != types[i])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Indicates each parameter type of this method can be passed where the other method
+         * expects it, and at least one differs.
+         */
+        boolean isMoreSpecificThan(Invoker other) {
+            if (other.types.length != types.length) {
+                return false;
+            }
+            boolean narrower = false;
+            for (int i = 0; i < types.length; i++) {
+                if (!other.types[i].isAssignableFrom(types[i])) {
+                    return false;
+                }
+                narrower |= (other.types[i] != types[i]);
+            }
+            return narrower;
+        }
+
+        boolean accepts(Object[] parameters) {
+            if (parameters.length != types.length) {
+                return false;
+            }
+            for (int i = 0; i < types.length; i++) {
+                if ((parameters[i] != null) && !types[i].isInstance(parameters[i])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        void invoke(Object target, Object[] parameters, DeviceEventOriginator originator)
+                throws IllegalAccessException, InvocationTargetException {
+            if (!takesOriginator) {
+                method.invoke(target, parameters);
+                return;
+            }
+            Object[] withOriginator = new Object[parameters.length + 1];
+            System.arraycopy(parameters, 0, withOriginator, 0, parameters.length);
+            withOriginator[parameters.length] = originator;
+            method.invoke(target, withOriginator);
+        }
+    }
+}
@@ -0,0 +1,284 @@
+package com.sitewhere.androidsdk;
+
+import android.util.SparseArray;
+
+import com.google.protobuf.Internal;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Parser;
+
+import java.nio.charset.Charset;
+
+/**
+ * Decodes custom commands sent in the protobuf format SiteWhere generates for a device type and
+ * passes them to typed handlers. Each payload is a length-delimited <code>_Header</code> followed
+ * by a length-delimited message for the command. Register the generated lite parser for each
+ * command message along with the value of the spec's <code>Command</code> enum:
+ *
+ * <pre>
+ * registry.register(Spec_galaxytab3.Command.CHANGEBACKGROUND, Spec_galaxytab3.changeBackground.parser(),
+ *         new CustomCommandRegistry.Handler&lt;Spec_galaxytab3.changeBackground&gt;() { ... });
+ * </pre>
+ *
+ * The header is read directly from the payload, so the generated header class is not needed.
+ */
+public class CustomCommandRegistry {
+
+    /** Used to decode header strings */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** Header field holding the command enum */
+    private static final int HEADER_COMMAND = 1;
+
+    /** Header field holding the originator */
+    private static final int HEADER_ORIGINATOR = 2;
+
+    /** Header field holding the nested device path */
+    private static final int HEADER_NESTED_PATH = 3;
+
+    /** Header field holding the nested device spec */
+    private static final int HEADER_NESTED_SPEC = 4;
+
+    /** Registered commands by command number */
+    private final SparseArray<Registration<?>> registrations = new SparseArray<>();
+
+    /**
+     * Register the parser and handler for a command.
+     *
+     * @param command value from the generated spec's <code>Command</code> enum
+     * @param parser parser for the command message
+     * @param handler
+     * @return
+     */
+    public <T> CustomCommandRegistry register(Internal.EnumLite command, Parser<T> parser, Handler<T> handler) {
+        return register(command.getNumber(), parser, handler);
+    }
+
+    /**
+     * Register the parser and handler for a command number.
+     *
+     * @param command
+     * @param parser
+     * @param handler
+     * @return
+     */
+    public synchronized <T> CustomCommandRegistry register(int command, Parser<T> parser, Handler<T> handler) {
+        registrations.put(command, new Registration<T>(parser, handler));
+        return this;
+    }
+
+    /**
+     * Remove the handler for a command.
+     *
+     * @param command
+     */
+    public synchronized void unregister(int command) {
+        registrations.remove(command);
+    }
+
+    /**
+     * Indicates whether any command has been registered.
+     *
+     * @return
+     */
+    public synchronized boolean isEmpty() {
+        return registrations.size() == 0;
+    }
+
+    /**
+     * Decode a custom command payload and pass it to the registered handler.
+     *
+     * @param payload
+     * @return false if the payload is not a valid protobuf command or no handler is registered for it
+     */
+    public boolean dispatch(byte[] payload) {
+        int[] cursor = { 0 };
+        try {
+            int headerLength = readVarint(payload, cursor, payload.length);
+            if ((headerLength <= 0) || (headerLength > payload.length - cursor[0])) {
+                return false;
+            }
+            int headerEnd = cursor[0] + headerLength;
+            Header header = readHeader(payload, cursor, headerEnd);
+            if (header == null) {
+                return false;
+            }
+            Registration<?> registration;
+            synchronized (this) {
+                registration = registrations.get(header.getCommand());
+            }
+            if (registration == null) {
+                return false;
+            }
+            int bodyLength = readVarint(payload, cursor, payload.length);
+            if ((bodyLength < 0) || (bodyLength > payload.length - cursor[0])) {
+                return false;
+            }
+            return registration.dispatch(header, payload, cursor[0], bodyLength);
+        } catch (InvalidProtocolBufferException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Read header fields. Returns null if the command field is missing.
+     */
+    private static Header readHeader(byte[] payload, int[] cursor, int end) throws InvalidProtocolBufferException {
+        int command = -1;
+        String originator = null;
+        String nestedPath = null;
+        String nestedSpec = null;
+        while (cursor[0] < end) {
+            int tag = readVarint(payload, cursor, end);
+            int field = tag >>> 3;
+            switch (tag & 0x07) {
+            case 0: {
+                int value = readVarint(payload, cursor, end);
+                if (field == HEADER_COMMAND) {
+                    command = value;
+                }
+                break;
+            }
+            case 1: {
+                skip(cursor, 8, end);
+                break;
+            }
+            case 2: {
+                int length = readVarint(payload, cursor, end);
+                if ((length < 0) || (length > end - cursor[0])) {
+                    throw new InvalidProtocolBufferException("Truncated header field.");
+                }
+                String value = new String(payload, cursor[0], length, UTF8);
+                cursor[0] += length;
+                if (field == HEADER_ORIGINATOR) {
+                    originator = value;
+                } else if (field == HEADER_NESTED_PATH) {
+                    nestedPath = value;
+                } else if (field == HEADER_NESTED_SPEC) {
+                    nestedSpec = value;
+                }
+                break;
+            }
+            case 5: {
+                skip(cursor, 4, end);
+                break;
+            }
+            default:
+                throw new InvalidProtocolBufferException("Unexpected wire type in header.");
+            }
+        }
+        cursor[0] = end;
+        return (command < 0) ? null : new Header(command, originator, nestedPath, nestedSpec);
+    }
+
+    private static void skip(int[] cursor, int length, int end) throws InvalidProtocolBufferException {
+        if (length > end - cursor[0]) {
+            throw new InvalidProtocolBufferException("Truncated header field.");
+        }
+        cursor[0] += length;
+    }
+
+    private static int readVarint(byte[] payload, int[] cursor, int end) throws InvalidProtocolBufferException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            if (cursor[0] >= end) {
+                throw new InvalidProtocolBufferException("Truncated varint.");
+            }
+            byte current = payload[cursor[0]++];
+            value |= (current & 0x7F) << shift;
+            if ((current & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new InvalidProtocolBufferException("Malformed varint.");
+    }
+
+    /**
+     * Receives decoded commands of one type.
+     *
+     * @param <T> generated command message class
+     */
+    public interface Handler<T> {
+
+        /**
+         * Called on the binder thread when a command is received.
+         *
+         * @param header
+         * @param command
+         */
+        public void onCommand(Header header, T command);
+    }
+
+    /**
+     * Fields common to all custom commands.
+     */
+    public static class Header {
+
+        /** Command number from the spec's command enum */
+        private final int command;
+
+        /** Originating event id, used when acknowledging the command */
+        private final String originator;
+
+        /** Path of nested device the command targets */
+        private final String nestedPath;
+
+        /** Spec of nested device the command targets */
+        private final String nestedSpec;
+
+        public Header(int command, String originator, String nestedPath, String nestedSpec) {
+            this.command = command;
+            this.originator = originator;
+            this.nestedPath = nestedPath;
+            this.nestedSpec = nestedSpec;
+        }
+
+        public int getCommand() {
+            return command;
+        }
+
+        public String getOriginator() {
+            return originator;
+        }
+
+        public String getNestedPath() {
+            return nestedPath;
+        }
+
+        public String getNestedSpec() {
+            return nestedSpec;
+        }
+    }
+
+    /**
+     * Parser and handler registered for a command.
+     */
+    private static class Registration<T> {
+
+        /** Parses the command message */
+        final Parser<T> parser;
+
+        /** Receives the parsed message */
+        final Handler<T> handler;
+
+        Registration(Parser<T> parser, Handler<T> handler) {
+            this.parser = parser;
+            this.handler = handler;
+        }
+
+        /**
+         * Parse the command and pass it to the handler.
+         *
+         * @return false if the command could not be parsed
+         */
+        boolean dispatch(Header header, byte[] payload, int offset, int length) throws InvalidProtocolBufferException {
+            T command;
+            try {
+                command = parser.parseFrom(payload, offset, length);
+            } catch (RuntimeException e) {
+                return false;
+            }
+            handler.onCommand(header, command);
+            return true;
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package com.sitewhere.androidsdk;
+
+import android.support.annotation.Nullable;
+
+import com.sitewhere.androidsdk.messaging.EventFrames;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Date;
+
+/**
+ * Collects several events for a single device so they can be handed to the messaging service
+ * in one call. Each event is still encoded as a standalone header and payload, since SiteWhere
+ * decodes one event per inbound message.
+ */
+public class DeviceEventBatch {
+
+    /** Token for device that owns the events */
+    private final String deviceToken;
+
+    /** Originator included in event headers */
+    private final String originator;
+
+    /** Length-prefixed encoded events */
+    private final ByteArrayOutputStream frames = new ByteArrayOutputStream();
+
+    /** Encodes common event types without builders */
+    private final DeviceEventEncoder encoder = new DeviceEventEncoder();
+
+    /** Number of events in the batch */
+    private int size;
+
+    public DeviceEventBatch(String deviceToken) {
+        this(deviceToken, "");
+    }
+
+    public DeviceEventBatch(String deviceToken, String originator) {
+        this.deviceToken = deviceToken;
+        this.originator = originator;
+    }
+
+    /**
+     * Add a measurement event to the batch.
+     *
+     * @param measurementName
+     * @param measurementValue
+     * @param eventDate
+     * @return
+     */
+    public DeviceEventBatch addMeasurement(String measurementName, double measurementValue, @Nullable Date eventDate) {
+        encoder.reset().writeMeasurement(deviceToken, originator, measurementName, measurementValue,
+                eventTimeOrNow(eventDate));
+        addEncoded();
+        return this;
+    }
+
+    /**
+     * Add a location event to the batch.
+     *
+     * @param latitude
+     * @param longitude
+     * @param elevation
+     * @param eventDate
+     * @return
+     */
+    public DeviceEventBatch addLocation(double latitude, double longitude, double elevation, @Nullable Date eventDate) {
+        encoder.reset().writeLocation(deviceToken, originator, latitude, longitude, elevation,
+                eventTimeOrNow(eventDate));
+        addEncoded();
+        return this;
+    }
+
+    /**
+     * Add an alert event to the batch.
+     *
+     * @param alertType
+     * @param message
+     * @param eventDate
+     * @return
+     */
+    public DeviceEventBatch addAlert(String alertType, String message, @Nullable Date eventDate) {
+        encoder.reset().writeAlert(deviceToken, originator, alertType, message, eventTimeOrNow(eventDate));
+        addEncoded();
+        return this;
+    }
+
+    /**
+     * Append the event held by the encoder as a frame.
+     */
+    private void addEncoded() {
+        EventFrames.writeFrame(frames, encoder.getBuffer(), 0, encoder.size());
+        size++;
+    }
+
+    /**
+     * Remove all events so the batch can be reused.
+     */
+    public void clear() {
+        frames.reset();
+        size = 0;
+    }
+
+    /**
+     * Get the framed payload for all events in the batch.
+     *
+     * @return
+     */
+    public byte[] toByteArray() {
+        return frames.toByteArray();
+    }
+
+    public String getDeviceToken() {
+        return deviceToken;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    private static long eventTimeOrNow(@Nullable Date eventDate) {
+        return (eventDate != null) ? eventDate.getTime() : System.currentTimeMillis();
+    }
+}
@@ -0,0 +1,178 @@
+package com.sitewhere.androidsdk;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.sitewhere.rest.model.device.event.DeviceAlert;
+import com.sitewhere.rest.model.device.event.DeviceCommandInvocation;
+import com.sitewhere.rest.model.device.event.DeviceCommandResponse;
+import com.sitewhere.rest.model.device.event.DeviceLocation;
+import com.sitewhere.rest.model.device.event.DeviceMeasurement;
+
+import java.io.IOException;
+
+/**
+ * Decodes JSON event messages received on subscribed topics into the SiteWhere model classes
+ * and passes them to typed callbacks. The <code>eventType</code> field is found with a streaming
+ * parser that stops as soon as it is read, and the payload is then bound directly to the
+ * matching class without building a tree. The mapper and readers are created once and shared,
+ * since Jackson readers are immutable and thread safe.
+ */
+public class DeviceEventDecoder {
+
+    /** Name of field holding the event type */
+    private static final String EVENT_TYPE = "eventType";
+
+    /** Shared mapper that tolerates fields the model does not know about */
+    private static final ObjectMapper MAPPER = new ObjectMapper()
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+    /** Creates streaming parsers */
+    private static final JsonFactory FACTORY = MAPPER.getFactory();
+
+    /** Reader for measurements */
+    private static final ObjectReader MEASUREMENT_READER = MAPPER.readerFor(DeviceMeasurement.class);
+
+    /** Reader for locations */
+    private static final ObjectReader LOCATION_READER = MAPPER.readerFor(DeviceLocation.class);
+
+    /** Reader for alerts */
+    private static final ObjectReader ALERT_READER = MAPPER.readerFor(DeviceAlert.class);
+
+    /** Reader for command invocations */
+    private static final ObjectReader INVOCATION_READER = MAPPER.readerFor(DeviceCommandInvocation.class);
+
+    /** Reader for command responses */
+    private static final ObjectReader RESPONSE_READER = MAPPER.readerFor(DeviceCommandResponse.class);
+
+    /**
+     * Decode an event message and pass it to the listener.
+     *
+     * @param topic
+     * @param payload
+     * @param listener
+     * @throws IOException if the payload is not valid JSON or does not match the model
+     */
+    public void decode(String topic, byte[] payload, Listener listener) throws IOException {
+        String eventType = readEventType(payload);
+        if (eventType == null) {
+            listener.onUnknownEvent(topic, null, payload);
+            return;
+        }
+        switch (eventType) {
+        case "Measurement":
+        case "Measurements": {
+            DeviceMeasurement measurement = MEASUREMENT_READER.readValue(payload);
+            listener.onMeasurement(topic, measurement);
+            break;
+        }
+        case "Location": {
+            DeviceLocation location = LOCATION_READER.readValue(payload);
+            listener.onLocation(topic, location);
+            break;
+        }
+        case "Alert": {
+            DeviceAlert alert = ALERT_READER.readValue(payload);
+            listener.onAlert(topic, alert);
+            break;
+        }
+        case "CommandInvocation": {
+            DeviceCommandInvocation invocation = INVOCATION_READER.readValue(payload);
+            listener.onCommandInvocation(topic, invocation);
+            break;
+        }
+        case "CommandResponse": {
+            DeviceCommandResponse response = RESPONSE_READER.readValue(payload);
+            listener.onCommandResponse(topic, response);
+            break;
+        }
+        default:
+            listener.onUnknownEvent(topic, eventType, payload);
+        }
+    }
+
+    /**
+     * Find the top-level event type without reading the rest of the message.
+     *
+     * @param payload
+     * @return event type or null if not present
+     * @throws IOException
+     */
+    protected String readEventType(byte[] payload) throws IOException {
+        JsonParser parser = FACTORY.createParser(payload);
+        try {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                return null;
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                if (EVENT_TYPE.equals(field)) {
+                    return (value == JsonToken.VALUE_STRING) ? parser.getText() : null;
+                }
+                parser.skipChildren();
+            }
+            return null;
+        } finally {
+            parser.close();
+        }
+    }
+
+    /**
+     * Receives decoded events.
+     */
+    public interface Listener {
+
+        public void onMeasurement(String topic, DeviceMeasurement measurement);
+
+        public void onLocation(String topic, DeviceLocation location);
+
+        public void onAlert(String topic, DeviceAlert alert);
+
+        public void onCommandInvocation(String topic, DeviceCommandInvocation invocation);
+
+        public void onCommandResponse(String topic, DeviceCommandResponse response);
+
+        /**
+         * Called for events of types not decoded by this class.
+         *
+         * @param topic
+         * @param eventType type from message or null if missing
+         * @param payload
+         */
+        public void onUnknownEvent(String topic, String eventType, byte[] payload);
+    }
+
+    /**
+     * Listener with empty implementations, so only the events of interest need be overridden.
+     */
+    public static class ListenerAdapter implements Listener {
+
+        @Override
+        public void onMeasurement(String topic, DeviceMeasurement measurement) {
+        }
+
+        @Override
+        public void onLocation(String topic, DeviceLocation location) {
+        }
+
+        @Override
+        public void onAlert(String topic, DeviceAlert alert) {
+        }
+
+        @Override
+        public void onCommandInvocation(String topic, DeviceCommandInvocation invocation) {
+        }
+
+        @Override
+        public void onCommandResponse(String topic, DeviceCommandResponse response) {
+        }
+
+        @Override
+        public void onUnknownEvent(String topic, String eventType, byte[] payload) {
+        }
+    }
+}
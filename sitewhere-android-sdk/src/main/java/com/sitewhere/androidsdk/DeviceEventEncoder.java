@@ -0,0 +1,471 @@
+package com.sitewhere.androidsdk;
+
+import com.sitewhere.communication.protobuf.proto.SiteWhere.DeviceEvent;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.DeviceEvent.Command;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.GOptionalDouble;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.GOptionalFixed64;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.GOptionalString;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Writes measurement, location and alert events in protobuf wire format directly into a reusable
+ * buffer. Output is byte-for-byte what the generated builders produce for the same values (a
+ * delimited {@link DeviceEvent.Header} followed by a delimited payload), but no builders,
+ * messages, streams or intermediate arrays are allocated once the buffer has grown to fit.
+ * <p>
+ * Instances are not thread safe.
+ */
+public class DeviceEventEncoder {
+
+    /** Wire type for varints */
+    private static final int WIRETYPE_VARINT = 0;
+
+    /** Wire type for 64-bit fixed values */
+    private static final int WIRETYPE_FIXED64 = 1;
+
+    /** Wire type for length-delimited values */
+    private static final int WIRETYPE_LENGTH_DELIMITED = 2;
+
+    /** Size of a fixed64 field including its single byte tag */
+    private static final int FIXED64_FIELD_SIZE = 9;
+
+    /** Default initial buffer size */
+    private static final int DEFAULT_CAPACITY = 256;
+
+    /** Default number of device tokens whose headers are cached */
+    public static final int DEFAULT_HEADER_CACHE_SIZE = 16;
+
+    /** Number of commands a header can be cached for */
+    private static final int COMMAND_COUNT = Command.values().length;
+
+    private static final int HEADER_COMMAND = tag(DeviceEvent.Header.COMMAND_FIELD_NUMBER, WIRETYPE_VARINT);
+    private static final int HEADER_DEVICE_TOKEN = tag(DeviceEvent.Header.DEVICETOKEN_FIELD_NUMBER, WIRETYPE_LENGTH_DELIMITED);
+    private static final int HEADER_ORIGINATOR = tag(DeviceEvent.Header.ORIGINATOR_FIELD_NUMBER, WIRETYPE_LENGTH_DELIMITED);
+
+    private static final int MEASUREMENT_NAME = tag(DeviceEvent.DeviceMeasurement.MEASUREMENTNAME_FIELD_NUMBER, WIRETYPE_LENGTH_DELIMITED);
+    private static final int MEASUREMENT_VALUE = tag(DeviceEvent.DeviceMeasurement.MEASUREMENTVALUE_FIELD_NUMBER, WIRETYPE_LENGTH_DELIMITED);
+    private static final int MEASUREMENT_EVENT_DATE = tag(DeviceEvent.DeviceMeasurement.EVENTDATE_FIELD_NUMBER, WIRETYPE_LENGTH_DELIMITED);
+
+    private static final int LOCATION_LATITUDE = tag(DeviceEvent.DeviceLocation.LATITUDE_FIELD_NUMBER, WIRETYPE_LENGTH_DELIMITED);
+    private static final int LOCATION_LONGITUDE = tag(DeviceEvent.DeviceLocation.LONGITUDE_FIELD_NUMBER, WIRETYPE_LENGTH_DELIMITED);
+    private static final int LOCATION_ELEVATION = tag(DeviceEvent.DeviceLocation.ELEVATION_FIELD_NUMBER, WIRETYPE_LENGTH_DELIMITED);
+    private static final int LOCATION_EVENT_DATE = tag(DeviceEvent.DeviceLocation.EVENTDATE_FIELD_NUMBER, WIRETYPE_LENGTH_DELIMITED);
+
+    private static final int ALERT_TYPE = tag(DeviceEvent.DeviceAlert.ALERTTYPE_FIELD_NUMBER, WIRETYPE_LENGTH_DELIMITED);
+    private static final int ALERT_MESSAGE = tag(DeviceEvent.DeviceAlert.ALERTMESSAGE_FIELD_NUMBER, WIRETYPE_LENGTH_DELIMITED);
+    private static final int ALERT_EVENT_DATE = tag(DeviceEvent.DeviceAlert.EVENTDATE_FIELD_NUMBER, WIRETYPE_LENGTH_DELIMITED);
+
+    private static final int OPTIONAL_STRING_VALUE = tag(GOptionalString.VALUE_FIELD_NUMBER, WIRETYPE_LENGTH_DELIMITED);
+    private static final int OPTIONAL_DOUBLE_VALUE = tag(GOptionalDouble.VALUE_FIELD_NUMBER, WIRETYPE_FIXED64);
+    private static final int OPTIONAL_FIXED64_VALUE = tag(GOptionalFixed64.VALUE_FIELD_NUMBER, WIRETYPE_FIXED64);
+
+    /** Encoded bytes */
+    private byte[] buffer;
+
+    /** Number of valid bytes in buffer */
+    private int position;
+
+    /** Encoded headers per device token, least recently used first */
+    private final LinkedHashMap<String, CachedHeaders> headers;
+
+    public DeviceEventEncoder() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public DeviceEventEncoder(int initialCapacity) {
+        this(initialCapacity, DEFAULT_HEADER_CACHE_SIZE);
+    }
+
+    /**
+     * Create an encoder.
+     *
+     * @param initialCapacity initial buffer size in bytes
+     * @param headerCacheSize number of device tokens whose encoded headers are kept
+     */
+    public DeviceEventEncoder(int initialCapacity, final int headerCacheSize) {
+        this.buffer = new byte[Math.max(initialCapacity, 16)];
+        this.headers = new LinkedHashMap<String, CachedHeaders>(16, 0.75f, true) {
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedHeaders> eldest) {
+                return size() > headerCacheSize;
+            }
+        };
+    }
+
+    /**
+     * Discard encoded bytes so the encoder can be reused.
+     *
+     * @return
+     */
+    public DeviceEventEncoder reset() {
+        position = 0;
+        return this;
+    }
+
+    /**
+     * Forget all cached headers, for example after reconnecting.
+     *
+     * @return
+     */
+    public DeviceEventEncoder clearHeaders() {
+        headers.clear();
+        return this;
+    }
+
+    /**
+     * Append a measurement event.
+     *
+     * @param deviceToken
+     * @param originator null to leave originator out of the header
+     * @param measurementName
+     * @param measurementValue
+     * @param eventDate epoch milliseconds
+     * @return
+     */
+    public DeviceEventEncoder writeMeasurement(String deviceToken, String originator, String measurementName,
+                                               double measurementValue, long eventDate) {
+        writeHeader(Command.SendMeasurement, deviceToken, originator);
+        int nameLength = utf8Length(measurementName);
+        int size = fieldSize(MEASUREMENT_NAME, optionalStringSize(nameLength))
+                + fieldSize(MEASUREMENT_VALUE, optionalDoubleSize(measurementValue))
+                + fieldSize(MEASUREMENT_EVENT_DATE, optionalFixed64Size(eventDate));
+        ensureCapacity(varintSize(size) + size);
+        writeVarint(size);
+        writeOptionalString(MEASUREMENT_NAME, measurementName, nameLength);
+        writeOptionalDouble(MEASUREMENT_VALUE, measurementValue);
+        writeOptionalFixed64(MEASUREMENT_EVENT_DATE, eventDate);
+        return this;
+    }
+
+    /**
+     * Append a location event.
+     *
+     * @param deviceToken
+     * @param originator null to leave originator out of the header
+     * @param latitude
+     * @param longitude
+     * @param elevation
+     * @param eventDate epoch milliseconds
+     * @return
+     */
+    public DeviceEventEncoder writeLocation(String deviceToken, String originator, double latitude, double longitude,
+                                            double elevation, long eventDate) {
+        writeHeader(Command.SendLocation, deviceToken, originator);
+        int size = fieldSize(LOCATION_LATITUDE, optionalDoubleSize(latitude))
+                + fieldSize(LOCATION_LONGITUDE, optionalDoubleSize(longitude))
+                + fieldSize(LOCATION_ELEVATION, optionalDoubleSize(elevation))
+                + fieldSize(LOCATION_EVENT_DATE, optionalFixed64Size(eventDate));
+        ensureCapacity(varintSize(size) + size);
+        writeVarint(size);
+        writeOptionalDouble(LOCATION_LATITUDE, latitude);
+        writeOptionalDouble(LOCATION_LONGITUDE, longitude);
+        writeOptionalDouble(LOCATION_ELEVATION, elevation);
+        writeOptionalFixed64(LOCATION_EVENT_DATE, eventDate);
+        return this;
+    }
+
+    /**
+     * Append an alert event.
+     *
+     * @param deviceToken
+     * @param originator null to leave originator out of the header
+     * @param alertType
+     * @param message
+     * @param eventDate epoch milliseconds
+     * @return
+     */
+    public DeviceEventEncoder writeAlert(String deviceToken, String originator, String alertType, String message,
+                                         long eventDate) {
+        writeHeader(Command.SendAlert, deviceToken, originator);
+        int typeLength = utf8Length(alertType);
+        int messageLength = utf8Length(message);
+        int size = fieldSize(ALERT_TYPE, optionalStringSize(typeLength))
+                + fieldSize(ALERT_MESSAGE, optionalStringSize(messageLength))
+                + fieldSize(ALERT_EVENT_DATE, optionalFixed64Size(eventDate));
+        ensureCapacity(varintSize(size) + size);
+        writeVarint(size);
+        writeOptionalString(ALERT_TYPE, alertType, typeLength);
+        writeOptionalString(ALERT_MESSAGE, message, messageLength);
+        writeOptionalFixed64(ALERT_EVENT_DATE, eventDate);
+        return this;
+    }
+
+    /**
+     * Get the internal buffer. Only the first {@link #size()} bytes are valid.
+     *
+     * @return
+     */
+    public byte[] getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * Get number of encoded bytes.
+     *
+     * @return
+     */
+    public int size() {
+        return position;
+    }
+
+    /**
+     * Copy the encoded bytes into an array of exactly the right size.
+     *
+     * @return
+     */
+    public byte[] toByteArray() {
+        return Arrays.copyOf(buffer, position);
+    }
+
+    /**
+     * Write a delimited event header. Headers only depend on command, device token and
+     * originator, so each one is encoded once and then copied for later events. Headers are kept
+     * for the most recently used device tokens, so a gateway sending for several devices in turn
+     * does not re-encode them on every switch.
+     *
+     * @param command
+     * @param deviceToken
+     * @param originator
+     */
+    protected void writeHeader(Command command, String deviceToken, String originator) {
+        CachedHeaders cached = headers.get(deviceToken);
+        if (cached == null) {
+            cached = new CachedHeaders(originator);
+            headers.put(deviceToken, cached);
+        } else if (!cached.hasOriginator(originator)) {
+            Arrays.fill(cached.encoded, null);
+            cached.originator = originator;
+        }
+        byte[] header = cached.encoded[command.ordinal()];
+        if (header != null) {
+            ensureCapacity(header.length);
+            System.arraycopy(header, 0, buffer, position, header.length);
+            position += header.length;
+        } else {
+            int start = position;
+            encodeHeader(command, deviceToken, originator);
+            cached.encoded[command.ordinal()] = Arrays.copyOfRange(buffer, start, position);
+        }
+    }
+
+    /**
+     * Encode a delimited event header field by field.
+     *
+     * @param command
+     * @param deviceToken
+     * @param originator
+     */
+    private void encodeHeader(Command command, String deviceToken, String originator) {
+        int commandNumber = command.getNumber();
+        int tokenLength = utf8Length(deviceToken);
+        int originatorLength = (originator != null) ? utf8Length(originator) : 0;
+        int size = fieldSize(HEADER_DEVICE_TOKEN, optionalStringSize(tokenLength));
+        if (commandNumber != 0) {
+            size += varintSize(HEADER_COMMAND) + varintSize(commandNumber);
+        }
+        if (originator != null) {
+            size += fieldSize(HEADER_ORIGINATOR, optionalStringSize(originatorLength));
+        }
+        ensureCapacity(varintSize(size) + size);
+        writeVarint(size);
+        if (commandNumber != 0) {
+            writeVarint(HEADER_COMMAND);
+            writeVarint(commandNumber);
+        }
+        writeOptionalString(HEADER_DEVICE_TOKEN, deviceToken, tokenLength);
+        if (originator != null) {
+            writeOptionalString(HEADER_ORIGINATOR, originator, originatorLength);
+        }
+    }
+
+    /**
+     * Write a GOptionalString field given the UTF-8 length of its value.
+     */
+    private void writeOptionalString(int tag, String value, int utf8Length) {
+        writeVarint(tag);
+        writeVarint(optionalStringSize(utf8Length));
+        if (utf8Length > 0) {
+            writeVarint(OPTIONAL_STRING_VALUE);
+            writeVarint(utf8Length);
+            writeUtf8(value);
+        }
+    }
+
+    /**
+     * Write a GOptionalDouble field.
+     */
+    private void writeOptionalDouble(int tag, double value) {
+        writeVarint(tag);
+        if (value != 0D) {
+            writeVarint(FIXED64_FIELD_SIZE);
+            writeVarint(OPTIONAL_DOUBLE_VALUE);
+            writeFixed64(Double.doubleToRawLongBits(value));
+        } else {
+            writeVarint(0);
+        }
+    }
+
+    /**
+     * Write a GOptionalFixed64 field.
+     */
+    private void writeOptionalFixed64(int tag, long value) {
+        writeVarint(tag);
+        if (value != 0L) {
+            writeVarint(FIXED64_FIELD_SIZE);
+            writeVarint(OPTIONAL_FIXED64_VALUE);
+            writeFixed64(value);
+        } else {
+            writeVarint(0);
+        }
+    }
+
+    private void writeVarint(int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[position++] = (byte) value;
+    }
+
+    private void writeFixed64(long value) {
+        for (int i = 0; i < 8; i++) {
+            buffer[position++] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    /**
+     * Write a string as UTF-8. Unpaired surrogates are written as '?', matching the encoder used
+     * by protobuf.
+     */
+    private void writeUtf8(String value) {
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                buffer[position++] = (byte) c;
+            } else if (c < 0x800) {
+                buffer[position++] = (byte) (0xC0 | (c >>> 6));
+                buffer[position++] = (byte) (0x80 | (c & 0x3F));
+            } else if (!Character.isSurrogate(c)) {
+                buffer[position++] = (byte) (0xE0 | (c >>> 12));
+                buffer[position++] = (byte) (0x80 | ((c >>> 6) & 0x3F));
+                buffer[position++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && (i + 1 < length)
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                buffer[position++] = (byte) (0xF0 | (codePoint >>> 18));
+                buffer[position++] = (byte) (0x80 | ((codePoint >>> 12) & 0x3F));
+                buffer[position++] = (byte) (0x80 | ((codePoint >>> 6) & 0x3F));
+                buffer[position++] = (byte) (0x80 | (codePoint & 0x3F));
+            } else {
+                buffer[position++] = (byte) '?';
+            }
+        }
+    }
+
+    private void ensureCapacity(int additional) {
+        int required = position + additional;
+        if (required > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(required, buffer.length * 2));
+        }
+    }
+
+    /**
+     * Encoded size of a GOptionalString message body given the UTF-8 length of its value. Empty
+     * strings are left out, as proto3 does for default values.
+     */
+    private static int optionalStringSize(int utf8Length) {
+        if (utf8Length == 0) {
+            return 0;
+        }
+        return varintSize(OPTIONAL_STRING_VALUE) + varintSize(utf8Length) + utf8Length;
+    }
+
+    /**
+     * Encoded size of a GOptionalDouble message body.
+     */
+    private static int optionalDoubleSize(double value) {
+        return (value != 0D) ? FIXED64_FIELD_SIZE : 0;
+    }
+
+    /**
+     * Encoded size of a GOptionalFixed64 message body.
+     */
+    private static int optionalFixed64Size(long value) {
+        return (value != 0L) ? FIXED64_FIELD_SIZE : 0;
+    }
+
+    /**
+     * Encoded size of an embedded message field with the given body size.
+     */
+    private static int fieldSize(int tag, int size) {
+        return varintSize(tag) + varintSize(size) + size;
+    }
+
+    private static int varintSize(int value) {
+        if ((value & (~0 << 7)) == 0) {
+            return 1;
+        }
+        if ((value & (~0 << 14)) == 0) {
+            return 2;
+        }
+        if ((value & (~0 << 21)) == 0) {
+            return 3;
+        }
+        if ((value & (~0 << 28)) == 0) {
+            return 4;
+        }
+        return 5;
+    }
+
+    private static int utf8Length(String value) {
+        int length = value.length();
+        int bytes = 0;
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                bytes++;
+            } else if (c < 0x800) {
+                bytes += 2;
+            } else if (!Character.isSurrogate(c)) {
+                bytes += 3;
+            } else if (Character.isHighSurrogate(c) && (i + 1 < length)
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                bytes += 4;
+                i++;
+            } else {
+                bytes++;
+            }
+        }
+        return bytes;
+    }
+
+    private static int tag(int fieldNumber, int wireType) {
+        return (fieldNumber << 3) | wireType;
+    }
+
+    /**
+     * Encoded headers for one device token.
+     */
+    private static class CachedHeaders {
+
+        /** Encoded delimited headers indexed by command ordinal */
+        final byte[][] encoded = new byte[COMMAND_COUNT][];
+
+        /** Originator the headers were encoded for */
+        String originator;
+
+        CachedHeaders(String originator) {
+            this.originator = originator;
+        }
+
+        boolean hasOriginator(String other) {
+            return (other == null) ? (originator == null) : other.equals(originator);
+        }
+    }
+}
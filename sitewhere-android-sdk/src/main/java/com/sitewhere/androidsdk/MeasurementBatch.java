@@ -0,0 +1,161 @@
+package com.sitewhere.androidsdk;
+
+import com.sitewhere.androidsdk.messaging.EventFrames;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Reusable batch of measurements for a fixed set of measurement names. Names are registered once
+ * and referred to afterward by their index, and values and timestamps are passed as primitives,
+ * so filling and sending a batch from a sensor callback does not box values or allocate maps or
+ * dates. Call {@link #clear()} to reuse the batch for the next sample.
+ * <p>
+ * Instances are not thread safe.
+ */
+public class MeasurementBatch {
+
+    /** Token for device that owns the measurements */
+    private final String deviceToken;
+
+    /** Originator included in event headers */
+    private final String originator;
+
+    /** Measurement names indexed by name id */
+    private final String[] measurementNames;
+
+    /** Length-prefixed encoded events */
+    private final FrameBuffer frames = new FrameBuffer();
+
+    /** Encodes each measurement */
+    private final DeviceEventEncoder encoder = new DeviceEventEncoder();
+
+    /** Number of measurements in the batch */
+    private int size;
+
+    public MeasurementBatch(String deviceToken, String... measurementNames) {
+        this(deviceToken, "", measurementNames);
+    }
+
+    public MeasurementBatch(String deviceToken, String originator, String[] measurementNames) {
+        this.deviceToken = deviceToken;
+        this.originator = originator;
+        this.measurementNames = measurementNames.clone();
+    }
+
+    /**
+     * Get the id used to refer to a measurement name.
+     *
+     * @param measurementName
+     * @return id or -1 if the name was not registered
+     */
+    public int getNameId(String measurementName) {
+        for (int i = 0; i < measurementNames.length; i++) {
+            if (measurementNames[i].equals(measurementName)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Add a measurement timestamped with the current time.
+     *
+     * @param nameId
+     * @param value
+     * @return
+     */
+    public MeasurementBatch add(int nameId, double value) {
+        return add(nameId, value, System.currentTimeMillis());
+    }
+
+    /**
+     * Add a measurement.
+     *
+     * @param nameId
+     * @param value
+     * @param eventDate epoch milliseconds
+     * @return
+     */
+    public MeasurementBatch add(int nameId, double value, long eventDate) {
+        encoder.reset().writeMeasurement(deviceToken, originator, measurementNames[nameId], value, eventDate);
+        EventFrames.writeFrame(frames, encoder.getBuffer(), 0, encoder.size());
+        size++;
+        return this;
+    }
+
+    /**
+     * Add one measurement per registered name, taking values in name id order.
+     *
+     * @param values
+     * @param eventDate epoch milliseconds
+     * @return
+     */
+    public MeasurementBatch addAll(double[] values, long eventDate) {
+        if (values.length != measurementNames.length) {
+            throw new IllegalArgumentException(
+                    "Expected " + measurementNames.length + " values but got " + values.length + ".");
+        }
+        for (int i = 0; i < values.length; i++) {
+            add(i, values[i], eventDate);
+        }
+        return this;
+    }
+
+    /**
+     * Remove all measurements so the batch can be reused.
+     */
+    public void clear() {
+        frames.reset();
+        size = 0;
+    }
+
+    /**
+     * Get the framed payload for all measurements in the batch.
+     *
+     * @return
+     */
+    public byte[] toByteArray() {
+        return frames.toByteArray();
+    }
+
+    /**
+     * Get the internal buffer holding the framed payload, without copying. Only the first
+     * {@link #getLength()} bytes are valid, and only until the batch is changed.
+     *
+     * @return
+     */
+    public byte[] getBuffer() {
+        return frames.getBuffer();
+    }
+
+    /**
+     * Get the number of bytes in the framed payload.
+     *
+     * @return
+     */
+    public int getLength() {
+        return frames.size();
+    }
+
+    public String getDeviceToken() {
+        return deviceToken;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Output stream that exposes its buffer so frames can be sent without copying.
+     */
+    private static class FrameBuffer extends ByteArrayOutputStream {
+
+        byte[] getBuffer() {
+            return buf;
+        }
+    }
+}
@@ -5,6 +5,8 @@ import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.ServiceConnection;
+import android.os.Binder;
+import android.os.Build;
 import android.os.IBinder;
 import android.os.Parcelable;
 import android.os.RemoteException;
@@ -13,11 +15,19 @@ import android.support.annotation.Nullable;
 import android.util.Log;
 
 import com.google.protobuf.AbstractMessageLite;
+import com.sitewhere.androidsdk.logging.SiteWhereLog;
+import com.sitewhere.androidsdk.messaging.EventFrames;
 import com.sitewhere.androidsdk.messaging.IFromSiteWhere;
+import com.sitewhere.androidsdk.messaging.IFromSiteWhereV2;
+import com.sitewhere.androidsdk.messaging.InboundBatch;
+import com.sitewhere.androidsdk.messaging.ISendCallback;
 import com.sitewhere.androidsdk.messaging.ISiteWhereMessaging;
+import com.sitewhere.androidsdk.messaging.SharedRing;
 import com.sitewhere.androidsdk.messaging.IToSiteWhere;
 import com.sitewhere.androidsdk.messaging.SiteWhereMessagingException;
+import com.sitewhere.androidsdk.messaging.SystemCommand;
 import com.sitewhere.androidsdk.mqtt.MqttService;
+import com.sitewhere.androidsdk.mqtt.RegistrationManager;
 import com.sitewhere.communication.protobuf.proto.SiteWhere;
 import com.sitewhere.rest.model.device.event.DeviceEventOriginator;
 //import com.sitewhere.spi.device.event.IDeviceEventOriginator;
@@ -26,15 +36,18 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
+import java.io.OutputStream;
 import java.io.StreamCorruptedException;
 import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.sitewhere.communication.protobuf.proto.SiteWhere.GOptionalString;
-import com.sitewhere.communication.protobuf.proto.SiteWhere.GOptionalFixed64;
-import com.sitewhere.communication.protobuf.proto.SiteWhere.GOptionalDouble;
 import com.sitewhere.communication.protobuf.proto.SiteWhere.DeviceEvent.Command;
 
 
@@ -50,6 +63,17 @@ public class SiteWhereMessageClient {
      */
     protected boolean mBound = false;
 
+    /**
+     * Indicates the service runs in this process, so calls to it are plain Java calls
+     */
+    protected boolean mLocalService = false;
+
+    /**
+     * Protocol version negotiated with the service. Version 1 services only know the original
+     * register, unregister, send and registerForEvents calls.
+     */
+    protected int mProtocolVersion = 1;
+
     /* Android application context */
     protected Context mContext;
 
@@ -58,8 +82,106 @@ public class SiteWhereMessageClient {
      */
     protected IToSiteWhere mSitewhere;
     protected SiteWhereResponseProcessor mResponseProcessor = new SiteWhereResponseProcessor();
+    protected SiteWhereBatchProcessor mBatchProcessor = new SiteWhereBatchProcessor();
     protected SiteWhereMessageClientCallback mCallback;
 
+    /**
+     * Indicates if messages are queued by the service rather than waiting for delivery
+     */
+    protected boolean mAsynchronousSend = false;
+
+    /**
+     * Default size of the shared memory ring used for outbound messages
+     */
+    public static final int DEFAULT_SHARED_RING_CAPACITY = 256 * 1024;
+
+    /**
+     * Size of shared memory ring to request, or 0 to send every message through binder
+     */
+    protected int mSharedRingCapacity = 0;
+
+    /**
+     * Ring shared with the service for outbound messages (null if not in use)
+     */
+    protected volatile SharedRing mSharedRing;
+
+    /**
+     * Source of ids for asynchronous sends
+     */
+    protected final AtomicLong mNextSendId = new AtomicLong();
+
+    /**
+     * Handlers for child devices in gateway mode, keyed by device token
+     */
+    protected final Map<String, ChildDeviceHandler> mChildDevices = new ConcurrentHashMap<>();
+
+    /**
+     * Handlers for custom commands encoded with protobuf
+     */
+    protected final CustomCommandRegistry mCommandRegistry = new CustomCommandRegistry();
+
+    /**
+     * Receives system commands decoded by the service (null if not listening)
+     */
+    protected volatile SystemCommandListener mSystemCommandListener;
+
+    /**
+     * Decodes JSON event messages
+     */
+    protected final DeviceEventDecoder mEventDecoder = new DeviceEventDecoder();
+
+    /**
+     * Receives decoded event messages (null if not decoding)
+     */
+    protected volatile DeviceEventDecoder.Listener mEventListener;
+
+    /**
+     * Event topics this client is subscribed to
+     */
+    protected final Set<String> mEventTopics = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /**
+     * Encodes events without builders
+     */
+    protected final DeviceEventEncoder mEncoder = new DeviceEventEncoder();
+
+    /**
+     * Reused buffer for framing batched events (guarded by mEncoder)
+     */
+    protected final ByteArrayOutputStream mFrames = new ByteArrayOutputStream();
+
+    /**
+     * Listener notified when asynchronous sends complete
+     */
+    protected SendCompletionListener mSendListener;
+
+    /**
+     * Receives completion notifications for asynchronous sends
+     */
+    protected final ISendCallback.Stub mSendCallback = new ISendCallback.Stub() {
+
+        @Override
+        public void sendCompleted(long id) throws RemoteException {
+            SendCompletionListener listener = mSendListener;
+            if (listener != null)
+                listener.onSendCompleted(id);
+        }
+
+        @Override
+        public void sendFailed(long id, String reason) throws RemoteException {
+            SendCompletionListener listener = mSendListener;
+            if (listener != null)
+                listener.onSendFailed(id, reason);
+        }
+
+        @Override
+        public void sendStored(long id) throws RemoteException {
+            SendCompletionListener listener = mSendListener;
+            if (listener instanceof SendStoredListener)
+                ((SendStoredListener) listener).onSendStored(id);
+        }
+    };
+
     /* Convenient singleton */
     protected static SiteWhereMessageClient sClient;
 
@@ -86,7 +208,9 @@ public class SiteWhereMessageClient {
          */
         @Override
         public void receivedCustomCommand(byte[] payload) throws RemoteException {
-            onReceivedCustomCommand(mCallback, payload);
+            if (mCommandRegistry.isEmpty() || !mCommandRegistry.dispatch(payload)) {
+                onReceivedCustomCommand(mCallback, payload);
+            }
 
             if (mCallback != null)
                 mCallback.onReceivedCustomCommand(payload);
@@ -103,8 +227,54 @@ public class SiteWhereMessageClient {
                 mCallback.onReceivedSystemCommand(payload);
         }
 
+        /*
+         * (non-Javadoc)
+         *
+         * @see com.sitewhere.android.messaging.IFromSiteWhere#receivedDecodedSystemCommand(com.sitewhere.androidsdk.messaging.SystemCommand)
+         */
+        @Override
+        public void receivedDecodedSystemCommand(SystemCommand command) throws RemoteException {
+            SystemCommandListener listener = mSystemCommandListener;
+            if (listener != null)
+                listener.onSystemCommand(command);
+            if (mCallback != null)
+                mCallback.onReceivedSystemCommand(command.getPayload());
+        }
+
+        /*
+         * (non-Javadoc)
+         *
+         * @see com.sitewhere.android.messaging.IFromSiteWhere#receivedChildSystemCommand(java.lang.String, byte[])
+         */
+        @Override
+        public void receivedChildSystemCommand(String deviceToken, byte[] payload) throws RemoteException {
+            ChildDeviceHandler handler = mChildDevices.get(deviceToken);
+            if (handler != null)
+                handler.onReceivedSystemCommand(deviceToken, payload);
+        }
+
+        /*
+         * (non-Javadoc)
+         *
+         * @see com.sitewhere.android.messaging.IFromSiteWhere#receivedChildCustomCommand(java.lang.String, byte[])
+         */
+        @Override
+        public void receivedChildCustomCommand(String deviceToken, byte[] payload) throws RemoteException {
+            ChildDeviceHandler handler = mChildDevices.get(deviceToken);
+            if (handler != null)
+                handler.onReceivedCustomCommand(deviceToken, payload);
+        }
+
         @Override
         public void receivedEventMessage(String topic, byte[] message) throws RemoteException {
+            DeviceEventDecoder.Listener listener = mEventListener;
+            if (listener != null) {
+                try {
+                    mEventDecoder.decode(topic, message, listener);
+                } catch (IOException e) {
+                    Log.e(TAG, "Unable to decode event message from " + topic + ".", e);
+                }
+            }
             if (mCallback != null)
                 mCallback.onReceivedEventMessage(topic, message);
         }
@@ -121,6 +291,52 @@ public class SiteWhereMessageClient {
         }
     }
 
+    /**
+     * Handles batches sent from the message service by passing each message to the response
+     * processor in order
+     */
+    protected class SiteWhereBatchProcessor extends IFromSiteWhereV2.Stub {
+
+        /*
+         * (non-Javadoc)
+         *
+         * @see com.sitewhere.android.messaging.IFromSiteWhereV2#receivedBatch(com.sitewhere.androidsdk.messaging.InboundBatch)
+         */
+        @Override
+        public void receivedBatch(InboundBatch batch) throws RemoteException {
+            SiteWhereResponseProcessor processor = mResponseProcessor;
+            if (processor == null)
+                return;
+            for (int i = 0; i < batch.size(); i++) {
+                switch (batch.getKind(i)) {
+                    case InboundBatch.CONNECTED:
+                        processor.connected();
+                        break;
+                    case InboundBatch.DISCONNECTED:
+                        processor.disconnected();
+                        break;
+                    case InboundBatch.SYSTEM_COMMAND:
+                        processor.receivedDecodedSystemCommand(batch.getSystemCommand(i));
+                        break;
+                    case InboundBatch.CUSTOM_COMMAND:
+                        processor.receivedCustomCommand(batch.getPayload(i));
+                        break;
+                    case InboundBatch.CHILD_SYSTEM_COMMAND:
+                        processor.receivedChildSystemCommand(batch.getDeviceToken(i), batch.getPayload(i));
+                        break;
+                    case InboundBatch.CHILD_CUSTOM_COMMAND:
+                        processor.receivedChildCustomCommand(batch.getDeviceToken(i), batch.getPayload(i));
+                        break;
+                    case InboundBatch.EVENT_MESSAGE:
+                        processor.receivedEventMessage(batch.getTopic(i), batch.getPayload(i));
+                        break;
+                    default:
+                        Log.w(TAG, "Ignoring message of unknown kind " + batch.getKind(i) + ".");
+                }
+            }
+        }
+    }
+
     /**
      * Handles connection to message service
      */
@@ -134,10 +350,32 @@ public class SiteWhereMessageClient {
          */
         public void onServiceConnected(ComponentName className, IBinder service) {
             mSitewhere = IToSiteWhere.Stub.asInterface(service);
+
+            // A service in this process hands back its stub, so calls skip Parcel marshalling.
+            mLocalService = service instanceof Binder;
+            synchronized (mEncoder) {
+                mEncoder.clearHeaders();
+            }
             try {
-                mSitewhere.register(mResponseProcessor);
+                // New calls are appended to the interface, so an older service sees an unknown
+                // transaction code and the reply reads as 0. Fall back to version 1 in that case, and
+                // only use the original calls from then on, since newer ones would be ignored.
+                int version = mSitewhere.registerWithProtocol(mResponseProcessor,
+                        mLocalService ? null : mBatchProcessor, RegistrationManager.PROTOCOL_VERSION);
+                if (version < 1) {
+                    mSitewhere.register(mResponseProcessor);
+                    version = 1;
+                }
+                mProtocolVersion = version;
                 mBound = true;
-                Log.d(TAG, "Registered with SiteWhere messaging service.");
+                Log.d(TAG, "Registered with SiteWhere messaging service using protocol version " + version + ".");
+                if (!mChildDevices.isEmpty()) {
+                    addChildDeviceTokens(mChildDevices.keySet().toArray(new String[0]));
+                }
+                for (String topic : mEventTopics) {
+                    subscribeForEvents(topic);
+                }
+                attachSharedRing();
             } catch (RemoteException e) {
                 Log.e(TAG, "Unable to register with SiteWhere messaging service.");
             }
@@ -151,6 +389,7 @@ public class SiteWhereMessageClient {
          */
         public void onServiceDisconnected(ComponentName className) {
             mBound = false;
+            closeSharedRing();
             try {
                 mSitewhere.unregister(mResponseProcessor);
             } catch (RemoteException e) {
@@ -165,6 +404,19 @@ public class SiteWhereMessageClient {
         }
     };
 
+    /**
+     * Receives system commands decoded by the service
+     */
+    public interface SystemCommandListener {
+
+        /**
+         * Called on a binder thread when a system command is received.
+         *
+         * @param command
+         */
+        public void onSystemCommand(SystemCommand command);
+    }
+
     /**
      * Callback interface for listeners to receive events from Sitewhere
      */
@@ -198,6 +450,67 @@ public class SiteWhereMessageClient {
         public void onDisconnectedFromSiteWhere();
     }
 
+    /**
+     * Handles commands for a child device when acting as a gateway for several devices over one
+     * connection.
+     */
+    public interface ChildDeviceHandler {
+
+        /**
+         * Called when a custom command payload is received for the device.
+         *
+         * @param deviceToken
+         * @param payload
+         */
+        public void onReceivedCustomCommand(String deviceToken, byte[] payload);
+
+        /**
+         * Called when a system command payload is received for the device.
+         *
+         * @param deviceToken
+         * @param payload
+         */
+        public void onReceivedSystemCommand(String deviceToken, byte[] payload);
+    }
+
+    /**
+     * Listener for completion of asynchronous sends. Ids are assigned per client in the order
+     * messages are sent.
+     */
+    public interface SendCompletionListener {
+
+        /**
+         * Called after the message was published to SiteWhere.
+         *
+         * @param id
+         */
+        public void onSendCompleted(long id);
+
+        /**
+         * Called if the message could not be published. If a batch failed partway through and
+         * the service could not store the rest, the reason says how many events were published.
+         *
+         * @param id
+         * @param reason
+         */
+        public void onSendFailed(long id, String reason);
+    }
+
+    /**
+     * Listener that is also told when the service stored an asynchronous send in its outbound
+     * journal because the broker could not be reached. The message is published once the
+     * connection is restored, and no completion is reported for it.
+     */
+    public interface SendStoredListener extends SendCompletionListener {
+
+        /**
+         * Called if the message was stored to be published later.
+         *
+         * @param id
+         */
+        public void onSendStored(long id);
+    }
+
     public SiteWhereMessageClient(Context context) {
         mContext = context;
         sClient = SiteWhereMessageClient.this;
@@ -220,6 +533,7 @@ public class SiteWhereMessageClient {
             if (mSitewhere != null) {
                 try {
                     mSitewhere.unregister(mResponseProcessor);
+                    closeSharedRing();
                     Log.d(TAG, "No longer registered with SiteWhere messaging service.");
                 } catch (RemoteException e) {
                     Log.e(TAG, "Unable to unregister from response processor.", e);
@@ -231,12 +545,19 @@ public class SiteWhereMessageClient {
         }
     }
 
+    /**
+     * Receive event messages on topics matching a filter. Only this client receives the messages,
+     * and the subscription is restored if the service connection is re-established.
+     *
+     * @param topic MQTT topic filter, which may contain wildcards
+     */
     public void registerForEvents(String topic) {
+        mEventTopics.add(topic);
         if ((serviceConnection != null) && (mBound)) {
             if (mSitewhere != null) {
                 try {
-                    mSitewhere.registerForEvents(topic);
-                    Log.e(TAG, String.format("Registering to listen for events on '%s'.", topic));
+                    subscribeForEvents(topic);
+                    Log.d(TAG, String.format("Registering to listen for events on '%s'.", topic));
                 } catch (RemoteException e) {
                     Log.e(TAG, "Unable to register for events from response processor.", e);
                 }
@@ -244,10 +565,130 @@ public class SiteWhereMessageClient {
         }
     }
 
+    /**
+     * Stop receiving event messages on a topic filter. The service unsubscribes from the broker
+     * once no client is interested in the filter.
+     *
+     * @param topic
+     */
+    public void unregisterForEvents(String topic) {
+        if (!mEventTopics.remove(topic)) {
+            return;
+        }
+        if (!hasProtocolV2()) {
+            Log.w(TAG, "Messaging service can not unsubscribe from events. Messages on '" + topic + "' are still received.");
+            return;
+        }
+        if ((serviceConnection != null) && (mBound) && (mSitewhere != null)) {
+            try {
+                mSitewhere.unsubscribeFromEvents(mResponseProcessor, topic);
+            } catch (RemoteException e) {
+                Log.e(TAG, "Unable to unregister for events.", e);
+            }
+        }
+    }
+
+    /**
+     * Act as a gateway for a child device. Its commands are received over the shared connection
+     * and passed to the handler. Events for the device are sent using its token as usual.
+     *
+     * @param deviceToken
+     * @param handler
+     * @throws SiteWhereMessagingException
+     */
+    public void addChildDevice(String deviceToken, ChildDeviceHandler handler) throws SiteWhereMessagingException {
+        addChildDevices(Collections.singletonMap(deviceToken, handler));
+    }
+
+    /**
+     * Act as a gateway for several child devices, subscribing to all of their command topics in
+     * one request.
+     *
+     * @param handlers
+     * @throws SiteWhereMessagingException
+     */
+    public void addChildDevices(Map<String, ChildDeviceHandler> handlers) throws SiteWhereMessagingException {
+        mChildDevices.putAll(handlers);
+        if (mSitewhere != null) {
+            try {
+                addChildDeviceTokens(handlers.keySet().toArray(new String[0]));
+            } catch (RemoteException e) {
+                throw new SiteWhereMessagingException("Unable to add child devices.", e);
+            }
+        }
+    }
+
+    /**
+     * Stop acting as a gateway for the given child devices.
+     *
+     * @param deviceTokens
+     * @throws SiteWhereMessagingException
+     */
+    public void removeChildDevices(String... deviceTokens) throws SiteWhereMessagingException {
+        for (String deviceToken : deviceTokens) {
+            mChildDevices.remove(deviceToken);
+        }
+        if ((mSitewhere != null) && hasProtocolV2()) {
+            try {
+                mSitewhere.removeChildDevices(mResponseProcessor, deviceTokens);
+            } catch (RemoteException e) {
+                throw new SiteWhereMessagingException("Unable to remove child devices.", e);
+            }
+        }
+    }
+
     public void setCallback(SiteWhereMessageClientCallback cb) {
         this.mCallback = cb;
     }
 
+    /**
+     * Choose whether messages are handed off to a queue in the service instead of waiting for
+     * the broker to acknowledge them.
+     *
+     * @param asynchronous
+     */
+    public void setAsynchronousSend(boolean asynchronous) {
+        this.mAsynchronousSend = asynchronous;
+    }
+
+    public boolean isAsynchronousSend() {
+        return mAsynchronousSend;
+    }
+
+    /**
+     * Send outbound messages through a ring buffer in memory shared with the service instead of a
+     * binder call per message. The service is only called when the ring goes from empty to
+     * non-empty, or to drain it when full. Messages written to the ring do not report publish
+     * errors to the caller. The service stores them in its outbound journal and sends them again
+     * instead. Sends with a {@link SendCompletionListener} still use binder.
+     * Needs API 27; on older devices or services messages keep going through binder, and a
+     * service in this process is called directly instead. Takes effect the next time the client
+     * connects.
+     *
+     * @param capacity ring size in bytes (such as {@link #DEFAULT_SHARED_RING_CAPACITY}), or 0 to disable
+     */
+    public void setSharedRingCapacity(int capacity) {
+        this.mSharedRingCapacity = capacity;
+    }
+
+    public int getSharedRingCapacity() {
+        return mSharedRingCapacity;
+    }
+
+    /**
+     * Indicates the messaging service runs in this process. Payloads and callbacks are then
+     * passed by reference in direct calls, and the shared ring and batched delivery are not used.
+     *
+     * @return
+     */
+    public boolean isLocalService() {
+        return mLocalService;
+    }
+
+    public void setSendCompletionListener(SendCompletionListener listener) {
+        this.mSendListener = listener;
+    }
+
     /**
      * Creates a connection to SiteWhere
      */
@@ -277,11 +718,106 @@ public class SiteWhereMessageClient {
             if (eventDate == null)
                 eventDate = new Date();
 
-            for (String measurementName : measurements.keySet()) {
-                Double measurementValue = measurements.get(measurementName);
-                sendMeasurement(deviceToken, "", eventDate, measurementName, measurementValue);
+            DeviceEventBatch batch = new DeviceEventBatch(deviceToken);
+            for (Map.Entry<String, Double> measurement : measurements.entrySet()) {
+                batch.addMeasurement(measurement.getKey(), measurement.getValue(), eventDate);
             }
+            sendDeviceEvents(batch);
+        }
+    }
+
+    /**
+     * Send measurements held in parallel arrays, all with the same event date. Values are
+     * encoded directly from the array, so no boxing or map is needed.
+     *
+     * @param deviceToken
+     * @param measurementNames
+     * @param measurementValues
+     * @param eventDate epoch milliseconds
+     * @throws SiteWhereMessagingException
+     */
+    public void sendDeviceMeasurements(String deviceToken, String[] measurementNames, double[] measurementValues, long eventDate) throws SiteWhereMessagingException {
+        if (measurementNames.length != measurementValues.length) {
+            throw new IllegalArgumentException("Measurement names and values must have the same length.");
+        }
+        if (measurementNames.length == 0) {
+            return;
+        }
+        byte[] frames;
+        synchronized (mEncoder) {
+            mFrames.reset();
+            for (int i = 0; i < measurementNames.length; i++) {
+                mEncoder.reset().writeMeasurement(deviceToken, "", measurementNames[i], measurementValues[i], eventDate);
+                EventFrames.writeFrame(mFrames, mEncoder.getBuffer(), 0, mEncoder.size());
+            }
+            frames = mFrames.toByteArray();
+        }
+        sendBatch(frames);
+    }
 
+    /**
+     * Send all measurements in a reusable batch to SiteWhere with a single call to the messaging service.
+     *
+     * @param batch
+     * @throws SiteWhereMessagingException
+     */
+    public void sendDeviceMeasurements(MeasurementBatch batch) throws SiteWhereMessagingException {
+        if (batch == null || batch.isEmpty()) {
+            return;
+        }
+        sendBatch(batch.getBuffer(), 0, batch.getLength());
+    }
+
+    /**
+     * Send all events in a batch to SiteWhere with a single call to the messaging service.
+     *
+     * @param batch
+     * @throws SiteWhereMessagingException
+     */
+    public void sendDeviceEvents(DeviceEventBatch batch) throws SiteWhereMessagingException {
+        if (batch == null || batch.isEmpty()) {
+            return;
+        }
+        sendBatch(batch.toByteArray());
+    }
+
+    /**
+     * Send length-prefixed encoded events to SiteWhere.
+     *
+     * @param frames
+     * @throws SiteWhereMessagingException
+     */
+    protected void sendBatch(byte[] frames) throws SiteWhereMessagingException {
+        sendBatch(frames, 0, frames.length);
+    }
+
+    /**
+     * Send length-prefixed encoded events held in a region of a buffer to SiteWhere. The region
+     * is written to the shared ring directly, and only copied when sent through binder.
+     *
+     * @param buffer
+     * @param offset
+     * @param length
+     * @throws SiteWhereMessagingException
+     */
+    protected void sendBatch(byte[] buffer, int offset, int length) throws SiteWhereMessagingException {
+        if (mSitewhere != null) {
+            try {
+                if (sendShared(buffer, offset, length, true)) {
+                    return;
+                }
+                byte[] frames = ((offset == 0) && (length == buffer.length)) ? buffer
+                        : Arrays.copyOfRange(buffer, offset, offset + length);
+                if (!hasProtocolV2()) {
+                    sendFramesV1(frames);
+                } else if (mAsynchronousSend) {
+                    mSitewhere.sendBatchAsync(frames, mNextSendId.incrementAndGet(), getSendCallback());
+                } else {
+                    mSitewhere.sendBatch(frames);
+                }
+            } catch (RemoteException e) {
+                throw new SiteWhereMessagingException("Unable to send batch.", e);
+            }
         }
     }
 
@@ -333,29 +869,6 @@ public class SiteWhereMessageClient {
     }
 
 
-    /**
-     * Send a measurement event to SiteWhere.
-     *
-     * @param deviceToken
-     * @param originator
-     * @param eventDate
-     * @param measurementName
-     * @param measurementValue
-     * @throws SiteWhereMessagingException
-     */
-    private void sendMeasurement(String deviceToken, String originator, Date eventDate, String measurementName, Double measurementValue)
-            throws SiteWhereMessagingException {
-
-        SiteWhere.DeviceEvent.DeviceMeasurement.Builder builder = SiteWhere.DeviceEvent.DeviceMeasurement.newBuilder();
-
-        builder.setEventDate(GOptionalFixed64.newBuilder().setValue(eventDate.getTime()));
-        builder.setMeasurementName(GOptionalString.newBuilder().setValue(measurementName));
-        builder.setMeasurementValue(GOptionalDouble.newBuilder().setValue(measurementValue));
-
-        SiteWhere.DeviceEvent.DeviceMeasurement payload = builder.build();
-        sendMessage(Command.SendMeasurement, payload, deviceToken, originator, "measurement");
-    }
-
     /**
      * Send a location event to SiteWhere.
      *
@@ -368,17 +881,13 @@ public class SiteWhereMessageClient {
      */
     private void sendLocation(String deviceToken, String originator, double latitude, double longitude,
                               double elevation, Date eventDate) throws SiteWhereMessagingException {
-
-        SiteWhere.DeviceEvent.DeviceLocation.Builder builder = SiteWhere.DeviceEvent.DeviceLocation.newBuilder();
-
-        builder.setEventDate(GOptionalFixed64.newBuilder().setValue(eventDate.getTime()));
-        builder.setLatitude(GOptionalDouble.newBuilder().setValue(latitude));
-        builder.setLongitude(GOptionalDouble.newBuilder().setValue(longitude));
-        builder.setElevation(GOptionalDouble.newBuilder().setValue(elevation));
-
-        SiteWhere.DeviceEvent.DeviceLocation payload = builder.build();
-
-        sendMessage(Command.SendLocation, payload, deviceToken, originator, "location");
+        byte[] encoded;
+        synchronized (mEncoder) {
+            encoded = mEncoder.reset()
+                    .writeLocation(deviceToken, originator, latitude, longitude, elevation, eventDate.getTime())
+                    .toByteArray();
+        }
+        sendCommand(encoded);
     }
 
     /**
@@ -392,15 +901,12 @@ public class SiteWhereMessageClient {
      */
     private void sendAlert(String deviceToken, String originator, String alertType, String message, Date eventDate)
             throws SiteWhereMessagingException {
-
-        SiteWhere.DeviceEvent.DeviceAlert.Builder builder = SiteWhere.DeviceEvent.DeviceAlert.newBuilder();
-
-        builder.setEventDate(GOptionalFixed64.newBuilder().setValue(eventDate.getTime()));
-        builder.setAlertType(GOptionalString.newBuilder().setValue(alertType));
-        builder.setAlertMessage(GOptionalString.newBuilder().setValue(message));
-        SiteWhere.DeviceEvent.DeviceAlert payload = builder.build();
-
-        sendMessage(Command.SendAlert, payload, deviceToken, originator, "alert");
+        byte[] encoded;
+        synchronized (mEncoder) {
+            encoded = mEncoder.reset().writeAlert(deviceToken, originator, alertType, message, eventDate.getTime())
+                    .toByteArray();
+        }
+        sendCommand(encoded);
     }
 
     /**
@@ -416,25 +922,11 @@ public class SiteWhereMessageClient {
     protected void sendMessage(Command command, AbstractMessageLite payload, String deviceToken, String originator, String label) throws SiteWhereMessagingException {
         ByteArrayOutputStream out = new ByteArrayOutputStream();
         try {
-            // Header
-            SiteWhere.DeviceEvent.Header.Builder headerBuilder = SiteWhere.DeviceEvent.Header.newBuilder();
-            // Command
-            headerBuilder.setCommand(command);
-            // Device Token
-            headerBuilder.setDeviceToken(GOptionalString.newBuilder().setValue(deviceToken));
-
-            if (originator != null) {
-                headerBuilder.setOriginator(GOptionalString.newBuilder().setValue(originator));
-            }
-            headerBuilder.build().writeDelimitedTo(out);
-            payload.writeDelimitedTo(out);
+            writeMessage(out, command, payload, deviceToken, originator);
             byte[] encoded = out.toByteArray();
-            StringBuffer hex = new StringBuffer();
-            for (byte current : encoded) {
-                hex.append(String.format("%02X ", current));
-                hex.append(" ");
+            if (SiteWhereLog.isDebugEnabled()) {
+                SiteWhereLog.d(TAG, "Encoded %s message: %s", label, SiteWhereLog.hex(encoded, 0, encoded.length));
             }
-            Log.d(TAG, hex.toString());
             sendCommand(encoded);
         } catch (IOException e) {
             throw new SiteWhereMessagingException("Problem encoding " + label + " message.", e);
@@ -443,19 +935,208 @@ public class SiteWhereMessageClient {
         }
     }
 
+    /**
+     * Write delimited header and payload for a message to the given stream.
+     *
+     * @param out
+     * @param command
+     * @param payload
+     * @param deviceToken
+     * @param originator
+     * @throws IOException
+     */
+    static void writeMessage(OutputStream out, Command command, AbstractMessageLite payload, String deviceToken, String originator) throws IOException {
+        // Header
+        SiteWhere.DeviceEvent.Header.Builder headerBuilder = SiteWhere.DeviceEvent.Header.newBuilder();
+        // Command
+        headerBuilder.setCommand(command);
+        // Device Token
+        headerBuilder.setDeviceToken(GOptionalString.newBuilder().setValue(deviceToken));
+
+        if (originator != null) {
+            headerBuilder.setOriginator(GOptionalString.newBuilder().setValue(originator));
+        }
+        headerBuilder.build().writeDelimitedTo(out);
+        payload.writeDelimitedTo(out);
+    }
+
     /**
      * Send command to SiteWhere.
      */
     protected void sendCommand(byte[] payload) throws SiteWhereMessagingException {
         if (mSitewhere != null) {
             try {
-                mSitewhere.send(payload);
+                if (sendShared(payload, 0, payload.length, false)) {
+                    return;
+                }
+                if (!hasProtocolV2()) {
+                    sendV1(payload);
+                } else if (mAsynchronousSend) {
+                    mSitewhere.sendAsync(payload, mNextSendId.incrementAndGet(), getSendCallback());
+                } else {
+                    mSitewhere.send(payload);
+                }
             } catch (RemoteException e) {
                 throw new SiteWhereMessagingException("Unable to send command.", e);
             }
         }
     }
 
+    /**
+     * Indicates the service supports the calls added in protocol version 2.
+     *
+     * @return
+     */
+    protected boolean hasProtocolV2() {
+        return mProtocolVersion >= 2;
+    }
+
+    /**
+     * Subscribe to events on a topic. Version 1 services only support subscriptions shared by all
+     * clients, which can not be removed.
+     *
+     * @param topic
+     * @throws RemoteException
+     */
+    protected void subscribeForEvents(String topic) throws RemoteException {
+        if (hasProtocolV2()) {
+            mSitewhere.subscribeForEvents(mResponseProcessor, topic);
+        } else {
+            mSitewhere.registerForEvents(topic);
+        }
+    }
+
+    /**
+     * Add child devices on the service. Version 1 services do not support child devices.
+     *
+     * @param deviceTokens
+     * @throws RemoteException
+     */
+    protected void addChildDeviceTokens(String[] deviceTokens) throws RemoteException {
+        if (hasProtocolV2()) {
+            mSitewhere.addChildDevices(mResponseProcessor, deviceTokens);
+        } else {
+            Log.w(TAG, "Messaging service does not support child devices. Their commands will not be received.");
+        }
+    }
+
+    /**
+     * Send a payload with the blocking call supported by version 1 services. An asynchronous
+     * send is reported to the listener once the call returns.
+     *
+     * @param payload
+     * @throws RemoteException
+     */
+    protected void sendV1(byte[] payload) throws RemoteException {
+        mSitewhere.send(payload);
+        SendCompletionListener listener = mSendListener;
+        if (mAsynchronousSend && (listener != null)) {
+            listener.onSendCompleted(mNextSendId.incrementAndGet());
+        }
+    }
+
+    /**
+     * Send each frame of a batch with a separate call, since version 1 services can not unpack
+     * batches. An asynchronous send is reported to the listener once all frames are sent.
+     *
+     * @param frames
+     * @throws RemoteException
+     * @throws SiteWhereMessagingException
+     */
+    protected void sendFramesV1(byte[] frames) throws RemoteException, SiteWhereMessagingException {
+        EventFrames.Reader reader = new EventFrames.Reader(frames);
+        while (reader.next()) {
+            mSitewhere.send(Arrays.copyOfRange(frames, reader.getOffset(), reader.getOffset() + reader.getLength()));
+        }
+        SendCompletionListener listener = mSendListener;
+        if (mAsynchronousSend && (listener != null)) {
+            listener.onSendCompleted(mNextSendId.incrementAndGet());
+        }
+    }
+
+    /**
+     * Write a payload to the shared ring if one is attached.
+     *
+     * @param payload
+     * @param offset
+     * @param length
+     * @param batch true if payload contains length-prefixed frames
+     * @return false if the payload should be sent through binder instead
+     * @throws RemoteException
+     */
+    protected boolean sendShared(byte[] payload, int offset, int length, boolean batch) throws RemoteException {
+        SharedRing ring = mSharedRing;
+        if ((ring == null) || (mSendListener != null)) {
+            return false;
+        }
+        synchronized (ring) {
+            if (mSharedRing != ring) {
+                return false;
+            }
+
+            // Keep ordering by emptying the ring before a payload too large for it goes through binder.
+            if (length > ring.getMaxPayload()) {
+                mSitewhere.flushSharedRing(mResponseProcessor);
+                return false;
+            }
+            int result = ring.write(payload, offset, length, batch);
+            if (result == SharedRing.FULL) {
+                mSitewhere.flushSharedRing(mResponseProcessor);
+                result = ring.write(payload, offset, length, batch);
+            }
+            if (result == SharedRing.SIGNAL) {
+                mSitewhere.signalSharedRing(mResponseProcessor);
+            }
+            return result != SharedRing.FULL;
+        }
+    }
+
+    /**
+     * Create a shared ring and hand it to the service if enabled and supported.
+     *
+     * @throws RemoteException
+     */
+    protected void attachSharedRing() throws RemoteException {
+        if ((mSharedRingCapacity <= 0) || mLocalService || !hasProtocolV2() || (Build.VERSION.SDK_INT < Build.VERSION_CODES.O_MR1)) {
+            return;
+        }
+        SharedRing ring;
+        try {
+            ring = SharedRing.create(mSharedRingCapacity);
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to create shared ring. Sending through binder.", e);
+            return;
+        }
+        if (mSitewhere.attachSharedRing(mResponseProcessor, ring)) {
+            mSharedRing = ring;
+            Log.d(TAG, "Sending through shared ring of " + mSharedRingCapacity + " bytes.");
+        } else {
+            ring.close();
+        }
+    }
+
+    /**
+     * Stop using the shared ring and release it.
+     */
+    protected void closeSharedRing() {
+        SharedRing ring = mSharedRing;
+        if (ring != null) {
+            synchronized (ring) {
+                mSharedRing = null;
+                ring.close();
+            }
+        }
+    }
+
+    /**
+     * Only pass a callback to the service if someone is listening for completions.
+     *
+     * @return
+     */
+    protected ISendCallback getSendCallback() {
+        return (mSendListener != null) ? mSendCallback : null;
+    }
+
     protected void onReceivedCustomCommand(Object caller, byte[] payload) {
         if (caller == null) {
             return;
@@ -466,27 +1147,10 @@ public class SiteWhereMessageClient {
 
             String commandName = (String) in.readObject();
             Object[] parameters = (Object[]) in.readObject();
-            Object[] parametersWithOriginator = new Object[parameters.length + 1];
-            Class<?>[] types = new Class[parameters.length];
-            Class<?>[] typesWithOriginator = new Class[parameters.length + 1];
-            int i = 0;
-            for (Object parameter : parameters) {
-                types[i] = parameter.getClass();
-                typesWithOriginator[i] = types[i];
-                parametersWithOriginator[i] = parameters[i];
-                i++;
-            }
             DeviceEventOriginator originator = (DeviceEventOriginator) in.readObject();
-            typesWithOriginator[i] = DeviceEventOriginator.class;
-            parametersWithOriginator[i] = originator;
 
-            Method method = null;
-            try {
-                method = caller.getClass().getMethod(commandName, typesWithOriginator);
-                method.invoke(caller, parametersWithOriginator);
-            } catch (NoSuchMethodException e) {
-                method = caller.getClass().getMethod(commandName, types);
-                method.invoke(caller, parameters);
+            if (!CommandDispatcher.forClass(caller.getClass()).dispatch(caller, commandName, parameters, originator)) {
+                Log.e(TAG, "Unable to find method signature that matches command " + commandName + ".");
             }
         } catch (StreamCorruptedException e) {
             Log.e(TAG, "Unable to decode command in hybrid mode.", e);
@@ -494,8 +1158,6 @@ public class SiteWhereMessageClient {
             Log.e(TAG, "Unable to read command in hybrid mode.", e);
         } catch (ClassNotFoundException e) {
             Log.e(TAG, "Unable to resolve parameter class.", e);
-        } catch (NoSuchMethodException e) {
-            Log.e(TAG, "Unable to find method signature that matches command.", e);
         } catch (IllegalAccessException e) {
             Log.e(TAG, "Not allowed to call method for command.", e);
         } catch (IllegalArgumentException e) {
@@ -505,6 +1167,39 @@ public class SiteWhereMessageClient {
         }
     }
 
+    /**
+     * Receive system commands already decoded by the service, so the payload does not need to
+     * be parsed again. Raw payloads are still passed to
+     * {@link SiteWhereMessageClientCallback#onReceivedSystemCommand(byte[])}.
+     *
+     * @param listener listener or null to stop listening
+     */
+    public void setSystemCommandListener(SystemCommandListener listener) {
+        this.mSystemCommandListener = listener;
+    }
+
+    /**
+     * Decode event messages received on subscribed topics and pass them to a listener as model
+     * objects. Raw payloads are still passed to
+     * {@link SiteWhereMessageClientCallback#onReceivedEventMessage(String, byte[])}.
+     *
+     * @param listener listener or null to stop decoding
+     */
+    public void setEventListener(DeviceEventDecoder.Listener listener) {
+        this.mEventListener = listener;
+    }
+
+    /**
+     * Get the registry used to decode protobuf custom commands. Commands with a registered
+     * handler are passed to it instead of being decoded with Java serialization and dispatched to
+     * methods on the callback.
+     *
+     * @return
+     */
+    public CustomCommandRegistry getCommandRegistry() {
+        return mCommandRegistry;
+    }
+
     protected Class<? extends Service> getServiceClass() {
         return MqttService.class;
     }
@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) SiteWhere, LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.androidsdk.logging;
+
+import android.util.Log;
+
+import java.util.Locale;
+
+/**
+ * Level-gated logging for SDK hot paths. Messages below the configured level are dropped before
+ * any formatting happens, and the fixed-arity methods avoid allocating a varargs array, so a
+ * disabled log statement costs a single field read. Use {@link #hex(byte[], int, int)} to pass a
+ * payload whose hex dump is only built if the message is actually written.
+ */
+public final class SiteWhereLog {
+
+	/** Level that disables all SDK logging */
+	public static final int OFF = Integer.MAX_VALUE;
+
+	/** Characters used for hex dumps */
+	private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+	/** Minimum level written to the Android log */
+	private static volatile int level = Log.INFO;
+
+	private SiteWhereLog() {
+	}
+
+	/**
+	 * Set the minimum level (one of the {@link Log} priorities or {@link #OFF}).
+	 *
+	 * @param level
+	 */
+	public static void setLevel(int level) {
+		SiteWhereLog.level = level;
+	}
+
+	public static int getLevel() {
+		return level;
+	}
+
+	public static boolean isVerboseEnabled() {
+		return level <= Log.VERBOSE;
+	}
+
+	public static boolean isDebugEnabled() {
+		return level <= Log.DEBUG;
+	}
+
+	public static void v(String tag, String message) {
+		if (level <= Log.VERBOSE) {
+			Log.v(tag, message);
+		}
+	}
+
+	public static void v(String tag, String format, Object arg) {
+		if (level <= Log.VERBOSE) {
+			Log.v(tag, String.format(Locale.US, format, arg));
+		}
+	}
+
+	public static void d(String tag, String message) {
+		if (level <= Log.DEBUG) {
+			Log.d(tag, message);
+		}
+	}
+
+	public static void d(String tag, String format, Object arg) {
+		if (level <= Log.DEBUG) {
+			Log.d(tag, String.format(Locale.US, format, arg));
+		}
+	}
+
+	public static void d(String tag, String format, Object arg1, Object arg2) {
+		if (level <= Log.DEBUG) {
+			Log.d(tag, String.format(Locale.US, format, arg1, arg2));
+		}
+	}
+
+	/**
+	 * Wrap a region of a byte array so it is rendered as hex only when formatted.
+	 *
+	 * @param data
+	 * @param offset
+	 * @param length
+	 * @return
+	 */
+	public static Object hex(byte[] data, int offset, int length) {
+		return new HexDump(data, offset, length);
+	}
+
+	/**
+	 * Render a region of a byte array as space separated hex.
+	 *
+	 * @param data
+	 * @param offset
+	 * @param length
+	 * @return
+	 */
+	public static String toHex(byte[] data, int offset, int length) {
+		if (length == 0) {
+			return "";
+		}
+		char[] chars = new char[length * 3 - 1];
+		for (int i = 0; i < length; i++) {
+			int value = data[offset + i] & 0xFF;
+			int index = i * 3;
+			chars[index] = HEX[value >>> 4];
+			chars[index + 1] = HEX[value & 0x0F];
+			if (index + 2 < chars.length) {
+				chars[index + 2] = ' ';
+			}
+		}
+		return new String(chars);
+	}
+
+	/**
+	 * Defers hex formatting until the log message is built.
+	 */
+	private static class HexDump {
+
+		private final byte[] data;
+
+		private final int offset;
+
+		private final int length;
+
+		HexDump(byte[] data, int offset, int length) {
+			this.data = data;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		@Override
+		public String toString() {
+			return toHex(data, offset, length);
+		}
+	}
+}
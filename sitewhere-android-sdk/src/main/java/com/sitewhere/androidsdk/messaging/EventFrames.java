@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) SiteWhere, LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.androidsdk.messaging;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Framing used to carry several encoded events in a single payload. Each frame is prefixed with
+ * its length as a protobuf-style varint, so a batch is simply a sequence of length-delimited
+ * event payloads.
+ */
+public final class EventFrames {
+
+	private EventFrames() {
+	}
+
+	/**
+	 * Append a frame to the given output stream.
+	 *
+	 * @param out
+	 * @param frame
+	 * @param offset
+	 * @param length
+	 */
+	public static void writeFrame(ByteArrayOutputStream out, byte[] frame, int offset, int length) {
+		writeFrameLength(out, length);
+		out.write(frame, offset, length);
+	}
+
+	/**
+	 * Write the length prefix for a frame whose bytes will be appended separately.
+	 *
+	 * @param out
+	 * @param length
+	 */
+	public static void writeFrameLength(ByteArrayOutputStream out, int length) {
+		int value = length;
+		while ((value & ~0x7F) != 0) {
+			out.write((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.write(value);
+	}
+
+	/**
+	 * Iterates over the frames in a batched payload without copying them.
+	 */
+	public static class Reader {
+
+		/** Batched payload */
+		private final byte[] frames;
+
+		/** Position of the next frame prefix */
+		private int position;
+
+		/** Offset of current frame */
+		private int offset;
+
+		/** Length of current frame */
+		private int length;
+
+		public Reader(byte[] frames) {
+			this.frames = frames;
+		}
+
+		/**
+		 * Move to the next frame.
+		 *
+		 * @return false if there are no more frames
+		 * @throws SiteWhereMessagingException if the payload is truncated or corrupt
+		 */
+		public boolean next() throws SiteWhereMessagingException {
+			if (position >= frames.length) {
+				return false;
+			}
+			int value = 0;
+			int shift = 0;
+			while (true) {
+				if ((position >= frames.length) || (shift > 28)) {
+					throw new SiteWhereMessagingException("Invalid frame length prefix.");
+				}
+				byte current = frames[position++];
+				value |= (current & 0x7F) << shift;
+				if ((current & 0x80) == 0) {
+					break;
+				}
+				shift += 7;
+			}
+			if ((value < 0) || (value > frames.length - position)) {
+				throw new SiteWhereMessagingException("Frame length exceeds batch payload.");
+			}
+			offset = position;
+			length = value;
+			position += value;
+			return true;
+		}
+
+		public byte[] getFrames() {
+			return frames;
+		}
+
+		public int getOffset() {
+			return offset;
+		}
+
+		public int getLength() {
+			return length;
+		}
+	}
+}
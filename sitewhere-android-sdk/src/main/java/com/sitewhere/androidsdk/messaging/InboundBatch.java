@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) SiteWhere, LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.androidsdk.messaging;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * Messages delivered to a client in a single call to {@link IFromSiteWhereV2#receivedBatch}.
+ * Entries are kept in the order they were received from SiteWhere.
+ */
+public class InboundBatch implements Parcelable {
+
+	/** Connected to SiteWhere */
+	public static final int CONNECTED = 0;
+
+	/** Disconnected from SiteWhere */
+	public static final int DISCONNECTED = 1;
+
+	/** System command for the device (payload is a {@link SystemCommand}) */
+	public static final int SYSTEM_COMMAND = 2;
+
+	/** Custom command for the device */
+	public static final int CUSTOM_COMMAND = 3;
+
+	/** System command for a child device */
+	public static final int CHILD_SYSTEM_COMMAND = 4;
+
+	/** Custom command for a child device */
+	public static final int CHILD_CUSTOM_COMMAND = 5;
+
+	/** Event message from a subscribed topic */
+	public static final int EVENT_MESSAGE = 6;
+
+	/** Type of each entry */
+	private final int[] kinds;
+
+	/** Topic for each entry */
+	private final String[] topics;
+
+	/** Device token for each entry */
+	private final String[] deviceTokens;
+
+	/** Payload for each entry */
+	private final Object[] payloads;
+
+	/** Number of entries */
+	private int size;
+
+	public InboundBatch(int capacity) {
+		this.kinds = new int[capacity];
+		this.topics = new String[capacity];
+		this.deviceTokens = new String[capacity];
+		this.payloads = new Object[capacity];
+	}
+
+	protected InboundBatch(Parcel parcel) {
+		this(parcel.readInt());
+		for (int i = 0; i < kinds.length; i++) {
+			int kind = parcel.readInt();
+			String topic = parcel.readString();
+			String deviceToken = parcel.readString();
+			Object payload;
+			if (kind == SYSTEM_COMMAND) {
+				payload = SystemCommand.CREATOR.createFromParcel(parcel);
+			} else {
+				payload = parcel.createByteArray();
+			}
+			add(kind, topic, deviceToken, payload);
+		}
+	}
+
+	/**
+	 * Add an entry.
+	 *
+	 * @param kind
+	 * @param topic
+	 * @param deviceToken
+	 * @param payload byte array, or {@link SystemCommand} for system commands
+	 */
+	public void add(int kind, String topic, String deviceToken, Object payload) {
+		kinds[size] = kind;
+		topics[size] = topic;
+		deviceTokens[size] = deviceToken;
+		payloads[size] = payload;
+		size++;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public int getKind(int index) {
+		return kinds[index];
+	}
+
+	public String getTopic(int index) {
+		return topics[index];
+	}
+
+	public String getDeviceToken(int index) {
+		return deviceTokens[index];
+	}
+
+	/**
+	 * Get raw payload for an entry. For system commands this is the undecoded command.
+	 *
+	 * @param index
+	 * @return
+	 */
+	public byte[] getPayload(int index) {
+		Object payload = payloads[index];
+		return (payload instanceof SystemCommand) ? ((SystemCommand) payload).getPayload() : (byte[]) payload;
+	}
+
+	/**
+	 * Get decoded system command for an entry of type {@link #SYSTEM_COMMAND}.
+	 *
+	 * @param index
+	 * @return
+	 */
+	public SystemCommand getSystemCommand(int index) {
+		return (SystemCommand) payloads[index];
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see android.os.Parcelable#describeContents()
+	 */
+	@Override
+	public int describeContents() {
+		return 0;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see android.os.Parcelable#writeToParcel(android.os.Parcel, int)
+	 */
+	@Override
+	public void writeToParcel(Parcel parcel, int flags) {
+		parcel.writeInt(size);
+		for (int i = 0; i < size; i++) {
+			parcel.writeInt(kinds[i]);
+			parcel.writeString(topics[i]);
+			parcel.writeString(deviceTokens[i]);
+			if (kinds[i] == SYSTEM_COMMAND) {
+				((SystemCommand) payloads[i]).writeToParcel(parcel, flags);
+			} else {
+				parcel.writeByteArray((byte[]) payloads[i]);
+			}
+		}
+	}
+
+	public static final Parcelable.Creator<InboundBatch> CREATOR = new Parcelable.Creator<InboundBatch>() {
+		public InboundBatch createFromParcel(Parcel in) {
+			return new InboundBatch(in);
+		}
+
+		public InboundBatch[] newArray(int size) {
+			return new InboundBatch[size];
+		}
+	};
+}
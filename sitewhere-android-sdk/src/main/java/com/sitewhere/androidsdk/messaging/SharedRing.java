@@ -0,0 +1,350 @@
+/*
+ * Copyright (c) SiteWhere, LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.androidsdk.messaging;
+
+import android.annotation.TargetApi;
+import android.os.Parcel;
+import android.os.Parcelable;
+import android.os.SharedMemory;
+import android.system.ErrnoException;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Single-producer/single-consumer ring of payloads in shared memory. The client writes payloads
+ * and the service reads them, so outbound events cross the process boundary without a binder
+ * transaction each. The consumer keeps reading until the ring is empty, so the producer only has
+ * to signal it when a write finds the ring empty.
+ * <p>
+ * Head and tail are byte positions kept as 32-bit values in the shared header, so they are read
+ * and written in one access even on 32-bit devices. They wrap around, and only their difference
+ * is used. The data area is a power of two in size, so a position maps to the same offset before
+ * and after wrapping. Each entry is a four byte length followed by the payload, wrapping around
+ * the end of the data area. Writes must be serialized by the caller, as must reads.
+ * <p>
+ * Each side stores its own position and then loads the other across a full barrier (see
+ * {@link #fence()}), so a write racing with the end of a drain either is seen by the reader or
+ * finds the ring empty and signals.
+ */
+@TargetApi(27)
+public class SharedRing implements Parcelable, Closeable {
+
+	/** Result of a write that found the ring full */
+	public static final int FULL = -1;
+
+	/** Result of a write to a ring that already had unread payloads */
+	public static final int WRITTEN = 0;
+
+	/** Result of a write to an empty ring (the consumer should be signalled) */
+	public static final int SIGNAL = 1;
+
+	/** Marks a header in the shared area */
+	private static final int MAGIC = 0x53575247;
+
+	/** Offset of data capacity in header */
+	private static final int CAPACITY_OFFSET = 4;
+
+	/** Offset of read position (on its own cache line) */
+	private static final int HEAD_OFFSET = 64;
+
+	/** Offset of write position (on its own cache line) */
+	private static final int TAIL_OFFSET = 128;
+
+	/** Offset of data area */
+	private static final int DATA_OFFSET = 192;
+
+	/** Size of length prefix for each entry */
+	private static final int PREFIX_LENGTH = 4;
+
+	/** Largest data area (keeps the distance between positions positive) */
+	private static final int MAX_CAPACITY = 1 << 30;
+
+	/** Flag in length prefix for entries holding several length-prefixed events */
+	private static final int BATCH_FLAG = 0x80000000;
+
+	/** Written to order memory accesses against the other process (see {@link #fence()}) */
+	private static volatile int sFence;
+
+	/** Shared memory region */
+	private final SharedMemory memory;
+
+	/** Mapping of the region in this process */
+	private ByteBuffer buffer;
+
+	/** Size of data area */
+	private int capacity;
+
+	/** Length prefix of the entry being written (writes are serialized) */
+	private final byte[] writePrefix = new byte[PREFIX_LENGTH];
+
+	/** Length prefix of the entry being read (reads are serialized) */
+	private final byte[] readPrefix = new byte[PREFIX_LENGTH];
+
+	private SharedRing(SharedMemory memory) {
+		this.memory = memory;
+	}
+
+	/**
+	 * Create a new ring and map it for writing.
+	 *
+	 * @param capacity size of data area in bytes (rounded up to a power of two)
+	 * @return
+	 * @throws IOException
+	 */
+	public static SharedRing create(int capacity) throws IOException {
+		if ((capacity <= PREFIX_LENGTH) || (capacity > MAX_CAPACITY)) {
+			throw new IllegalArgumentException("Invalid shared ring capacity: " + capacity);
+		}
+		int size = Integer.highestOneBit(capacity);
+		if (size < capacity) {
+			size <<= 1;
+		}
+		try {
+			SharedRing ring = new SharedRing(SharedMemory.create("sitewhere-ring", DATA_OFFSET + size));
+			ring.buffer = ring.memory.mapReadWrite();
+			ring.capacity = size;
+			ring.buffer.putInt(0, MAGIC);
+			ring.buffer.putInt(CAPACITY_OFFSET, size);
+			ring.buffer.putInt(HEAD_OFFSET, 0);
+			ring.buffer.putInt(TAIL_OFFSET, 0);
+			return ring;
+		} catch (ErrnoException e) {
+			throw new IOException("Unable to create shared ring.", e);
+		}
+	}
+
+	/**
+	 * Map a ring received from another process.
+	 *
+	 * @throws IOException
+	 */
+	public void map() throws IOException {
+		if (buffer != null) {
+			return;
+		}
+		try {
+			buffer = memory.mapReadWrite();
+		} catch (ErrnoException e) {
+			throw new IOException("Unable to map shared ring.", e);
+		}
+		capacity = buffer.getInt(CAPACITY_OFFSET);
+		if ((buffer.getInt(0) != MAGIC) || (capacity <= PREFIX_LENGTH) || (capacity > MAX_CAPACITY)
+				|| (Integer.bitCount(capacity) != 1) || (DATA_OFFSET + capacity > buffer.capacity())) {
+			close();
+			throw new IOException("Shared ring has an invalid header.");
+		}
+	}
+
+	/**
+	 * Get the largest payload that fits in the ring.
+	 *
+	 * @return
+	 */
+	public int getMaxPayload() {
+		return capacity - PREFIX_LENGTH;
+	}
+
+	/**
+	 * Write a payload to the ring.
+	 *
+	 * @param payload
+	 * @param offset
+	 * @param length
+	 * @param batch true if the payload holds several length-prefixed events
+	 * @return {@link #SIGNAL}, {@link #WRITTEN} or {@link #FULL}
+	 */
+	public int write(byte[] payload, int offset, int length, boolean batch) {
+		if (length > getMaxPayload()) {
+			throw new IllegalArgumentException("Payload of " + length + " bytes does not fit in shared ring.");
+		}
+		int tail = buffer.getInt(TAIL_OFFSET);
+		fence();
+		int head = buffer.getInt(HEAD_OFFSET);
+		if ((tail - head) + PREFIX_LENGTH + length > capacity) {
+			return FULL;
+		}
+		int prefix = batch ? (length | BATCH_FLAG) : length;
+		writePrefix[0] = (byte) (prefix >>> 24);
+		writePrefix[1] = (byte) (prefix >>> 16);
+		writePrefix[2] = (byte) (prefix >>> 8);
+		writePrefix[3] = (byte) prefix;
+		copyIn(tail, writePrefix, 0, PREFIX_LENGTH);
+		copyIn(tail + PREFIX_LENGTH, payload, offset, length);
+
+		// Publish the entry, then check whether the consumer had already caught up.
+		fence();
+		buffer.putInt(TAIL_OFFSET, tail + PREFIX_LENGTH + length);
+		fence();
+		head = buffer.getInt(HEAD_OFFSET);
+		return (head == tail) ? SIGNAL : WRITTEN;
+	}
+
+	/**
+	 * Read payloads until the ring is empty.
+	 *
+	 * @param reader
+	 * @return number of payloads read
+	 * @throws IOException if the ring holds an invalid entry
+	 */
+	public int drain(Reader reader) throws IOException {
+		int count = 0;
+		byte[] header = readPrefix;
+		int head = buffer.getInt(HEAD_OFFSET);
+		while (true) {
+			int tail = buffer.getInt(TAIL_OFFSET);
+			fence();
+			int available = tail - head;
+			if (available == 0) {
+				return count;
+			}
+			if ((available < 0) || (available > capacity)) {
+				throw new IOException("Shared ring holds invalid positions.");
+			}
+			while (available > 0) {
+				if (available < PREFIX_LENGTH) {
+					throw new IOException("Shared ring holds an invalid entry.");
+				}
+				copyOut(head, header, PREFIX_LENGTH);
+				int prefix = ((header[0] & 0xff) << 24) | ((header[1] & 0xff) << 16) | ((header[2] & 0xff) << 8)
+						| (header[3] & 0xff);
+				int length = prefix & ~BATCH_FLAG;
+				if (length > available - PREFIX_LENGTH) {
+					throw new IOException("Shared ring holds an invalid entry.");
+				}
+				byte[] payload = new byte[length];
+				copyOut(head + PREFIX_LENGTH, payload, length);
+				head += PREFIX_LENGTH + length;
+				available -= PREFIX_LENGTH + length;
+
+				// Release the space before handing off the payload.
+				fence();
+				buffer.putInt(HEAD_OFFSET, head);
+				fence();
+				reader.onPayload(payload, (prefix & BATCH_FLAG) != 0);
+				count++;
+			}
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.io.Closeable#close()
+	 */
+	@Override
+	public void close() {
+		if (buffer != null) {
+			SharedMemory.unmap(buffer);
+			buffer = null;
+		}
+		memory.close();
+	}
+
+	/**
+	 * Copy bytes into the data area, wrapping around the end.
+	 *
+	 * @param position
+	 * @param source
+	 * @param offset
+	 * @param length
+	 */
+	private void copyIn(int position, byte[] source, int offset, int length) {
+		int index = position & (capacity - 1);
+		int first = Math.min(length, capacity - index);
+		buffer.position(DATA_OFFSET + index);
+		buffer.put(source, offset, first);
+		if (first < length) {
+			buffer.position(DATA_OFFSET);
+			buffer.put(source, offset + first, length - first);
+		}
+	}
+
+	/**
+	 * Copy bytes out of the data area, wrapping around the end.
+	 *
+	 * @param position
+	 * @param target
+	 * @param length
+	 */
+	private void copyOut(int position, byte[] target, int length) {
+		int index = position & (capacity - 1);
+		int first = Math.min(length, capacity - index);
+		buffer.position(DATA_OFFSET + index);
+		buffer.get(target, 0, first);
+		if (first < length) {
+			buffer.position(DATA_OFFSET);
+			buffer.get(target, first, length - first);
+		}
+	}
+
+	/**
+	 * Full barrier for accesses to the mapping, since there are no explicit fences before API 33.
+	 * A volatile write is a release and the volatile read after it an acquire, and the two can
+	 * not be reordered with each other, so no access before the fence can move past one after it.
+	 *
+	 * @return value read, which is not used
+	 */
+	private static int fence() {
+		sFence = 0;
+		return sFence;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see android.os.Parcelable#describeContents()
+	 */
+	@Override
+	public int describeContents() {
+		return CONTENTS_FILE_DESCRIPTOR;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see android.os.Parcelable#writeToParcel(android.os.Parcel, int)
+	 */
+	@Override
+	public void writeToParcel(Parcel parcel, int flags) {
+		parcel.writeParcelable(memory, flags);
+	}
+
+	public static final Parcelable.Creator<SharedRing> CREATOR = new Parcelable.Creator<SharedRing>() {
+		public SharedRing createFromParcel(Parcel in) {
+			return new SharedRing(in.<SharedMemory> readParcelable(SharedMemory.class.getClassLoader()));
+		}
+
+		public SharedRing[] newArray(int size) {
+			return new SharedRing[size];
+		}
+	};
+
+	/**
+	 * Receives payloads read from the ring.
+	 */
+	public interface Reader {
+
+		/**
+		 * Called for each payload in the order written.
+		 *
+		 * @param payload
+		 * @param batch true if the payload holds several length-prefixed events
+		 */
+		public void onPayload(byte[] payload, boolean batch);
+	}
+}
@@ -0,0 +1,268 @@
+/*
+ * Copyright (c) SiteWhere, LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.androidsdk.messaging;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import com.sitewhere.communication.protobuf.proto.SiteWhere.Device;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+/**
+ * System command decoded once by the service and passed to every client. Registration and
+ * device stream acknowledgements are decoded into fields. Other commands (such as device stream
+ * data) are left for the client to decode from the raw payload, which is always included.
+ * <p>
+ * Clients in the same process as the service receive the same instance, so it must be treated
+ * as read only.
+ */
+public class SystemCommand implements Parcelable {
+
+	/** Marks an enum value that is not present */
+	private static final int NONE = -1;
+
+	/** Command number from {@link Device.Command} */
+	private final int command;
+
+	/** Originator from header */
+	private final String originator;
+
+	/** Nested device path from header */
+	private final String nestedPath;
+
+	/** Nested device spec from header */
+	private final String nestedSpec;
+
+	/** Registration state number for {@link Device.Command#REGISTRATION_ACK} */
+	private final int registrationState;
+
+	/** Registration error number for {@link Device.Command#REGISTRATION_ACK} */
+	private final int registrationError;
+
+	/** Error message for {@link Device.Command#REGISTRATION_ACK} */
+	private final String errorMessage;
+
+	/** Stream id for {@link Device.Command#DEVICE_STREAM_ACK} */
+	private final String streamId;
+
+	/** Stream state number for {@link Device.Command#DEVICE_STREAM_ACK} */
+	private final int streamState;
+
+	/** Encoded command as received from SiteWhere */
+	private final byte[] payload;
+
+	private SystemCommand(int command, String originator, String nestedPath, String nestedSpec,
+			int registrationState, int registrationError, String errorMessage, String streamId, int streamState,
+			byte[] payload) {
+		this.command = command;
+		this.originator = originator;
+		this.nestedPath = nestedPath;
+		this.nestedSpec = nestedSpec;
+		this.registrationState = registrationState;
+		this.registrationError = registrationError;
+		this.errorMessage = errorMessage;
+		this.streamId = streamId;
+		this.streamState = streamState;
+		this.payload = payload;
+	}
+
+	protected SystemCommand(Parcel parcel) {
+		this.command = parcel.readInt();
+		this.originator = parcel.readString();
+		this.nestedPath = parcel.readString();
+		this.nestedSpec = parcel.readString();
+		this.registrationState = parcel.readInt();
+		this.registrationError = parcel.readInt();
+		this.errorMessage = parcel.readString();
+		this.streamId = parcel.readString();
+		this.streamState = parcel.readInt();
+		this.payload = parcel.createByteArray();
+	}
+
+	/**
+	 * Decode a system command payload. Optional fields that are not present are decoded as null.
+	 *
+	 * @param payload
+	 * @return
+	 * @throws IOException if the header or body can not be decoded
+	 * @throws IllegalArgumentException if the command or a state is not known to this version
+	 */
+	public static SystemCommand decode(byte[] payload) throws IOException {
+		ByteArrayInputStream stream = new ByteArrayInputStream(payload);
+		Device.Header header = Device.Header.parseDelimitedFrom(stream);
+		if (header == null) {
+			throw new IOException("System command payload is empty.");
+		}
+		int command = header.getCommand().getNumber();
+		int registrationState = NONE;
+		int registrationError = NONE;
+		String errorMessage = null;
+		String streamId = null;
+		int streamState = NONE;
+		switch (header.getCommand()) {
+		case REGISTRATION_ACK: {
+			Device.RegistrationAck ack = Device.RegistrationAck.parseDelimitedFrom(stream);
+			if (ack == null) {
+				throw new IOException("Registration acknowledgement is missing.");
+			}
+			registrationState = ack.getState().getNumber();
+			registrationError = ack.getErrorType().getNumber();
+			errorMessage = ack.hasErrorMessage() ? ack.getErrorMessage().getValue() : null;
+			break;
+		}
+		case DEVICE_STREAM_ACK: {
+			Device.DeviceStreamAck ack = Device.DeviceStreamAck.parseDelimitedFrom(stream);
+			if (ack == null) {
+				throw new IOException("Device stream acknowledgement is missing.");
+			}
+			streamId = ack.hasStreamId() ? ack.getStreamId().getValue() : null;
+			streamState = ack.getState().getNumber();
+			break;
+		}
+		default:
+			break;
+		}
+		return new SystemCommand(command, header.hasOriginator() ? header.getOriginator().getValue() : null,
+				header.hasNestedPath() ? header.getNestedPath().getValue() : null,
+				header.hasNestedSpec() ? header.getNestedSpec().getValue() : null, registrationState,
+				registrationError, errorMessage, streamId, streamState, payload);
+	}
+
+	/**
+	 * Wrap a payload that could not be decoded.
+	 *
+	 * @param payload
+	 * @return
+	 */
+	public static SystemCommand undecoded(byte[] payload) {
+		return new SystemCommand(NONE, null, null, null, NONE, NONE, null, null, NONE, payload);
+	}
+
+	/**
+	 * Indicates whether the header was decoded.
+	 *
+	 * @return
+	 */
+	public boolean isDecoded() {
+		return command != NONE;
+	}
+
+	/**
+	 * Get the command, or null if the payload could not be decoded.
+	 *
+	 * @return
+	 */
+	public Device.Command getCommand() {
+		return (command != NONE) ? Device.Command.forNumber(command) : null;
+	}
+
+	public String getOriginator() {
+		return originator;
+	}
+
+	public String getNestedPath() {
+		return nestedPath;
+	}
+
+	public String getNestedSpec() {
+		return nestedSpec;
+	}
+
+	/**
+	 * Get registration state for a registration acknowledgement.
+	 *
+	 * @return
+	 */
+	public Device.RegistrationAckState getRegistrationState() {
+		return (registrationState != NONE) ? Device.RegistrationAckState.forNumber(registrationState) : null;
+	}
+
+	/**
+	 * Get error type for a failed registration.
+	 *
+	 * @return
+	 */
+	public Device.RegistrationAckError getRegistrationError() {
+		return (registrationError != NONE) ? Device.RegistrationAckError.forNumber(registrationError) : null;
+	}
+
+	public String getErrorMessage() {
+		return errorMessage;
+	}
+
+	public String getStreamId() {
+		return streamId;
+	}
+
+	/**
+	 * Get state for a device stream acknowledgement.
+	 *
+	 * @return
+	 */
+	public Device.DeviceStreamAckState getStreamState() {
+		return (streamState != NONE) ? Device.DeviceStreamAckState.forNumber(streamState) : null;
+	}
+
+	/**
+	 * Get the encoded command.
+	 *
+	 * @return
+	 */
+	public byte[] getPayload() {
+		return payload;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see android.os.Parcelable#describeContents()
+	 */
+	@Override
+	public int describeContents() {
+		return 0;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see android.os.Parcelable#writeToParcel(android.os.Parcel, int)
+	 */
+	@Override
+	public void writeToParcel(Parcel parcel, int flags) {
+		parcel.writeInt(command);
+		parcel.writeString(originator);
+		parcel.writeString(nestedPath);
+		parcel.writeString(nestedSpec);
+		parcel.writeInt(registrationState);
+		parcel.writeInt(registrationError);
+		parcel.writeString(errorMessage);
+		parcel.writeString(streamId);
+		parcel.writeInt(streamState);
+		parcel.writeByteArray(payload);
+	}
+
+	public static final Parcelable.Creator<SystemCommand> CREATOR = new Parcelable.Creator<SystemCommand>() {
+		public SystemCommand createFromParcel(Parcel in) {
+			return new SystemCommand(in);
+		}
+
+		public SystemCommand[] newArray(int size) {
+			return new SystemCommand[size];
+		}
+	};
+}
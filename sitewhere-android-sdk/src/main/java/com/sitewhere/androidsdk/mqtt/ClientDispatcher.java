@@ -0,0 +1,467 @@
+/*
+ * Copyright (c) SiteWhere, LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.androidsdk.mqtt;
+
+import android.os.IBinder;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.sitewhere.androidsdk.messaging.IFromSiteWhere;
+import com.sitewhere.androidsdk.messaging.IFromSiteWhereV2;
+import com.sitewhere.androidsdk.messaging.InboundBatch;
+import com.sitewhere.androidsdk.messaging.SystemCommand;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Delivers notifications to a single registered client on its own thread. The MQTT receive
+ * thread only places notifications in a bounded ring buffer, so a slow or hung client delays
+ * nobody but itself. Ring slots are allocated once, so queueing a notification does not allocate.
+ * When the buffer is full, the {@link DeliveryOverflowPolicy} decides what is discarded. A runtime
+ * exception thrown by the client, either directly for a client in the service process or re-thrown
+ * by the binder, is logged and the notification is skipped, so it can not stop the worker thread.
+ */
+public class ClientDispatcher implements IBinder.DeathRecipient {
+
+	/** Client connected to SiteWhere */
+	static final int CONNECTED = InboundBatch.CONNECTED;
+
+	/** Client disconnected from SiteWhere */
+	static final int DISCONNECTED = InboundBatch.DISCONNECTED;
+
+	/** System command for the device */
+	static final int SYSTEM_COMMAND = InboundBatch.SYSTEM_COMMAND;
+
+	/** Custom command for the device */
+	static final int CUSTOM_COMMAND = InboundBatch.CUSTOM_COMMAND;
+
+	/** System command for a child device */
+	static final int CHILD_SYSTEM_COMMAND = InboundBatch.CHILD_SYSTEM_COMMAND;
+
+	/** Custom command for a child device */
+	static final int CHILD_CUSTOM_COMMAND = InboundBatch.CHILD_CUSTOM_COMMAND;
+
+	/** Event message from a subscribed topic */
+	static final int EVENT_MESSAGE = InboundBatch.EVENT_MESSAGE;
+
+	/** Interface for calls to the client */
+	private final IFromSiteWhere callback;
+
+	/** Interface for batched calls to the client (null for version 1 clients) */
+	private final IFromSiteWhereV2 batchCallback;
+
+	/** Indicates the client accepts decoded system commands */
+	private final boolean decodedCommands;
+
+	/** Most messages delivered in one batch */
+	private final int maxBatchMessages;
+
+	/** Approximate most bytes delivered in one batch */
+	private final int maxBatchBytes;
+
+	/** Time to wait for more messages before sending a partial batch */
+	private final long batchWindowMs;
+
+	/** Binder for client process */
+	private final IBinder binder;
+
+	/** Manager notified when the client must be removed */
+	private final RegistrationManager manager;
+
+	/** Action taken when the queue is full */
+	private final DeliveryOverflowPolicy overflowPolicy;
+
+	/** Notification type for each slot */
+	private final int[] kinds;
+
+	/** Topic for each slot */
+	private final String[] topics;
+
+	/** Device token for each slot */
+	private final String[] deviceTokens;
+
+	/** Payload for each slot (raw bytes or a decoded command) */
+	private final Object[] payloads;
+
+	/** Time each slot was queued */
+	private final long[] queuedAt;
+
+	/** Index of oldest queued slot */
+	private int head;
+
+	/** Number of queued slots */
+	private int count;
+
+	/** Indicates dispatcher has been stopped */
+	private boolean stopped;
+
+	/** Number of notifications delivered */
+	private long delivered;
+
+	/** Number of notifications discarded because the queue was full */
+	private long dropped;
+
+	/** Time taken to deliver the most recent notification */
+	private long lastLagMs;
+
+	/** Longest time taken to deliver a notification */
+	private long maxLagMs;
+
+	/** Thread that calls the client */
+	private final Thread worker;
+
+	/** Event topic filters the client subscribed to (guarded by the registration manager) */
+	final Set<String> subscriptions = new HashSet<String>();
+
+	/** Child device tokens the client added (guarded by the registration manager) */
+	final Set<String> childDevices = new HashSet<String>();
+
+	ClientDispatcher(RegistrationManager manager, IFromSiteWhere callback, IBinder binder, int capacity,
+			DeliveryOverflowPolicy overflowPolicy) {
+		this(manager, callback, null, false, binder, capacity, overflowPolicy, 1, 0, 0);
+	}
+
+	ClientDispatcher(RegistrationManager manager, IFromSiteWhere callback, IFromSiteWhereV2 batchCallback,
+			boolean decodedCommands, IBinder binder, int capacity, DeliveryOverflowPolicy overflowPolicy,
+			int maxBatchMessages, int maxBatchBytes, long batchWindowMs) {
+		this.manager = manager;
+		this.callback = callback;
+		this.batchCallback = batchCallback;
+		this.decodedCommands = decodedCommands;
+		this.maxBatchMessages = maxBatchMessages;
+		this.maxBatchBytes = maxBatchBytes;
+		this.batchWindowMs = batchWindowMs;
+		this.binder = binder;
+		this.overflowPolicy = overflowPolicy;
+		this.kinds = new int[capacity];
+		this.topics = new String[capacity];
+		this.deviceTokens = new String[capacity];
+		this.payloads = new Object[capacity];
+		this.queuedAt = new long[capacity];
+		this.worker = new Thread((batchCallback != null) ? new BatchWorker() : new Worker(), MqttService.TAG + "-client");
+		worker.setDaemon(true);
+	}
+
+	/**
+	 * Start delivering notifications.
+	 */
+	void start() {
+		worker.start();
+	}
+
+	/**
+	 * Stop delivering notifications and discard anything still queued.
+	 */
+	void stop() {
+		synchronized (this) {
+			stopped = true;
+			while (count > 0) {
+				release(head);
+				head = (head + 1) % kinds.length;
+				count--;
+			}
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Queue a notification for the client.
+	 *
+	 * @param kind
+	 * @param topic
+	 * @param deviceToken
+	 * @param payload
+	 */
+	void enqueue(int kind, String topic, String deviceToken, Object payload) {
+		boolean disconnect = false;
+		synchronized (this) {
+			if (stopped) {
+				return;
+			}
+			if (count == kinds.length) {
+				dropped++;
+				switch (overflowPolicy) {
+				case DropNewest:
+					return;
+				case Disconnect:
+					disconnect = true;
+					break;
+				default:
+					release(head);
+					head = (head + 1) % kinds.length;
+					count--;
+				}
+			}
+			if (!disconnect) {
+				int slot = (head + count) % kinds.length;
+				kinds[slot] = kind;
+				topics[slot] = topic;
+				deviceTokens[slot] = deviceToken;
+				payloads[slot] = payload;
+				queuedAt[slot] = SystemClock.elapsedRealtime();
+				count++;
+				notifyAll();
+			}
+		}
+		if (disconnect) {
+			Log.w(MqttService.TAG, "Client is not keeping up with notifications. Removing from list.");
+			manager.remove(binder);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see android.os.IBinder.DeathRecipient#binderDied()
+	 */
+	@Override
+	public void binderDied() {
+		Log.d(MqttService.TAG, "Client process died. Removing from list.");
+		manager.remove(binder);
+	}
+
+	/**
+	 * Get a snapshot of delivery metrics.
+	 *
+	 * @return
+	 */
+	public synchronized Metrics getMetrics() {
+		long oldest = (count > 0) ? SystemClock.elapsedRealtime() - queuedAt[head] : 0;
+		return new Metrics(count, delivered, dropped, lastLagMs, maxLagMs, oldest);
+	}
+
+	IBinder getBinder() {
+		return binder;
+	}
+
+	private void release(int slot) {
+		topics[slot] = null;
+		deviceTokens[slot] = null;
+		payloads[slot] = null;
+	}
+
+	/**
+	 * Make the binder call for a notification.
+	 */
+	private void deliver(int kind, String topic, String deviceToken, Object payload) throws RemoteException {
+		switch (kind) {
+		case CONNECTED:
+			callback.connected();
+			break;
+		case DISCONNECTED:
+			callback.disconnected();
+			break;
+		case SYSTEM_COMMAND:
+			if (decodedCommands) {
+				callback.receivedDecodedSystemCommand((SystemCommand) payload);
+			} else {
+				callback.receivedSystemCommand(((SystemCommand) payload).getPayload());
+			}
+			break;
+		case CUSTOM_COMMAND:
+			callback.receivedCustomCommand((byte[]) payload);
+			break;
+		case CHILD_SYSTEM_COMMAND:
+			callback.receivedChildSystemCommand(deviceToken, (byte[]) payload);
+			break;
+		case CHILD_CUSTOM_COMMAND:
+			callback.receivedChildCustomCommand(deviceToken, (byte[]) payload);
+			break;
+		case EVENT_MESSAGE:
+			callback.receivedEventMessage(topic, (byte[]) payload);
+			break;
+		}
+	}
+
+	/**
+	 * Takes queued notifications in order and calls the client.
+	 */
+	private class Worker implements Runnable {
+
+		@Override
+		public void run() {
+			while (true) {
+				int kind;
+				String topic;
+				String deviceToken;
+				Object payload;
+				long queued;
+				synchronized (ClientDispatcher.this) {
+					while ((count == 0) && !stopped) {
+						try {
+							ClientDispatcher.this.wait();
+						} catch (InterruptedException e) {
+							return;
+						}
+					}
+					if (stopped) {
+						return;
+					}
+					kind = kinds[head];
+					topic = topics[head];
+					deviceToken = deviceTokens[head];
+					payload = payloads[head];
+					queued = queuedAt[head];
+					release(head);
+					head = (head + 1) % kinds.length;
+					count--;
+				}
+				try {
+					deliver(kind, topic, deviceToken, payload);
+				} catch (RemoteException e) {
+					Log.w(MqttService.TAG, "Unable to send message to client. Removing from list.", e);
+					manager.remove(binder);
+					return;
+				} catch (RuntimeException e) {
+					Log.e(MqttService.TAG, "Client failed to handle message. Skipping it.", e);
+					continue;
+				}
+				long lag = SystemClock.elapsedRealtime() - queued;
+				synchronized (ClientDispatcher.this) {
+					delivered++;
+					lastLagMs = lag;
+					maxLagMs = Math.max(maxLagMs, lag);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Delivers queued notifications in batches through the version 2 interface. After the first
+	 * notification arrives, waits up to the batch window for more before sending, unless the batch
+	 * is already full. Calls are oneway, so the worker does not wait for the client to process
+	 * them.
+	 */
+	private class BatchWorker implements Runnable {
+
+		@Override
+		public void run() {
+			while (true) {
+				InboundBatch batch;
+				long oldest;
+				synchronized (ClientDispatcher.this) {
+					try {
+						while ((count == 0) && !stopped) {
+							ClientDispatcher.this.wait();
+						}
+						long deadline = SystemClock.elapsedRealtime() + batchWindowMs;
+						long remaining = batchWindowMs;
+						while ((count < maxBatchMessages) && (remaining > 0) && !stopped) {
+							ClientDispatcher.this.wait(remaining);
+							remaining = deadline - SystemClock.elapsedRealtime();
+						}
+					} catch (InterruptedException e) {
+						return;
+					}
+					if (stopped) {
+						return;
+					}
+					oldest = queuedAt[head];
+					batch = new InboundBatch(Math.min(count, maxBatchMessages));
+					int bytes = 0;
+					while ((count > 0) && (batch.size() < maxBatchMessages)
+							&& ((batch.size() == 0) || (bytes < maxBatchBytes))) {
+						Object payload = payloads[head];
+						if (payload instanceof byte[]) {
+							bytes += ((byte[]) payload).length;
+						} else if (payload instanceof SystemCommand) {
+							bytes += ((SystemCommand) payload).getPayload().length;
+						}
+						batch.add(kinds[head], topics[head], deviceTokens[head], payload);
+						release(head);
+						head = (head + 1) % kinds.length;
+						count--;
+					}
+				}
+				try {
+					batchCallback.receivedBatch(batch);
+				} catch (RemoteException e) {
+					Log.w(MqttService.TAG, "Unable to send messages to client. Removing from list.", e);
+					manager.remove(binder);
+					return;
+				} catch (RuntimeException e) {
+					Log.e(MqttService.TAG, "Client failed to handle " + batch.size() + " message(s). Skipping them.", e);
+					continue;
+				}
+				long lag = SystemClock.elapsedRealtime() - oldest;
+				synchronized (ClientDispatcher.this) {
+					delivered += batch.size();
+					lastLagMs = lag;
+					maxLagMs = Math.max(maxLagMs, lag);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Delivery metrics for a client at a point in time.
+	 */
+	public static class Metrics {
+
+		/** Notifications waiting to be delivered */
+		private final int queued;
+
+		/** Notifications delivered */
+		private final long delivered;
+
+		/** Notifications discarded because the queue was full */
+		private final long dropped;
+
+		/** Milliseconds between queueing and delivery of the most recent notification */
+		private final long lastLagMs;
+
+		/** Longest milliseconds between queueing and delivery */
+		private final long maxLagMs;
+
+		/** Milliseconds the oldest waiting notification has been queued */
+		private final long oldestQueuedMs;
+
+		Metrics(int queued, long delivered, long dropped, long lastLagMs, long maxLagMs, long oldestQueuedMs) {
+			this.queued = queued;
+			this.delivered = delivered;
+			this.dropped = dropped;
+			this.lastLagMs = lastLagMs;
+			this.maxLagMs = maxLagMs;
+			this.oldestQueuedMs = oldestQueuedMs;
+		}
+
+		public int getQueued() {
+			return queued;
+		}
+
+		public long getDelivered() {
+			return delivered;
+		}
+
+		public long getDropped() {
+			return dropped;
+		}
+
+		public long getLastLagMs() {
+			return lastLagMs;
+		}
+
+		public long getMaxLagMs() {
+			return maxLagMs;
+		}
+
+		public long getOldestQueuedMs() {
+			return oldestQueuedMs;
+		}
+	}
+}
@@ -0,0 +1,270 @@
+/*
+ * Copyright (c) SiteWhere, LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.androidsdk.mqtt;
+
+import android.util.Log;
+
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs all connection attempts on a single thread so they can never race. Reconnect requests that
+ * arrive while an attempt is scheduled or running are merged into it, and failed attempts are
+ * retried with capped exponential backoff. Every delay is drawn at random between zero and the
+ * backoff limit (full jitter), so devices that lose the network at the same moment spread their
+ * reconnects out instead of hitting the broker together.
+ */
+public class ConnectionStateMachine {
+
+	/** Default backoff limit after the first failure */
+	public static final long DEFAULT_BASE_DELAY_MS = 1000;
+
+	/** Default longest backoff limit */
+	public static final long DEFAULT_MAX_DELAY_MS = 5 * 60 * 1000;
+
+	/** Current connection state */
+	private final AtomicReference<MqttConnectionState> state = new AtomicReference<MqttConnectionState>(
+			MqttConnectionState.Disconnected);
+
+	/** Thread that runs all attempts and transitions */
+	private final ScheduledExecutorService executor = Executors
+			.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+				@Override
+				public Thread newThread(Runnable runnable) {
+					return new Thread(runnable, MqttService.TAG + "-connection");
+				}
+			});
+
+	/** Indicates a request is already queued for the executor */
+	private final AtomicBoolean requested = new AtomicBoolean();
+
+	/** Indicates a queued request should replace the current connection */
+	private final AtomicBoolean forced = new AtomicBoolean();
+
+	/** Performs the actual connection work */
+	private final Connector connector;
+
+	/** Backoff limit after the first failure */
+	private final long baseDelayMs;
+
+	/** Longest backoff limit */
+	private final long maxDelayMs;
+
+	/** Source of jitter */
+	private final Random random = new Random();
+
+	/** Consecutive failed attempts (only used on executor thread) */
+	private int failures;
+
+	/** Scheduled attempt or null if none (only used on executor thread) */
+	private ScheduledFuture<?> attempt;
+
+	public ConnectionStateMachine(Connector connector) {
+		this(connector, DEFAULT_BASE_DELAY_MS, DEFAULT_MAX_DELAY_MS);
+	}
+
+	public ConnectionStateMachine(Connector connector, long baseDelayMs, long maxDelayMs) {
+		this.connector = connector;
+		this.baseDelayMs = baseDelayMs;
+		this.maxDelayMs = maxDelayMs;
+	}
+
+	/**
+	 * Request a connection. Does nothing if connected or if an attempt is already scheduled or
+	 * running, unless forced. A forced request (for instance after settings change) replaces the
+	 * current connection, clears the backoff and connects without delay.
+	 *
+	 * @param force
+	 */
+	public void reconnect(boolean force) {
+		if (force) {
+			forced.set(true);
+		}
+		if (requested.compareAndSet(false, true)) {
+			submit(new Runnable() {
+
+				@Override
+				public void run() {
+					requested.set(false);
+					onReconnectRequested(forced.getAndSet(false));
+				}
+			});
+		}
+	}
+
+	/**
+	 * Drop the connection and wait for {@link #reconnect(boolean)} once the network is back.
+	 */
+	public void networkLost() {
+		submit(new Runnable() {
+
+			@Override
+			public void run() {
+				cancelAttempt();
+				connector.disconnect();
+				transition(MqttConnectionState.WaitingForNetwork);
+			}
+		});
+	}
+
+	/**
+	 * Stop making attempts. The connection itself is left for the caller to close.
+	 */
+	public void stop() {
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Get the current connection state.
+	 *
+	 * @return
+	 */
+	public MqttConnectionState getState() {
+		return state.get();
+	}
+
+	/**
+	 * Handle a merged reconnect request on the executor thread.
+	 *
+	 * @param force
+	 */
+	protected void onReconnectRequested(boolean force) {
+		if (force) {
+			cancelAttempt();
+			failures = 0;
+			schedule(0);
+			return;
+		}
+		if ((attempt != null) || connector.isConnected()) {
+			Log.d(MqttService.TAG, "Connection request merged with current state " + state.get() + ".");
+			return;
+		}
+		schedule(getDelay());
+	}
+
+	/**
+	 * Run a single connection attempt on the executor thread and schedule a retry if it fails.
+	 */
+	protected void runAttempt() {
+		attempt = null;
+		if (!connector.canConnect()) {
+			Log.d(MqttService.TAG, "Network unavailable. Waiting for it to come back before connecting.");
+			transition(MqttConnectionState.WaitingForNetwork);
+			return;
+		}
+		transition(MqttConnectionState.Connecting);
+		try {
+			connector.connect();
+			failures = 0;
+			transition(MqttConnectionState.Connected);
+		} catch (Exception e) {
+			failures++;
+			transition(MqttConnectionState.Disconnected);
+			long delay = getDelay();
+			Log.d(MqttService.TAG, "Connection attempt " + failures + " failed. Retrying in " + delay + "ms.", e);
+			schedule(delay);
+		}
+	}
+
+	/**
+	 * Get a random delay between zero and the backoff limit for the current number of failures.
+	 * The first attempt after a quiet period is spread over the base delay as well.
+	 *
+	 * @return
+	 */
+	protected long getDelay() {
+		long limit = baseDelayMs << Math.min(Math.max(failures - 1, 0), 30);
+		limit = Math.min(Math.max(limit, 0), maxDelayMs);
+		return (long) (random.nextDouble() * limit);
+	}
+
+	private void schedule(long delayMs) {
+		try {
+			attempt = executor.schedule(new Runnable() {
+
+				@Override
+				public void run() {
+					runAttempt();
+				}
+			}, delayMs, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			attempt = null;
+		}
+	}
+
+	private void cancelAttempt() {
+		if (attempt != null) {
+			attempt.cancel(false);
+			attempt = null;
+		}
+	}
+
+	private void submit(Runnable task) {
+		try {
+			executor.execute(task);
+		} catch (RejectedExecutionException e) {
+			Log.d(MqttService.TAG, "Connection state machine stopped. Ignoring request.");
+		}
+	}
+
+	private void transition(MqttConnectionState next) {
+		MqttConnectionState previous = state.getAndSet(next);
+		if (previous != next) {
+			Log.d(MqttService.TAG, "Connection state " + previous + " -> " + next + ".");
+		}
+	}
+
+	/**
+	 * Performs connection work on behalf of the state machine. All calls are made on the state
+	 * machine thread.
+	 */
+	public interface Connector {
+
+		/**
+		 * Indicates whether an attempt can be made (configured and network available).
+		 *
+		 * @return
+		 */
+		public boolean canConnect();
+
+		/**
+		 * Indicates whether there is a live connection.
+		 *
+		 * @return
+		 */
+		public boolean isConnected();
+
+		/**
+		 * Close any existing connection and connect.
+		 *
+		 * @throws Exception
+		 */
+		public void connect() throws Exception;
+
+		/**
+		 * Close any existing connection.
+		 */
+		public void disconnect();
+	}
+}
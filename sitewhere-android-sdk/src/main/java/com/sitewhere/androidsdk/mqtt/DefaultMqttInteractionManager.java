@@ -17,13 +17,34 @@ package com.sitewhere.androidsdk.mqtt;
 
 import android.util.Log;
 
+import com.sitewhere.androidsdk.logging.SiteWhereLog;
+
+import org.fusesource.hawtbuf.Buffer;
+import org.fusesource.hawtbuf.UTF8Buffer;
 import org.fusesource.mqtt.client.BlockingConnection;
+import org.fusesource.mqtt.client.FutureConnection;
 import org.fusesource.mqtt.client.Message;
 import org.fusesource.mqtt.client.QoS;
 import org.fusesource.mqtt.client.Topic;
 
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Default implementation of {@link IMqttInteractionManager} that has a single outbound topic sending events
@@ -34,7 +55,7 @@ import java.util.concurrent.Executors;
 public class DefaultMqttInteractionManager implements IMqttInteractionManager {
 
 	/** Topic name for outbound messages */
-	private static final String OUTBOUND_TOPIC = "SiteWhere/%s/input/protobuf";
+	static final String OUTBOUND_TOPIC = "SiteWhere/%s/input/protobuf";
 
 	/** Topic prefix for MQTT messages */
 	private static final String MQTT_TOPIC_PREFIX = "SiteWhere/";
@@ -42,6 +63,15 @@ public class DefaultMqttInteractionManager implements IMqttInteractionManager {
 	/** SiteWhere Defult tenant */
 	private static final String DEFAULT_TENANT_ID = "default";
 
+	/** Delay before retrying a failed batched subscription for the first time */
+	public static final long SUBSCRIBE_RETRY_BASE_MS = 1000;
+
+	/** Upper bound for delay between batched subscription retries */
+	public static final long SUBSCRIBE_RETRY_MAX_MS = 60 * 1000;
+
+	/** Encoding for saved session topics */
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
 	/** SiteWhere default MQTT Message Encoding */
 	private static final String DEFAULT_MESSAGE_ENCODING = "protobuf";
 
@@ -66,12 +96,60 @@ public class DefaultMqttInteractionManager implements IMqttInteractionManager {
 	/** Used to handle message processing */
 	private ExecutorService executor;
 
+	/** Sends subscriptions collected while connected */
+	private ScheduledExecutorService subscriber;
+
 	/** Message encoding */
 	private String encoding = DEFAULT_MESSAGE_ENCODING;
 
 	/** Default tenant id */
 	private String tenantId = DEFAULT_TENANT_ID;
 
+	/** Outbound topic for current tenant, computed on connect */
+	private UTF8Buffer outboundTopic;
+
+	/** Chooses QoS for publishes and subscriptions */
+	private MqttQosPolicy qosPolicy = new MqttQosPolicy();
+
+	/** Token for device that owns the connection */
+	private String deviceToken;
+
+	/** Child devices sharing the connection in gateway mode */
+	private final Set<String> childDevices = new LinkedHashSet<String>();
+
+	/** Event topics subscribed through {@link #subscribe(String)} */
+	private final SubscriptionRegistry eventTopics = new SubscriptionRegistry();
+
+	/** Filters the broker holds for the current session (also guards subscription changes) */
+	private final Set<String> sessionTopics = new LinkedHashSet<String>();
+
+	/** Directory where session filters are saved, or null to keep them in memory only */
+	private File sessionDirectory;
+
+	/** Client id of the session described by sessionTopics, or null before the first connect */
+	private String sessionClientId;
+
+	/** Failed batched subscriptions since one last succeeded (guarded by sessionTopics) */
+	private int subscribeFailures;
+
+	/** Routes inbound messages to handlers by topic */
+	private final TopicRouter<IMqttTopicHandler> router = new TopicRouter<IMqttTopicHandler>();
+
+	/** Handles custom commands for the device and its children */
+	private final IMqttTopicHandler customCommandHandler = new CommandHandler(false);
+
+	/** Handles system commands for the device and its children */
+	private final IMqttTopicHandler systemCommandHandler = new CommandHandler(true);
+
+	/** Handles messages on topics registered for events */
+	private final IMqttTopicHandler eventHandler = new IMqttTopicHandler() {
+
+		@Override
+		public void onMessage(String topic, byte[] payload) {
+			callback.onEventMessageReceived(topic, payload);
+		}
+	};
+
 	public DefaultMqttInteractionManager() {
 		super();
 		this.commandTopicName = MQTT_TOPIC_PREFIX  + "command/";
@@ -82,26 +160,83 @@ public class DefaultMqttInteractionManager implements IMqttInteractionManager {
 	 * (non-Javadoc)
 	 * 
 	 * @see com.sitewhere.android.mqtt.IMqttInteractionManager#connect(java.lang.String,
-	 * org.fusesource.mqtt.client.BlockingConnection)
+	 * java.lang.String, org.fusesource.mqtt.client.FutureConnection, boolean)
 	 */
 	@Override
-	public void connect(String tenantId, String deviceToken, BlockingConnection connection) throws SiteWhereMqttException {
-		this.connection = connection;
+	public void connect(String tenantId, String deviceToken, FutureConnection connection, boolean sessionPresent)
+			throws SiteWhereMqttException {
+		this.connection = new BlockingConnection(connection);
 		if ((executor != null) && (!executor.isShutdown())) {
 			executor.shutdownNow();
 		}
 		executor = Executors.newSingleThreadExecutor();
 		executor.submit(new MqttMessageProcessor());
-		commandTopic = new Topic(getCommandTopicName() + deviceToken, QoS.EXACTLY_ONCE);
-		systemTopic = new Topic(getSystemTopicName() + deviceToken, QoS.EXACTLY_ONCE);
+		if (subscriber != null) {
+			subscriber.shutdownNow();
+		}
+		subscriber = Executors.newSingleThreadScheduledExecutor();
+		commandTopic = new Topic(getCommandTopicName() + deviceToken, qosPolicy.getCommandSubscriptionQos());
+		systemTopic = new Topic(getSystemTopicName() + deviceToken, qosPolicy.getCommandSubscriptionQos());
 		this.tenantId = tenantId;
-		try {
-			Log.d(MqttService.TAG, "System command topic: " + systemTopic.name());
-			Log.d(MqttService.TAG, "Custom command topic: " + commandTopic.name());
-			connection.subscribe(new Topic[] { commandTopic, systemTopic });
-			Log.d(MqttService.TAG, "Subscribed to topics successfully.");
-		} catch (Exception e) {
-			throw new SiteWhereMqttException("Unable to subscribe to topics.", e);
+		this.deviceToken = deviceToken;
+		this.outboundTopic = new UTF8Buffer(getOutboundTopic());
+		router.add(getCommandTopicName() + "#", customCommandHandler);
+		router.add(getSystemTopicName() + "#", systemCommandHandler);
+		List<Topic> topics = new ArrayList<Topic>();
+		topics.add(commandTopic);
+		topics.add(systemTopic);
+		synchronized (childDevices) {
+			for (String child : childDevices) {
+				addCommandTopics(topics, child);
+			}
+		}
+		for (String topic : eventTopics.takeAll()) {
+			topics.add(new Topic(topic, qosPolicy.getEventSubscriptionQos()));
+		}
+		Log.d(MqttService.TAG, "System command topic: " + systemTopic.name());
+		Log.d(MqttService.TAG, "Custom command topic: " + commandTopic.name());
+		synchronized (sessionTopics) {
+			// After a restart, a resumed session holds whatever filters were saved by the last run.
+			String clientId = MqttService.createClientId(deviceToken);
+			if (!clientId.equals(sessionClientId)) {
+				sessionClientId = clientId;
+				sessionTopics.clear();
+				if (sessionPresent) {
+					loadSessionTopics();
+				}
+			}
+			if (!sessionPresent) {
+				sessionTopics.clear();
+			}
+			subscribeFailures = 0;
+
+			// A resumed session keeps its subscriptions, so only send the differences.
+			List<Topic> missing = new ArrayList<Topic>();
+			Set<String> stale = new LinkedHashSet<String>(sessionTopics);
+			for (Topic topic : topics) {
+				String name = topic.name().toString();
+				if (!stale.remove(name) && !sessionTopics.contains(name)) {
+					missing.add(topic);
+				}
+			}
+			try {
+				if (!stale.isEmpty()) {
+					this.connection.unsubscribe(stale.toArray(new String[stale.size()]));
+					sessionTopics.removeAll(stale);
+				}
+				if (!missing.isEmpty()) {
+					this.connection.subscribe(missing.toArray(new Topic[missing.size()]));
+					for (Topic topic : missing) {
+						sessionTopics.add(topic.name().toString());
+					}
+				}
+			} catch (Exception e) {
+				throw new SiteWhereMqttException("Unable to subscribe to topics.", e);
+			} finally {
+				saveSessionTopics();
+			}
+			Log.d(MqttService.TAG, (sessionPresent ? "Resumed session. " : "Started new session. ") + "Subscribed to "
+					+ missing.size() + " and unsubscribed from " + stale.size() + " topic(s).");
 		}
 	}
 
@@ -112,48 +247,230 @@ public class DefaultMqttInteractionManager implements IMqttInteractionManager {
 	 */
 	@Override
 	public void send(byte[] payload) throws SiteWhereMqttException {
+		send(payload, 0, payload.length);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.sitewhere.android.mqtt.IMqttInteractionManager#send(byte[], int, int)
+	 */
+	@Override
+	public void send(byte[] payload, int offset, int length) throws SiteWhereMqttException {
 		if (connection == null) {
 			throw new SiteWhereMqttException("Attempting to send a message while disconnected.");
 		}
 		try {
-			connection.publish(getOutboundTopic(), payload, QoS.EXACTLY_ONCE, false);
-			Log.d(MqttService.TAG, "Sent message successfully to: " + getOutboundTopic());
+			connection.publish(outboundTopic, new Buffer(payload, offset, length),
+					getPublishQos(payload, offset, length), false);
+			SiteWhereLog.d(MqttService.TAG, "Sent message successfully to: %s", outboundTopic);
 		} catch (Exception e) {
 			throw new SiteWhereMqttException("Unable to publish message.", e);
 		}
 	}
 
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.sitewhere.android.mqtt.IMqttInteractionManager#flush()
+	 */
+	@Override
+	public void flush() throws SiteWhereMqttException {
+		// Publishes on the blocking connection return once acknowledged.
+	}
+
 	@Override
 	public void subscribe(String topic) throws SiteWhereMqttException {
-		if (connection == null) {
-            throw new SiteWhereMqttException("Attempting to subscribe to a topic while disconnected.");
-        }
-        try {
-            Topic eventTopic = new Topic(topic, QoS.EXACTLY_ONCE);
-            Log.d(MqttService.TAG, "Event topic: " + eventTopic.name());
-            connection.subscribe(new Topic[]{eventTopic});
-        } catch (Exception e) {
-            throw new SiteWhereMqttException("Unable to subscribe to topic " + topic);
-        }
+		router.add(topic, eventHandler);
+
+		// Subscribed along with command topics on the next connect, or with other topics added
+		// during the window if connected.
+		ScheduledExecutorService current = subscriber;
+		if (eventTopics.add(topic) && (connection != null) && (current != null)) {
+			try {
+				current.schedule(subscriptionFlusher, eventTopics.getWindowMs(), TimeUnit.MILLISECONDS);
+			} catch (RejectedExecutionException e) {
+				Log.d(MqttService.TAG, "Disconnected before subscribing. Will subscribe on next connect.");
+			}
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.sitewhere.android.mqtt.IMqttInteractionManager#unsubscribe(java.lang.String)
+	 */
+	@Override
+	public void unsubscribe(String topic) throws SiteWhereMqttException {
+		router.remove(topic, eventHandler);
+		synchronized (sessionTopics) {
+			BlockingConnection current = connection;
+			if (!eventTopics.remove(topic) || (current == null)) {
+				return;
+			}
+			try {
+				current.unsubscribe(new String[] { topic });
+				sessionTopics.remove(topic);
+				saveSessionTopics();
+				Log.d(MqttService.TAG, "Unsubscribed from event topic: " + topic);
+			} catch (Exception e) {
+				throw new SiteWhereMqttException("Unable to unsubscribe from topic " + topic, e);
+			}
+		}
+	}
+
+	/**
+	 * Save the filters held by broker sessions in a directory, so that filters no longer wanted
+	 * can be unsubscribed when a session is resumed after the process restarts. Without it, such
+	 * filters stay in a resumed session until the broker drops it.
+	 *
+	 * @param sessionDirectory
+	 */
+	public void setSessionDirectory(File sessionDirectory) {
+		this.sessionDirectory = sessionDirectory;
+	}
+
+	/**
+	 * Set how long event topics added while connected are collected before they are sent together
+	 * in one SUBSCRIBE frame.
+	 *
+	 * @param windowMs
+	 */
+	public void setSubscribeWindow(long windowMs) {
+		eventTopics.setWindowMs(windowMs);
+	}
+
+	/**
+	 * Get delay before retrying a failed batched subscription.
+	 *
+	 * @param failures number of consecutive failures
+	 * @return
+	 */
+	protected long getSubscribeRetryDelay(int failures) {
+		return Math.min(SUBSCRIBE_RETRY_MAX_MS, SUBSCRIBE_RETRY_BASE_MS << Math.min(failures - 1, 16));
+	}
+
+	/**
+	 * Sends all pending event topics in one SUBSCRIBE frame. If that fails, the topics are put back
+	 * as pending and sent again after a delay that grows with each failure.
+	 */
+	private final Runnable subscriptionFlusher = new Runnable() {
+
+		@Override
+		public void run() {
+			synchronized (sessionTopics) {
+				List<String> pending = eventTopics.takePending();
+				BlockingConnection current = connection;
+				if (pending.isEmpty() || (current == null)) {
+					return;
+				}
+				Topic[] topics = new Topic[pending.size()];
+				for (int i = 0; i < topics.length; i++) {
+					topics[i] = new Topic(pending.get(i), qosPolicy.getEventSubscriptionQos());
+				}
+				try {
+					current.subscribe(topics);
+					sessionTopics.addAll(pending);
+					saveSessionTopics();
+					subscribeFailures = 0;
+					Log.d(MqttService.TAG, "Subscribed to " + topics.length + " event topic(s): " + pending);
+				} catch (Exception e) {
+					eventTopics.restorePending(pending);
+					long delay = getSubscribeRetryDelay(++subscribeFailures);
+					try {
+						subscriber.schedule(this, delay, TimeUnit.MILLISECONDS);
+						Log.w(MqttService.TAG, "Unable to subscribe to event topics. Retrying in " + delay + "ms.", e);
+					} catch (RejectedExecutionException rejected) {
+						Log.w(MqttService.TAG, "Unable to subscribe to event topics. Will retry on next connect.", e);
+					}
+				}
+			}
+		}
+	};
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.sitewhere.android.mqtt.IMqttInteractionManager#addChildDevices(java.lang.String[])
+	 */
+	@Override
+	public void addChildDevices(String[] deviceTokens) throws SiteWhereMqttException {
+		List<Topic> topics = new ArrayList<Topic>();
+		synchronized (childDevices) {
+			for (String token : deviceTokens) {
+				if (childDevices.add(token)) {
+					addCommandTopics(topics, token);
+				}
+			}
+		}
+		BlockingConnection current = connection;
+		if ((current == null) || (topics.isEmpty())) {
+			return;
+		}
+		try {
+			current.subscribe(topics.toArray(new Topic[topics.size()]));
+			synchronized (sessionTopics) {
+				for (Topic topic : topics) {
+					sessionTopics.add(topic.name().toString());
+				}
+				saveSessionTopics();
+			}
+			Log.d(MqttService.TAG, "Subscribed to command topics for " + (topics.size() / 2) + " child device(s).");
+		} catch (Exception e) {
+			throw new SiteWhereMqttException("Unable to subscribe to child device topics.", e);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.sitewhere.android.mqtt.IMqttInteractionManager#removeChildDevices(java.lang.String[])
+	 */
+	@Override
+	public void removeChildDevices(String[] deviceTokens) throws SiteWhereMqttException {
+		List<String> topics = new ArrayList<String>();
+		synchronized (childDevices) {
+			for (String token : deviceTokens) {
+				if (childDevices.remove(token)) {
+					topics.add(getCommandTopicName() + token);
+					topics.add(getSystemTopicName() + token);
+				}
+			}
+		}
+		BlockingConnection current = connection;
+		if ((current == null) || (topics.isEmpty())) {
+			return;
+		}
+		try {
+			current.unsubscribe(topics.toArray(new String[topics.size()]));
+			synchronized (sessionTopics) {
+				sessionTopics.removeAll(topics);
+				saveSessionTopics();
+			}
+			Log.d(MqttService.TAG, "Unsubscribed from command topics for " + (topics.size() / 2) + " child device(s).");
+		} catch (Exception e) {
+			throw new SiteWhereMqttException("Unable to unsubscribe from child device topics.", e);
+		}
 	}
 
 	/*
          * (non-Javadoc)
          *
          * @see com.sitewhere.android.mqtt.IMqttInteractionManager#disconnect(java.lang.String,
-         * org.fusesource.mqtt.client.BlockingConnection)
+         * org.fusesource.mqtt.client.FutureConnection)
          */
 	@Override
-	public void disconnect(String tenantId, String deviceToken, BlockingConnection connection) throws SiteWhereMqttException {
-		try {
-			connection.unsubscribe(new String[] { getCommandTopicName() + deviceToken,
-					getSystemTopicName() + deviceToken });
-			this.connection = null;
-			this.executor.shutdownNow();
-			Log.d(MqttService.TAG, "Unsubscribed from topics successfully.");
-		} catch (Exception e) {
-			throw new SiteWhereMqttException("Unable to subscribe to topics.", e);
+	public void disconnect(String tenantId, String deviceToken, FutureConnection connection) throws SiteWhereMqttException {
+		// Subscriptions are left in place. A persistent session keeps them so commands are queued
+		// while offline, and a clean session drops them when the connection closes anyway.
+		this.connection = null;
+		if (executor != null) {
+			executor.shutdownNow();
+		}
+		if (subscriber != null) {
+			subscriber.shutdownNow();
 		}
+		Log.d(MqttService.TAG, "Stopped processing messages for disconnect.");
 	}
 
 	/**
@@ -163,6 +480,9 @@ public class DefaultMqttInteractionManager implements IMqttInteractionManager {
 	 */
 	private class MqttMessageProcessor implements Runnable {
 
+		/** Handlers matching the current message (reused between messages) */
+		private final List<IMqttTopicHandler> handlers = new ArrayList<IMqttTopicHandler>();
+
 		@Override
 		public void run() {
 			Log.d(MqttService.TAG, "Started MQTT subscription processing thread.");
@@ -170,13 +490,15 @@ public class DefaultMqttInteractionManager implements IMqttInteractionManager {
 				try {
 					Message message = connection.receive();
 					message.ack();
-					Log.d(MqttService.TAG, "Received message from: " + message.getTopic());
-					if (message.getTopic().startsWith(getCommandTopicName())) {
-						callback.onCustomCommandReceived(message.getTopic(), message.getPayload());
-					} else if (message.getTopic().startsWith(getSystemTopicName())) {
-						callback.onSystemCommandReceived(message.getTopic(), message.getPayload());
+					SiteWhereLog.d(MqttService.TAG, "Received message from: %s", message.getTopic());
+					String topic = message.getTopic();
+					handlers.clear();
+					if (router.match(topic, handlers)) {
+						for (int i = 0; i < handlers.size(); i++) {
+							handlers.get(i).onMessage(topic, message.getPayload());
+						}
 					} else {
-						callback.onEventMessageReceived(message.getTopic(), message.getPayload());
+						callback.onEventMessageReceived(topic, message.getPayload());
 					}
 				} catch (InterruptedException e) {
 					Log.d(MqttService.TAG, "Device event processor interrupted.");
@@ -193,6 +515,42 @@ public class DefaultMqttInteractionManager implements IMqttInteractionManager {
 		}
 	}
 
+	/**
+	 * Passes command messages to the callback for the device or for a child device, based on the
+	 * device token that follows the topic prefix.
+	 */
+	private class CommandHandler implements IMqttTopicHandler {
+
+		/** Indicates system rather than custom commands are handled */
+		private final boolean system;
+
+		CommandHandler(boolean system) {
+			this.system = system;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see com.sitewhere.androidsdk.mqtt.IMqttTopicHandler#onMessage(java.lang.String, byte[])
+		 */
+		@Override
+		public void onMessage(String topic, byte[] payload) {
+			String prefix = system ? getSystemTopicName() : getCommandTopicName();
+			String token = topic.substring(Math.min(prefix.length(), topic.length()));
+			if (token.equals(deviceToken)) {
+				if (system) {
+					callback.onSystemCommandReceived(topic, payload);
+				} else {
+					callback.onCustomCommandReceived(topic, payload);
+				}
+			} else if (system) {
+				callback.onChildSystemCommandReceived(token, topic, payload);
+			} else {
+				callback.onChildCustomCommandReceived(token, topic, payload);
+			}
+		}
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -204,8 +562,32 @@ public class DefaultMqttInteractionManager implements IMqttInteractionManager {
 		this.callback = callback;
 	}
 
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.sitewhere.android.mqtt.IMqttInteractionManager#setQosPolicy(com.sitewhere.android.mqtt
+	 * .MqttQosPolicy)
+	 */
+	@Override
+	public void setQosPolicy(MqttQosPolicy policy) {
+		this.qosPolicy = policy;
+	}
+
+	/**
+	 * Get QoS for publishing an encoded event.
+	 *
+	 * @param payload
+	 * @param offset
+	 * @param length
+	 * @return
+	 */
+	protected QoS getPublishQos(byte[] payload, int offset, int length) {
+		return qosPolicy.getPublishQos(payload, offset, length);
+	}
+
 	/**
-	 * Get topic for outbound messages.
+	 * Get topic for outbound messages. Only called on connect, since the result is cached for the
+	 * life of the connection.
 	 * 
 	 * @return
 	 */
@@ -215,6 +597,104 @@ public class DefaultMqttInteractionManager implements IMqttInteractionManager {
 		return builder.toString();
 	}
 
+	/**
+	 * Load filters saved for the current session. Must hold the session topics lock.
+	 */
+	protected void loadSessionTopics() {
+		File file = getSessionFile();
+		if ((file == null) || !file.exists()) {
+			return;
+		}
+		try {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF8));
+			try {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					if (!line.isEmpty()) {
+						sessionTopics.add(line);
+					}
+				}
+			} finally {
+				reader.close();
+			}
+		} catch (IOException e) {
+			Log.w(MqttService.TAG, "Unable to load session topics. Earlier subscriptions may be kept.", e);
+		}
+	}
+
+	/**
+	 * Save filters for the current session. Must hold the session topics lock.
+	 */
+	protected void saveSessionTopics() {
+		File file = getSessionFile();
+		if (file == null) {
+			return;
+		}
+		File temp = new File(file.getPath() + ".tmp");
+		try {
+			if (!sessionDirectory.isDirectory() && !sessionDirectory.mkdirs()) {
+				throw new IOException("Unable to create directory " + sessionDirectory);
+			}
+			Writer writer = new OutputStreamWriter(new FileOutputStream(temp), UTF8);
+			try {
+				for (String topic : sessionTopics) {
+					writer.write(topic);
+					writer.write('\n');
+				}
+			} finally {
+				writer.close();
+			}
+			if (!temp.renameTo(file)) {
+				throw new IOException("Unable to replace " + file);
+			}
+		} catch (IOException e) {
+			Log.w(MqttService.TAG, "Unable to save session topics.", e);
+		}
+	}
+
+	/**
+	 * Get file holding filters for the current session.
+	 *
+	 * @return file or null if filters are not saved
+	 */
+	private File getSessionFile() {
+		if ((sessionDirectory == null) || (sessionClientId == null)) {
+			return null;
+		}
+		return new File(sessionDirectory, sessionClientId);
+	}
+
+	/**
+	 * Add command and system topics for a device.
+	 *
+	 * @param topics
+	 * @param deviceToken
+	 */
+	protected void addCommandTopics(List<Topic> topics, String deviceToken) {
+		topics.add(new Topic(getCommandTopicName() + deviceToken, qosPolicy.getCommandSubscriptionQos()));
+		topics.add(new Topic(getSystemTopicName() + deviceToken, qosPolicy.getCommandSubscriptionQos()));
+	}
+
+	/**
+	 * Get router used to dispatch inbound messages. Subclasses can register handlers for other
+	 * topic filters. Messages that match no handler are passed to
+	 * {@link IMqttCallback#onEventMessageReceived(String, byte[])}.
+	 *
+	 * @return
+	 */
+	protected TopicRouter<IMqttTopicHandler> getTopicRouter() {
+		return router;
+	}
+
+	/**
+	 * Get cached topic for outbound messages.
+	 *
+	 * @return
+	 */
+	protected UTF8Buffer getOutboundTopicBuffer() {
+		return outboundTopic;
+	}
+
 	/**
 	 * Get name for command topic.
 	 * @return
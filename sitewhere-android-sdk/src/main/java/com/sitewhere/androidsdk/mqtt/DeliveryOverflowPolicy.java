@@ -0,0 +1,31 @@
+/*
+ * Copyright (c) SiteWhere, LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.androidsdk.mqtt;
+
+/**
+ * Action taken when a client's delivery queue is full.
+ */
+public enum DeliveryOverflowPolicy {
+
+	/** Discard the oldest queued message to make room */
+	DropOldest,
+
+	/** Discard the message being added */
+	DropNewest,
+
+	/** Unregister the client */
+	Disconnect,
+}
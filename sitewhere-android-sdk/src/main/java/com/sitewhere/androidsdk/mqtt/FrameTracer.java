@@ -0,0 +1,235 @@
+/*
+ * Copyright (c) SiteWhere, LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.androidsdk.mqtt;
+
+import android.util.Log;
+
+import com.sitewhere.androidsdk.logging.SiteWhereLog;
+
+import org.fusesource.hawtbuf.Buffer;
+import org.fusesource.mqtt.client.Tracer;
+import org.fusesource.mqtt.codec.CONNACK;
+import org.fusesource.mqtt.codec.MQTTFrame;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * MQTT {@link Tracer} that only formats frames when verbose SDK logging is enabled, and can keep
+ * a sampled ring buffer of recent frames in memory to be dumped on demand. Slots in the ring are
+ * preallocated, so recording a frame copies a few bytes but allocates nothing. Recording is off
+ * until {@link #setSampleInterval(int)} is called with a positive value.
+ */
+public class FrameTracer extends Tracer {
+
+	/** Default number of frames kept */
+	public static final int DEFAULT_CAPACITY = 128;
+
+	/** Default number of leading bytes kept per frame */
+	public static final int DEFAULT_SNAPSHOT_SIZE = 32;
+
+	/** Time each frame was recorded */
+	private final long[] times;
+
+	/** Indicates frame was sent rather than received */
+	private final boolean[] outbound;
+
+	/** Fixed header byte of each frame */
+	private final byte[] headers;
+
+	/** Total variable header and payload length of each frame */
+	private final int[] lengths;
+
+	/** Leading bytes of each frame */
+	private final byte[][] snapshots;
+
+	/** Number of valid bytes in each snapshot */
+	private final int[] snapshotLengths;
+
+	/** Record one of every n frames, or none if zero */
+	private volatile int sampleInterval;
+
+	/** Session present flag from the last CONNACK received */
+	private volatile boolean sessionPresent;
+
+	/** Frames seen since recording was enabled */
+	private int seen;
+
+	/** Next slot to write */
+	private int next;
+
+	/** Number of slots holding frames */
+	private int count;
+
+	public FrameTracer() {
+		this(DEFAULT_CAPACITY, DEFAULT_SNAPSHOT_SIZE);
+	}
+
+	public FrameTracer(int capacity, int snapshotSize) {
+		this.times = new long[capacity];
+		this.outbound = new boolean[capacity];
+		this.headers = new byte[capacity];
+		this.lengths = new int[capacity];
+		this.snapshots = new byte[capacity][snapshotSize];
+		this.snapshotLengths = new int[capacity];
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see org.fusesource.mqtt.client.Tracer#debug(java.lang.String, java.lang.Object[])
+	 */
+	@Override
+	public void debug(String message, Object... args) {
+		if (SiteWhereLog.isVerboseEnabled()) {
+			Log.v(MqttService.TAG, String.format(Locale.US, message, args));
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see org.fusesource.mqtt.client.Tracer#onReceive(org.fusesource.mqtt.codec.MQTTFrame)
+	 */
+	@Override
+	public void onReceive(MQTTFrame frame) {
+		if (frame.messageType() == CONNACK.TYPE) {
+			Buffer[] buffers = frame.buffers();
+			sessionPresent = (buffers != null) && (buffers.length > 0) && (buffers[0].length > 0)
+					&& ((buffers[0].data[buffers[0].offset] & 0x01) != 0);
+		}
+		trace(frame, false);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see org.fusesource.mqtt.client.Tracer#onSend(org.fusesource.mqtt.codec.MQTTFrame)
+	 */
+	@Override
+	public void onSend(MQTTFrame frame) {
+		trace(frame, true);
+	}
+
+	/**
+	 * Record one of every n frames. Zero turns recording off.
+	 *
+	 * @param sampleInterval
+	 */
+	public void setSampleInterval(int sampleInterval) {
+		synchronized (times) {
+			this.seen = 0;
+			this.sampleInterval = Math.max(sampleInterval, 0);
+		}
+	}
+
+	public int getSampleInterval() {
+		return sampleInterval;
+	}
+
+	/**
+	 * Indicates whether the broker resumed a stored session on the last connect. The client
+	 * library does not expose the MQTT 3.1.1 CONNACK flags, so they are read from the traced frame.
+	 *
+	 * @return
+	 */
+	public boolean isSessionPresent() {
+		return sessionPresent;
+	}
+
+	/**
+	 * Write recorded frames to the Android log, oldest first.
+	 *
+	 * @param tag
+	 */
+	public void dump(String tag) {
+		SimpleDateFormat format = new SimpleDateFormat("HH:mm:ss.SSS", Locale.US);
+		synchronized (times) {
+			Log.i(tag, "Recent MQTT frames (" + count + "):");
+			int first = (next - count + times.length) % times.length;
+			for (int i = 0; i < count; i++) {
+				int slot = (first + i) % times.length;
+				Log.i(tag, format.format(new Date(times[slot])) + (outbound[slot] ? " SEND " : " RECV ")
+						+ "type=" + ((headers[slot] & 0xF0) >>> 4) + " header=0x"
+						+ SiteWhereLog.toHex(headers, slot, 1) + " length=" + lengths[slot] + " data="
+						+ SiteWhereLog.toHex(snapshots[slot], 0, snapshotLengths[slot]));
+			}
+		}
+	}
+
+	/**
+	 * Discard recorded frames.
+	 */
+	public void clear() {
+		synchronized (times) {
+			next = 0;
+			count = 0;
+		}
+	}
+
+	/**
+	 * Log and optionally record a frame.
+	 *
+	 * @param frame
+	 * @param sent
+	 */
+	protected void trace(MQTTFrame frame, boolean sent) {
+		if (SiteWhereLog.isVerboseEnabled()) {
+			Log.v(MqttService.TAG, (sent ? "Sent " : "Received ") + frame);
+		}
+		if (sampleInterval > 0) {
+			record(frame, sent);
+		}
+	}
+
+	/**
+	 * Copy frame details into the next slot if this frame is sampled.
+	 *
+	 * @param frame
+	 * @param sent
+	 */
+	private void record(MQTTFrame frame, boolean sent) {
+		synchronized (times) {
+			int interval = sampleInterval;
+			if ((interval == 0) || (seen++ % interval != 0)) {
+				return;
+			}
+			int slot = next;
+			times[slot] = System.currentTimeMillis();
+			outbound[slot] = sent;
+			headers[slot] = frame.header();
+			byte[] snapshot = snapshots[slot];
+			int length = 0;
+			int copied = 0;
+			Buffer[] buffers = frame.buffers();
+			if (buffers != null) {
+				for (Buffer buffer : buffers) {
+					int toCopy = Math.min(buffer.length, snapshot.length - copied);
+					System.arraycopy(buffer.data, buffer.offset, snapshot, copied, toCopy);
+					copied += toCopy;
+					length += buffer.length;
+				}
+			}
+			lengths[slot] = length;
+			snapshotLengths[slot] = copied;
+			next = (slot + 1) % times.length;
+			if (count < times.length) {
+				count++;
+			}
+		}
+	}
+}
@@ -43,6 +43,24 @@ public interface IMqttCallback {
 	 */
 	public void onCustomCommandReceived(String topic, byte[] payload);
 
+	/**
+	 * Called when a system command is received for a child device in gateway mode.
+	 *
+	 * @param deviceToken
+	 * @param topic
+	 * @param payload
+	 */
+	public void onChildSystemCommandReceived(String deviceToken, String topic, byte[] payload);
+
+	/**
+	 * Called when a custom command is received for a child device in gateway mode.
+	 *
+	 * @param deviceToken
+	 * @param topic
+	 * @param payload
+	 */
+	public void onChildCustomCommandReceived(String deviceToken, String topic, byte[] payload);
+
 	/**
 	 * Called when a event message is received.
 	 *
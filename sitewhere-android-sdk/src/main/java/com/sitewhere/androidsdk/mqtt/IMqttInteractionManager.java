@@ -15,7 +15,7 @@
  */
 package com.sitewhere.androidsdk.mqtt;
 
-import org.fusesource.mqtt.client.BlockingConnection;
+import org.fusesource.mqtt.client.FutureConnection;
 
 /**
  * Allows interaction with MQTT implementation to be customized.
@@ -30,9 +30,11 @@ public interface IMqttInteractionManager {
 	 * @param tenant
 	 * @param deviceToken
 	 * @param connection
+	 * @param sessionPresent true if the broker resumed a session that still holds earlier
+	 *            subscriptions
 	 * @throws SiteWhereMqttException
 	 */
-	public void connect(String tenant, String deviceToken, BlockingConnection connection)
+	public void connect(String tenant, String deviceToken, FutureConnection connection, boolean sessionPresent)
 			throws SiteWhereMqttException;
 
 	/**
@@ -43,6 +45,23 @@ public interface IMqttInteractionManager {
 	 */
 	public void send(byte[] payload) throws SiteWhereMqttException;
 
+	/**
+	 * Send a message payload held in a region of a larger buffer to SiteWhere.
+	 *
+	 * @param payload
+	 * @param offset
+	 * @param length
+	 * @throws SiteWhereMqttException
+	 */
+	public void send(byte[] payload, int offset, int length) throws SiteWhereMqttException;
+
+	/**
+	 * Wait until the broker has acknowledged all messages sent so far.
+	 *
+	 * @throws SiteWhereMqttException if a message could not be delivered
+	 */
+	public void flush() throws SiteWhereMqttException;
+
     /**
      * Subscribes to a SiteWhere event message topic
      * @param topic
@@ -50,6 +69,31 @@ public interface IMqttInteractionManager {
      */
 	public void subscribe(String topic) throws SiteWhereMqttException;
 
+	/**
+	 * Unsubscribe from a SiteWhere event message topic.
+	 *
+	 * @param topic
+	 * @throws SiteWhereMqttException
+	 */
+	public void unsubscribe(String topic) throws SiteWhereMqttException;
+
+	/**
+	 * Add child devices that share this connection in gateway mode. Command topics for all new
+	 * devices are subscribed in a single request, and are subscribed again on each connect.
+	 *
+	 * @param deviceTokens
+	 * @throws SiteWhereMqttException
+	 */
+	public void addChildDevices(String[] deviceTokens) throws SiteWhereMqttException;
+
+	/**
+	 * Remove child devices and unsubscribe from their command topics.
+	 *
+	 * @param deviceTokens
+	 * @throws SiteWhereMqttException
+	 */
+	public void removeChildDevices(String[] deviceTokens) throws SiteWhereMqttException;
+
 	/**
 	 * Handle topic-related disconnect logic.
 	 *
@@ -58,7 +102,7 @@ public interface IMqttInteractionManager {
 	 * @param connection
 	 * @throws SiteWhereMqttException
 	 */
-	public void disconnect(String tenant, String deviceToken, BlockingConnection connection)
+	public void disconnect(String tenant, String deviceToken, FutureConnection connection)
 			throws SiteWhereMqttException;
 
 	/**
@@ -67,4 +111,12 @@ public interface IMqttInteractionManager {
 	 * @param callback
 	 */
 	public void setCallback(IMqttCallback callback);
+
+	/**
+	 * Set policy used to choose QoS levels for publishes and subscriptions. Takes effect for
+	 * subscriptions on the next connect.
+	 *
+	 * @param policy
+	 */
+	public void setQosPolicy(MqttQosPolicy policy);
 }
\ No newline at end of file
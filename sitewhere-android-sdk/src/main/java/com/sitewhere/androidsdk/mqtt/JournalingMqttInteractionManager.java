@@ -0,0 +1,373 @@
+/*
+ * Copyright (c) SiteWhere, LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.androidsdk.mqtt;
+
+import android.util.Log;
+
+import org.fusesource.mqtt.client.FutureConnection;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Wraps another {@link IMqttInteractionManager} so that messages sent while the broker is
+ * unreachable are stored in an {@link OutboundJournal} instead of being lost. After the
+ * connection is restored, the journal is drained in order before new messages are published
+ * directly again. Journaled messages are published a window at a time and only removed once the
+ * broker has acknowledged the whole window. A drain that fails while still connected, or that can
+ * not read the journal, is retried with exponential backoff.
+ */
+public class JournalingMqttInteractionManager implements IMqttInteractionManager {
+
+	/** Delay before retrying a failed drain for the first time */
+	public static final long DEFAULT_RETRY_BASE_MS = 1000;
+
+	/** Upper bound for delay between drain retries */
+	public static final long DEFAULT_RETRY_MAX_MS = 60 * 1000;
+
+	/** Number of journaled messages published before waiting for acknowledgement */
+	public static final int DEFAULT_DRAIN_WINDOW = 32;
+
+	/** Manager that does the actual MQTT work */
+	private final IMqttInteractionManager delegate;
+
+	/** Stores messages until they can be delivered */
+	private final OutboundJournal journal;
+
+	/** Guards connection and drain state */
+	private final Object lock = new Object();
+
+	/** Drains journal in the background */
+	private final ScheduledExecutorService drainer = Executors.newSingleThreadScheduledExecutor();
+
+	/** Current connection or null if disconnected */
+	private FutureConnection connection;
+
+	/** Indicates journal is being drained or a drain retry is scheduled */
+	private boolean draining;
+
+	/** Failed drain attempts since a journaled message was last delivered */
+	private int drainFailures;
+
+	public JournalingMqttInteractionManager(IMqttInteractionManager delegate, OutboundJournal journal) {
+		this.delegate = delegate;
+		this.journal = journal;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.sitewhere.android.mqtt.IMqttInteractionManager#connect(java.lang.String,
+	 * java.lang.String, org.fusesource.mqtt.client.FutureConnection, boolean)
+	 */
+	@Override
+	public void connect(String tenant, String deviceToken, FutureConnection connection, boolean sessionPresent)
+			throws SiteWhereMqttException {
+		delegate.connect(tenant, deviceToken, connection, sessionPresent);
+		synchronized (lock) {
+			this.connection = connection;
+			if (!draining && !journal.isEmpty()) {
+				draining = true;
+				drainer.submit(new JournalDrainer());
+			}
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.sitewhere.android.mqtt.IMqttInteractionManager#send(byte[])
+	 */
+	@Override
+	public void send(byte[] payload) throws SiteWhereMqttException {
+		send(payload, 0, payload.length);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.sitewhere.android.mqtt.IMqttInteractionManager#send(byte[], int, int)
+	 */
+	@Override
+	public void send(byte[] payload, int offset, int length) throws SiteWhereMqttException {
+		sendOrStore(payload, offset, length);
+	}
+
+	/**
+	 * Publish a message, or store it in the journal if it can not be published yet.
+	 *
+	 * @param payload
+	 * @param offset
+	 * @param length
+	 * @return true if the message was published, false if it was stored in the journal
+	 * @throws SiteWhereMqttException if publishing failed while connected or the journal can not
+	 *             be written
+	 */
+	public boolean sendOrStore(byte[] payload, int offset, int length) throws SiteWhereMqttException {
+		synchronized (lock) {
+			if (!isConnected() || draining || !journal.isEmpty()) {
+				append(payload, offset, length);
+				return false;
+			}
+		}
+		try {
+			delegate.send(payload, offset, length);
+			return true;
+		} catch (SiteWhereMqttException e) {
+			if (isConnected()) {
+				throw e;
+			}
+			Log.d(MqttService.TAG, "Connection lost while sending. Storing message in journal.");
+			append(payload, offset, length);
+			return false;
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.sitewhere.android.mqtt.IMqttInteractionManager#flush()
+	 */
+	@Override
+	public void flush() throws SiteWhereMqttException {
+		delegate.flush();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.sitewhere.android.mqtt.IMqttInteractionManager#subscribe(java.lang.String)
+	 */
+	@Override
+	public void subscribe(String topic) throws SiteWhereMqttException {
+		delegate.subscribe(topic);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.sitewhere.android.mqtt.IMqttInteractionManager#unsubscribe(java.lang.String)
+	 */
+	@Override
+	public void unsubscribe(String topic) throws SiteWhereMqttException {
+		delegate.unsubscribe(topic);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.sitewhere.android.mqtt.IMqttInteractionManager#addChildDevices(java.lang.String[])
+	 */
+	@Override
+	public void addChildDevices(String[] deviceTokens) throws SiteWhereMqttException {
+		delegate.addChildDevices(deviceTokens);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.sitewhere.android.mqtt.IMqttInteractionManager#removeChildDevices(java.lang.String[])
+	 */
+	@Override
+	public void removeChildDevices(String[] deviceTokens) throws SiteWhereMqttException {
+		delegate.removeChildDevices(deviceTokens);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.sitewhere.android.mqtt.IMqttInteractionManager#disconnect(java.lang.String,
+	 * java.lang.String, org.fusesource.mqtt.client.FutureConnection)
+	 */
+	@Override
+	public void disconnect(String tenant, String deviceToken, FutureConnection connection)
+			throws SiteWhereMqttException {
+		synchronized (lock) {
+			this.connection = null;
+		}
+		delegate.disconnect(tenant, deviceToken, connection);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.sitewhere.android.mqtt.IMqttInteractionManager#setCallback(com.sitewhere.android.mqtt
+	 * .IMqttCallback)
+	 */
+	@Override
+	public void setCallback(IMqttCallback callback) {
+		delegate.setCallback(callback);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.sitewhere.android.mqtt.IMqttInteractionManager#setQosPolicy(com.sitewhere.android.mqtt
+	 * .MqttQosPolicy)
+	 */
+	@Override
+	public void setQosPolicy(MqttQosPolicy policy) {
+		delegate.setQosPolicy(policy);
+	}
+
+	/**
+	 * Store a message whose publish failed so it is sent again once the journal drains. Used for
+	 * messages that have no caller to report the failure to. Messages sent afterward are
+	 * journaled behind it, so order is kept.
+	 *
+	 * @param payload
+	 * @param offset
+	 * @param length
+	 * @throws SiteWhereMqttException if the journal can not be written
+	 */
+	public void store(byte[] payload, int offset, int length) throws SiteWhereMqttException {
+		synchronized (lock) {
+			append(payload, offset, length);
+			if (!draining && isConnected()) {
+				try {
+					drainer.schedule(new JournalDrainer(), DEFAULT_RETRY_BASE_MS, TimeUnit.MILLISECONDS);
+					draining = true;
+				} catch (RejectedExecutionException e) {
+					Log.d(MqttService.TAG, "Journal closed. Message will be sent after restart.");
+				}
+			}
+		}
+	}
+
+	/**
+	 * Stop draining and close the journal.
+	 */
+	public void close() {
+		drainer.shutdownNow();
+		journal.close();
+	}
+
+	/**
+	 * Get the wrapped manager.
+	 *
+	 * @return
+	 */
+	public IMqttInteractionManager getDelegate() {
+		return delegate;
+	}
+
+	/**
+	 * Store a message in the journal.
+	 *
+	 * @param payload
+	 * @param offset
+	 * @param length
+	 * @throws SiteWhereMqttException
+	 */
+	protected void append(byte[] payload, int offset, int length) throws SiteWhereMqttException {
+		try {
+			journal.append(payload, offset, length);
+		} catch (IOException e) {
+			throw new SiteWhereMqttException("Unable to store message in journal.", e);
+		}
+	}
+
+	/**
+	 * Get delay before the next drain retry.
+	 *
+	 * @param failures number of consecutive failed drain attempts
+	 * @return
+	 */
+	protected long getRetryDelay(int failures) {
+		return Math.min(DEFAULT_RETRY_MAX_MS, DEFAULT_RETRY_BASE_MS << Math.min(failures - 1, 16));
+	}
+
+	/**
+	 * Indicates if there is a live connection to publish on.
+	 *
+	 * @return
+	 */
+	protected boolean isConnected() {
+		FutureConnection current = connection;
+		return (current != null) && (current.isConnected());
+	}
+
+	/**
+	 * Publishes journaled messages in order until the journal is empty or the connection drops.
+	 * Up to {@link #DEFAULT_DRAIN_WINDOW} messages are published before waiting for the broker,
+	 * and are then removed together. If publishing fails while still connected, or the journal
+	 * can not be read, the drain is scheduled again after a delay.
+	 */
+	private class JournalDrainer implements Runnable {
+
+		@Override
+		public void run() {
+			Log.d(MqttService.TAG, "Draining outbound journal.");
+			long retryDelay = -1;
+			try {
+				while (true) {
+					byte[] payload;
+					synchronized (lock) {
+						payload = isConnected() ? journal.peek() : null;
+						if (payload == null) {
+							draining = false;
+							journal.sync();
+							break;
+						}
+					}
+					int sent = 0;
+					while (payload != null) {
+						delegate.send(payload);
+						payload = (++sent < DEFAULT_DRAIN_WINDOW) ? journal.next() : null;
+					}
+
+					// Only remove the messages once the broker has acknowledged them.
+					delegate.flush();
+					journal.commit();
+					drainFailures = 0;
+				}
+				Log.d(MqttService.TAG, "Finished draining outbound journal.");
+			} catch (SiteWhereMqttException e) {
+				if (isConnected()) {
+					retryDelay = getRetryDelay(++drainFailures);
+					Log.w(MqttService.TAG, "Unable to drain outbound journal. Retrying in " + retryDelay + "ms.", e);
+				} else {
+					Log.w(MqttService.TAG, "Stopped draining outbound journal.", e);
+				}
+			} catch (IOException e) {
+				retryDelay = getRetryDelay(++drainFailures);
+				Log.e(MqttService.TAG, "Unable to read outbound journal. Retrying in " + retryDelay + "ms.", e);
+			} finally {
+				synchronized (lock) {
+					draining = (retryDelay >= 0) && schedule(retryDelay);
+				}
+			}
+		}
+
+		/**
+		 * Run the drain again after a delay.
+		 *
+		 * @param delay
+		 * @return false if the manager has been closed
+		 */
+		private boolean schedule(long delay) {
+			try {
+				drainer.schedule(this, delay, TimeUnit.MILLISECONDS);
+				return true;
+			} catch (RejectedExecutionException e) {
+				return false;
+			}
+		}
+	}
+}
@@ -0,0 +1,516 @@
+/*
+ * Copyright (c) SiteWhere, LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.androidsdk.mqtt;
+
+import android.util.Log;
+
+import com.sitewhere.communication.protobuf.proto.SiteWhere.DeviceEvent;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.GOptionalString;
+
+import org.fusesource.hawtbuf.Buffer;
+import org.fusesource.hawtbuf.UTF8Buffer;
+import org.fusesource.mqtt.client.FutureConnection;
+import org.fusesource.mqtt.client.MQTT;
+import org.fusesource.mqtt.client.Tracer;
+
+import java.util.List;
+
+/**
+ * Spreads outbound traffic across several broker sessions so one slow QoS handshake does not hold
+ * up every device. The wrapped manager keeps the primary connection, which also carries all
+ * subscriptions. Additional uplink shards are publish-only connections, each reconnected by its
+ * own {@link ConnectionStateMachine} with backoff. Each event goes to a shard chosen by a hash of
+ * the device token in its header. All events for one device therefore stay on one connection and
+ * keep their order while that connection is up.
+ * <p>
+ * If a shard is down while it reconnects, its traffic falls back to the primary connection rather
+ * than being held. This trades ordering for availability: the broker does not order messages
+ * across connections, so events for a device sent around the switch (to the primary and back) may
+ * be processed out of order. Events carry their own dates, so SiteWhere still records them
+ * correctly. Subclasses that need strict per-device order can override
+ * {@link #selectShard(byte[], int, int, int)} to return zero, which keeps all traffic on the
+ * primary connection.
+ */
+public class MqttConnectionPool implements IMqttInteractionManager {
+
+	/** Tag for device token field in an encoded header */
+	private static final int HEADER_DEVICE_TOKEN_TAG = (DeviceEvent.Header.DEVICETOKEN_FIELD_NUMBER << 3) | 2;
+
+	/** Tag for value field in an encoded optional string */
+	private static final int OPTIONAL_STRING_VALUE_TAG = (GOptionalString.VALUE_FIELD_NUMBER << 3) | 2;
+
+	/** Manager for primary connection */
+	private final IMqttInteractionManager primary;
+
+	/** Uplink shards (primary connection is shard zero and not stored here) */
+	private volatile Shard[] shards = new Shard[0];
+
+	/** Chooses QoS for publishes */
+	private volatile MqttQosPolicy qosPolicy = new MqttQosPolicy();
+
+	public MqttConnectionPool(IMqttInteractionManager primary) {
+		this.primary = primary;
+	}
+
+	/**
+	 * Replace uplink shards. Existing shards are closed, and the new ones connect the next time
+	 * the primary connection does.
+	 *
+	 * @param template settings copied to each uplink connection
+	 * @param configs
+	 */
+	public void setShards(MQTT template, List<ShardConfig> configs) {
+		Shard[] old = shards;
+		Shard[] updated = new Shard[configs.size()];
+		for (int i = 0; i < updated.length; i++) {
+			updated[i] = new Shard(i + 1, template, configs.get(i));
+		}
+		shards = updated;
+		for (Shard shard : old) {
+			shard.close();
+		}
+	}
+
+	/**
+	 * Get total number of connections including the primary.
+	 *
+	 * @return
+	 */
+	public int getConnectionCount() {
+		return shards.length + 1;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.sitewhere.android.mqtt.IMqttInteractionManager#connect(java.lang.String,
+	 * java.lang.String, org.fusesource.mqtt.client.FutureConnection, boolean)
+	 */
+	@Override
+	public void connect(String tenant, String deviceToken, FutureConnection connection, boolean sessionPresent)
+			throws SiteWhereMqttException {
+		primary.connect(tenant, deviceToken, connection, sessionPresent);
+		for (Shard shard : shards) {
+			shard.reconnect();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.sitewhere.android.mqtt.IMqttInteractionManager#send(byte[])
+	 */
+	@Override
+	public void send(byte[] payload) throws SiteWhereMqttException {
+		send(payload, 0, payload.length);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.sitewhere.android.mqtt.IMqttInteractionManager#send(byte[], int, int)
+	 */
+	@Override
+	public void send(byte[] payload, int offset, int length) throws SiteWhereMqttException {
+		Shard[] current = shards;
+		if (current.length > 0) {
+			int index = selectShard(payload, offset, length, current.length + 1);
+			if (index > 0) {
+				Shard shard = current[index - 1];
+				if (shard.isConnected()) {
+					try {
+						shard.send(payload, offset, length);
+						return;
+					} catch (SiteWhereMqttException e) {
+						Log.w(MqttService.TAG, "Uplink shard " + index + " failed. Using primary connection.", e);
+					}
+				}
+
+				// Merged with any attempt already scheduled, so a dead shard is retried with backoff.
+				shard.reconnect();
+			}
+		}
+		primary.send(payload, offset, length);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.sitewhere.android.mqtt.IMqttInteractionManager#flush()
+	 */
+	@Override
+	public void flush() throws SiteWhereMqttException {
+		// Sends on uplink shards return once acknowledged.
+		primary.flush();
+	}
+
+	/**
+	 * Choose the connection for an encoded event. Zero is the primary connection. Override to
+	 * route by something other than a device token hash, for example to keep each tenant on its
+	 * own broker.
+	 *
+	 * @param payload
+	 * @param offset
+	 * @param length
+	 * @param connections
+	 * @return
+	 */
+	protected int selectShard(byte[] payload, int offset, int length, int connections) {
+		return (hashDeviceToken(payload, offset, length) & 0x7FFFFFFF) % connections;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.sitewhere.android.mqtt.IMqttInteractionManager#subscribe(java.lang.String)
+	 */
+	@Override
+	public void subscribe(String topic) throws SiteWhereMqttException {
+		primary.subscribe(topic);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.sitewhere.android.mqtt.IMqttInteractionManager#unsubscribe(java.lang.String)
+	 */
+	@Override
+	public void unsubscribe(String topic) throws SiteWhereMqttException {
+		primary.unsubscribe(topic);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.sitewhere.android.mqtt.IMqttInteractionManager#addChildDevices(java.lang.String[])
+	 */
+	@Override
+	public void addChildDevices(String[] deviceTokens) throws SiteWhereMqttException {
+		primary.addChildDevices(deviceTokens);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.sitewhere.android.mqtt.IMqttInteractionManager#removeChildDevices(java.lang.String[])
+	 */
+	@Override
+	public void removeChildDevices(String[] deviceTokens) throws SiteWhereMqttException {
+		primary.removeChildDevices(deviceTokens);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.sitewhere.android.mqtt.IMqttInteractionManager#disconnect(java.lang.String,
+	 * java.lang.String, org.fusesource.mqtt.client.FutureConnection)
+	 */
+	@Override
+	public void disconnect(String tenant, String deviceToken, FutureConnection connection)
+			throws SiteWhereMqttException {
+		for (Shard shard : shards) {
+			shard.suspend();
+		}
+		primary.disconnect(tenant, deviceToken, connection);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.sitewhere.android.mqtt.IMqttInteractionManager#setCallback(com.sitewhere.android.mqtt
+	 * .IMqttCallback)
+	 */
+	@Override
+	public void setCallback(IMqttCallback callback) {
+		primary.setCallback(callback);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.sitewhere.android.mqtt.IMqttInteractionManager#setQosPolicy(com.sitewhere.android.mqtt
+	 * .MqttQosPolicy)
+	 */
+	@Override
+	public void setQosPolicy(MqttQosPolicy policy) {
+		this.qosPolicy = policy;
+		primary.setQosPolicy(policy);
+	}
+
+	/**
+	 * Close all uplink shards.
+	 */
+	public void close() {
+		Shard[] old = shards;
+		shards = new Shard[0];
+		for (Shard shard : old) {
+			shard.close();
+		}
+	}
+
+	/**
+	 * Hash the UTF-8 bytes of the device token in an encoded event header (FNV-1a). Returns zero
+	 * if the header has no token.
+	 *
+	 * @param payload
+	 * @param offset
+	 * @param length
+	 * @return
+	 */
+	static int hashDeviceToken(byte[] payload, int offset, int length) {
+		int end = offset + length;
+		long varint = readVarint(payload, offset, end);
+		int position = (int) varint;
+		int headerEnd = Math.min(end, position + (int) (varint >>> 32));
+		while (position < headerEnd) {
+			varint = readVarint(payload, position, headerEnd);
+			position = (int) varint;
+			int tag = (int) (varint >>> 32);
+			if (tag == HEADER_DEVICE_TOKEN_TAG) {
+				varint = readVarint(payload, position, headerEnd);
+				position = (int) varint;
+				int tokenEnd = Math.min(headerEnd, position + (int) (varint >>> 32));
+				if (position >= tokenEnd) {
+					return 0;
+				}
+				varint = readVarint(payload, position, tokenEnd);
+				position = (int) varint;
+				if ((int) (varint >>> 32) != OPTIONAL_STRING_VALUE_TAG) {
+					return 0;
+				}
+				varint = readVarint(payload, position, tokenEnd);
+				position = (int) varint;
+				int stringEnd = Math.min(tokenEnd, position + (int) (varint >>> 32));
+				int hash = 0x811C9DC5;
+				for (int i = position; i < stringEnd; i++) {
+					hash ^= payload[i] & 0xFF;
+					hash *= 0x01000193;
+				}
+				return hash;
+			}
+			switch (tag & 0x07) {
+			case 0:
+				position = (int) readVarint(payload, position, headerEnd);
+				break;
+			case 2:
+				varint = readVarint(payload, position, headerEnd);
+				position = (int) varint;
+				int skip = (int) (varint >>> 32);
+				if ((skip < 0) || (skip > headerEnd - position)) {
+					return 0;
+				}
+				position += skip;
+				break;
+			default:
+				return 0;
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Read a varint starting at the given position. Returns the value in the upper 32 bits and the
+	 * position after it in the lower 32 bits, so hashing allocates nothing. The value is zero if the
+	 * varint runs past the end of the range.
+	 */
+	private static long readVarint(byte[] payload, int position, int end) {
+		int value = 0;
+		int shift = 0;
+		while ((position < end) && (shift < 32)) {
+			byte current = payload[position++];
+			value |= (current & 0x7F) << shift;
+			if ((current & 0x80) == 0) {
+				return ((long) value << 32) | (position & 0xFFFFFFFFL);
+			}
+			shift += 7;
+		}
+		return position & 0xFFFFFFFFL;
+	}
+
+	/**
+	 * Broker and tenant for an uplink shard.
+	 */
+	public static class ShardConfig {
+
+		/** Broker host name */
+		private final String hostname;
+
+		/** Broker port */
+		private final int port;
+
+		/** Tenant events are published for */
+		private final String tenant;
+
+		public ShardConfig(String hostname, int port, String tenant) {
+			this.hostname = hostname;
+			this.port = port;
+			this.tenant = tenant;
+		}
+
+		public String getHostname() {
+			return hostname;
+		}
+
+		public int getPort() {
+			return port;
+		}
+
+		public String getTenant() {
+			return tenant;
+		}
+	}
+
+	/**
+	 * Publish-only connection with its own connection state machine.
+	 */
+	private class Shard implements ConnectionStateMachine.Connector {
+
+		/** Position in the pool, used for logging */
+		private final int index;
+
+		/** Connection settings */
+		private final MQTT mqtt;
+
+		/** Topic events are published to */
+		private final UTF8Buffer topic;
+
+		/** Runs connect attempts with backoff */
+		private final ConnectionStateMachine machine;
+
+		/** Current connection */
+		private volatile FutureConnection connection;
+
+		/** Indicates shard has been closed */
+		private volatile boolean closed;
+
+		Shard(int index, MQTT template, ShardConfig config) {
+			this.index = index;
+			this.mqtt = new MQTT(template);
+
+			// Publish-only, so no session is kept, but the id must differ from the primary's.
+			mqtt.setClientId(MqttService.createClientId(template.getClientId() + "/uplink/" + index));
+			mqtt.setCleanSession(true);
+
+			// The primary's tracer reads the session flag from CONNACK, so shards must not share it.
+			mqtt.setTracer(new Tracer());
+			try {
+				mqtt.setHost(config.getHostname(), config.getPort());
+			} catch (Exception e) {
+				Log.e(MqttService.TAG, "Invalid host for uplink shard " + index + ".", e);
+			}
+			this.topic = new UTF8Buffer(String.format(DefaultMqttInteractionManager.OUTBOUND_TOPIC, config.getTenant()));
+			this.machine = new ConnectionStateMachine(this);
+		}
+
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see com.sitewhere.androidsdk.mqtt.ConnectionStateMachine.Connector#canConnect()
+		 */
+		@Override
+		public boolean canConnect() {
+			return !closed;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see com.sitewhere.androidsdk.mqtt.ConnectionStateMachine.Connector#isConnected()
+		 */
+		@Override
+		public boolean isConnected() {
+			FutureConnection current = connection;
+			return (current != null) && (current.isConnected());
+		}
+
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see com.sitewhere.androidsdk.mqtt.ConnectionStateMachine.Connector#connect()
+		 */
+		@Override
+		public void connect() throws Exception {
+			FutureConnection old = connection;
+			connection = null;
+			if (old != null) {
+				old.kill();
+			}
+			FutureConnection created = mqtt.futureConnection();
+			created.connect().await();
+			if (closed) {
+				created.disconnect();
+				return;
+			}
+			connection = created;
+			Log.d(MqttService.TAG, "Connected uplink shard " + index + ".");
+		}
+
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see com.sitewhere.androidsdk.mqtt.ConnectionStateMachine.Connector#disconnect()
+		 */
+		@Override
+		public void disconnect() {
+			FutureConnection current = connection;
+			connection = null;
+			if (current != null) {
+				current.disconnect();
+			}
+		}
+
+		/**
+		 * Publish and wait for the handshake to complete. Sends on a shard are serialized so they
+		 * reach the broker in order.
+		 */
+		synchronized void send(byte[] payload, int offset, int length) throws SiteWhereMqttException {
+			FutureConnection current = connection;
+			if (current == null) {
+				throw new SiteWhereMqttException("Uplink shard " + index + " is not connected.");
+			}
+			try {
+				current.publish(topic, new Buffer(payload, offset, length),
+						qosPolicy.getPublishQos(payload, offset, length), false).await();
+			} catch (Exception e) {
+				throw new SiteWhereMqttException("Unable to publish on uplink shard " + index + ".", e);
+			}
+		}
+
+		/**
+		 * Request a connect attempt. Merged with any attempt already scheduled or running, and
+		 * delayed with backoff after failures.
+		 */
+		void reconnect() {
+			machine.reconnect(false);
+		}
+
+		/**
+		 * Cancel pending attempts and disconnect, allowing later reconnects.
+		 */
+		void suspend() {
+			machine.networkLost();
+		}
+
+		/**
+		 * Disconnect and stop reconnecting.
+		 */
+		void close() {
+			closed = true;
+			machine.stop();
+			disconnect();
+		}
+	}
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) SiteWhere, LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.androidsdk.mqtt;
+
+import com.sitewhere.androidsdk.mqtt.preferences.IMqttServicePreferences;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.DeviceEvent;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.DeviceEvent.Command;
+
+import org.fusesource.mqtt.client.QoS;
+
+/**
+ * Chooses the MQTT QoS level for outbound events by event type and for inbound subscriptions.
+ * Anything not configured uses {@link QoS#EXACTLY_ONCE}, which was the only level used before.
+ */
+public class MqttQosPolicy {
+
+	/** QoS used when nothing is configured */
+	public static final QoS DEFAULT_QOS = QoS.EXACTLY_ONCE;
+
+	/** Tag for the command field at the start of an encoded header */
+	private static final int HEADER_COMMAND_TAG = DeviceEvent.Header.COMMAND_FIELD_NUMBER << 3;
+
+	/** Publish QoS indexed by command number */
+	private final QoS[] publishQos;
+
+	/** QoS for device command and system topics */
+	private QoS commandSubscriptionQos = DEFAULT_QOS;
+
+	/** QoS for event topics subscribed by clients */
+	private QoS eventSubscriptionQos = DEFAULT_QOS;
+
+	public MqttQosPolicy() {
+		int max = 0;
+		for (Command command : Command.values()) {
+			if (command != Command.UNRECOGNIZED) {
+				max = Math.max(max, command.getNumber());
+			}
+		}
+		this.publishQos = new QoS[max + 1];
+		for (int i = 0; i < publishQos.length; i++) {
+			publishQos[i] = DEFAULT_QOS;
+		}
+	}
+
+	/**
+	 * Create a policy from service preferences. Levels that are not set keep the default.
+	 *
+	 * @param preferences
+	 * @return
+	 */
+	public static MqttQosPolicy from(IMqttServicePreferences preferences) {
+		MqttQosPolicy policy = new MqttQosPolicy();
+		policy.setPublishQos(Command.SendMeasurement, toQos(preferences.getMeasurementQos()));
+		policy.setPublishQos(Command.SendLocation, toQos(preferences.getLocationQos()));
+		policy.setPublishQos(Command.SendAlert, toQos(preferences.getAlertQos()));
+		policy.setPublishQos(Command.SendRegistration, toQos(preferences.getRegistrationQos()));
+		policy.setPublishQos(Command.SendAcknowledgement, toQos(preferences.getAcknowledgementQos()));
+		policy.setCommandSubscriptionQos(toQos(preferences.getCommandSubscriptionQos()));
+		policy.setEventSubscriptionQos(toQos(preferences.getEventSubscriptionQos()));
+		return policy;
+	}
+
+	/**
+	 * Convert an MQTT QoS level (0, 1 or 2) to a {@link QoS}. Null or out of range values map to
+	 * the default.
+	 *
+	 * @param level
+	 * @return
+	 */
+	public static QoS toQos(Integer level) {
+		if ((level == null) || (level < 0) || (level >= QoS.values().length)) {
+			return DEFAULT_QOS;
+		}
+		return QoS.values()[level];
+	}
+
+	/**
+	 * Set QoS for publishing events with the given command.
+	 *
+	 * @param command
+	 * @param qos
+	 * @return
+	 */
+	public MqttQosPolicy setPublishQos(Command command, QoS qos) {
+		publishQos[command.getNumber()] = qos;
+		return this;
+	}
+
+	/**
+	 * Get QoS for publishing events with the given command.
+	 *
+	 * @param command
+	 * @return
+	 */
+	public QoS getPublishQos(Command command) {
+		return getPublishQos(command.getNumber());
+	}
+
+	/**
+	 * Get QoS for publishing an encoded event, based on the command in its header. Only the first
+	 * few bytes are read.
+	 *
+	 * @param payload
+	 * @param offset
+	 * @param length
+	 * @return
+	 */
+	public QoS getPublishQos(byte[] payload, int offset, int length) {
+		int end = offset + length;
+		int position = offset;
+
+		// Skip header length prefix.
+		while ((position < end) && ((payload[position] & 0x80) != 0)) {
+			position++;
+		}
+		position++;
+
+		// Command is omitted from the header when it has the default value.
+		if ((position >= end) || ((payload[position] & 0xFF) != HEADER_COMMAND_TAG)) {
+			return getPublishQos(0);
+		}
+		position++;
+		int command = 0;
+		int shift = 0;
+		while ((position < end) && (shift < 32)) {
+			byte current = payload[position++];
+			command |= (current & 0x7F) << shift;
+			if ((current & 0x80) == 0) {
+				return getPublishQos(command);
+			}
+			shift += 7;
+		}
+		return DEFAULT_QOS;
+	}
+
+	public QoS getCommandSubscriptionQos() {
+		return commandSubscriptionQos;
+	}
+
+	public MqttQosPolicy setCommandSubscriptionQos(QoS commandSubscriptionQos) {
+		this.commandSubscriptionQos = commandSubscriptionQos;
+		return this;
+	}
+
+	public QoS getEventSubscriptionQos() {
+		return eventSubscriptionQos;
+	}
+
+	public MqttQosPolicy setEventSubscriptionQos(QoS eventSubscriptionQos) {
+		this.eventSubscriptionQos = eventSubscriptionQos;
+		return this;
+	}
+
+	private QoS getPublishQos(int commandNumber) {
+		if ((commandNumber < 0) || (commandNumber >= publishQos.length)) {
+			return DEFAULT_QOS;
+		}
+		return publishQos[commandNumber];
+	}
+}
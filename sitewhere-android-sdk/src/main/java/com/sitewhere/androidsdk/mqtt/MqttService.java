@@ -26,19 +26,26 @@ import android.os.RemoteException;
 import android.provider.Settings.Secure;
 import android.util.Log;
 
+import com.sitewhere.androidsdk.messaging.EventFrames;
 import com.sitewhere.androidsdk.messaging.IFromSiteWhere;
+import com.sitewhere.androidsdk.messaging.IFromSiteWhereV2;
+import com.sitewhere.androidsdk.messaging.ISendCallback;
 import com.sitewhere.androidsdk.messaging.ISiteWhereMessaging;
 import com.sitewhere.androidsdk.messaging.IToSiteWhere;
+import com.sitewhere.androidsdk.messaging.SharedRing;
+import com.sitewhere.androidsdk.messaging.SiteWhereMessagingException;
 import com.sitewhere.androidsdk.mqtt.preferences.IMqttServicePreferences;
 
-import org.fusesource.mqtt.client.BlockingConnection;
+import org.fusesource.mqtt.client.FutureConnection;
 import org.fusesource.mqtt.client.MQTT;
-import org.fusesource.mqtt.client.Tracer;
-import org.fusesource.mqtt.codec.MQTTFrame;
 
-import java.net.URISyntaxException;
-import java.util.Formatter;
-import java.util.Locale;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Service that provides MQTT connectivity to external apps.
@@ -53,28 +60,43 @@ public class MqttService extends Service {
 	/** Application package prefix */
 	public static final String APP_ID = "com.sitewhere.mqtt";
 
-	/** MQTT client connection state */
-	public MqttConnectionState connectionState = MqttConnectionState.Disconnected;
+	/** Runs connection attempts and tracks connection state */
+	private ConnectionStateMachine connectionStateMachine;
 
 	/** MQTT client */
 	private MQTT mqtt;
 
 	/** MQTT connection */
-	private BlockingConnection connection;
+	private FutureConnection connection;
 
 	// Start up management entities.
 	/** Manages interactions with MQTT pub/sub */
-	private IMqttInteractionManager mqttManager = new DefaultMqttInteractionManager();
+	private IMqttInteractionManager mqttManager;
 
 	/** Manages client registration and notification */
 	private RegistrationManager registrationManager;
 
+	/** Queue for messages sent asynchronously */
+	private OutboundMessageQueue outboundQueue;
+
+	/** Reads messages clients write to shared memory */
+	private SharedRingReader sharedRingReader;
+
+	/** Spreads outbound messages across uplink connections */
+	private MqttConnectionPool connectionPool;
+
+	/** Stores outbound messages while disconnected (null if unavailable) */
+	private JournalingMqttInteractionManager journalingManager;
+
 	/** MQTT configuration */
 	private IMqttServicePreferences configuration;
 
 	/** Network availability monitor */
 	private NetworkMonitor networkMonitor;
 
+	/** Traces MQTT frames */
+	private final FrameTracer frameTracer = new FrameTracer();
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -85,50 +107,176 @@ public class MqttService extends Service {
 		super.onCreate();
 
 		// Reset connection state.
-		connectionState = MqttConnectionState.Disconnected;
+		connectionStateMachine = createConnectionStateMachine(connector);
+
+		registrationManager = createRegistrationManager();
+		registrationManager.setSubscriptionListener(new RegistrationManager.SubscriptionListener() {
+
+			@Override
+			public void onSubscribe(String filter) throws SiteWhereMqttException {
+				mqttManager.subscribe(filter);
+			}
+
+			@Override
+			public void onUnsubscribe(String filter) throws SiteWhereMqttException {
+				mqttManager.unsubscribe(filter);
+			}
+
+			@Override
+			public void onAddChildDevices(String[] deviceTokens) throws SiteWhereMqttException {
+				mqttManager.addChildDevices(deviceTokens);
+			}
 
-		registrationManager = new RegistrationManager();
+			@Override
+			public void onRemoveChildDevices(String[] deviceTokens) throws SiteWhereMqttException {
+				mqttManager.removeChildDevices(deviceTokens);
+			}
+		});
+		connectionPool = new MqttConnectionPool(createInteractionManager());
+		mqttManager = connectionPool;
+		try {
+			journalingManager = new JournalingMqttInteractionManager(mqttManager, createOutboundJournal());
+			mqttManager = journalingManager;
+		} catch (IOException e) {
+			Log.e(TAG, "Unable to open outbound journal. Messages sent while disconnected will be lost.", e);
+		}
 		mqttManager.setCallback(registrationManager);
 
+		outboundQueue = new OutboundMessageQueue(mqttManager, journalingManager);
+		outboundQueue.start();
+		sharedRingReader = new SharedRingReader(mqttManager, journalingManager);
+
 		prepareMqtt();
 		startMonitoringNetwork();
 	}
 
+	/**
+	 * Create the manager that tracks registered clients and delivers notifications to them.
+	 * Override in a subclass to change the per-client queue size or overflow policy.
+	 *
+	 * @return
+	 */
+	protected RegistrationManager createRegistrationManager() {
+		return new RegistrationManager();
+	}
+
+	/**
+	 * Get the manager that tracks registered clients, for example to read per-client delivery
+	 * metrics.
+	 *
+	 * @return
+	 */
+	public RegistrationManager getRegistrationManager() {
+		return registrationManager;
+	}
+
+	/**
+	 * Create the state machine that runs connection attempts. Override in a subclass to change
+	 * the backoff limits.
+	 *
+	 * @param connector
+	 * @return
+	 */
+	protected ConnectionStateMachine createConnectionStateMachine(ConnectionStateMachine.Connector connector) {
+		return new ConnectionStateMachine(connector);
+	}
+
+	/**
+	 * Get the current MQTT connection state.
+	 *
+	 * @return
+	 */
+	public MqttConnectionState getConnectionState() {
+		return connectionStateMachine.getState();
+	}
+
+	/**
+	 * Create the manager that handles MQTT pub/sub. Override in a subclass to use a different
+	 * strategy such as {@link PipelinedMqttInteractionManager}.
+	 *
+	 * @return
+	 */
+	protected IMqttInteractionManager createInteractionManager() {
+		DefaultMqttInteractionManager manager = new DefaultMqttInteractionManager();
+		manager.setSessionDirectory(new File(getFilesDir(), "sitewhere-session"));
+		return manager;
+	}
+
+	/**
+	 * Create the broker settings for uplink connections used in addition to the primary one. By
+	 * default, {@link IMqttServicePreferences#getUplinkConnections()} minus one connections are
+	 * opened to the configured broker and tenant. Override in a subclass to spread uplink traffic
+	 * across other brokers or tenants.
+	 *
+	 * @param configuration
+	 * @return
+	 */
+	protected List<MqttConnectionPool.ShardConfig> createUplinkShards(IMqttServicePreferences configuration) {
+		List<MqttConnectionPool.ShardConfig> shards = new ArrayList<MqttConnectionPool.ShardConfig>();
+		Integer connections = configuration.getUplinkConnections();
+		for (int i = 1; (connections != null) && (i < connections); i++) {
+			shards.add(new MqttConnectionPool.ShardConfig(configuration.getBrokerHostname(),
+					configuration.getBrokerPort(), configuration.getTenant()));
+		}
+		return shards;
+	}
+
+	/**
+	 * Create the journal that holds outbound messages while the broker is unreachable. Override in
+	 * a subclass to change location or disk limits.
+	 *
+	 * @return
+	 * @throws IOException
+	 */
+	protected OutboundJournal createOutboundJournal() throws IOException {
+		return new OutboundJournal(new File(getFilesDir(), "sitewhere-journal"));
+	}
+
 	/**
 	 * Configures the MQTT top-level settings. No connection is created until the service is
 	 * requested.
 	 */
 	protected void prepareMqtt() {
 		this.mqtt = new MQTT();
+		mqtt.setVersion("3.1.1");
+		mqtt.setCleanSession(false);
 		mqtt.setConnectAttemptsMax(1);
 		mqtt.setReconnectAttemptsMax(1);
 		mqtt.setKeepAlive((short) 300);
-		mqtt.setTracer(new Tracer() {
-
-			@Override
-			public void debug(String message, Object... args) {
-				super.debug(message, args);
-				StringBuilder sb = new StringBuilder();
-				Formatter formatter = new Formatter(sb, Locale.US);
-				try {
-					Log.d(TAG, formatter.format(message, args).toString());
-				} finally {
-					formatter.close();
-				}
-			}
+		mqtt.setTracer(frameTracer);
+	}
 
-			@Override
-			public void onReceive(MQTTFrame frame) {
-				super.onReceive(frame);
-				Log.d(TAG, frame.toString());
+	/**
+	 * Create a stable MQTT client id so the broker can resume the session for a device after a
+	 * reconnect. The id is "sw-" followed by the first 20 hex digits of the SHA-1 of the seed,
+	 * which keeps it within the 23 characters every MQTT 3.1.1 broker must accept.
+	 *
+	 * @param seed
+	 * @return
+	 */
+	public static String createClientId(String seed) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			byte[] hash = digest.digest(seed.getBytes(Charset.forName("UTF-8")));
+			StringBuilder id = new StringBuilder("sw-");
+			for (int i = 0; i < 10; i++) {
+				id.append(Character.forDigit((hash[i] >>> 4) & 0x0F, 16));
+				id.append(Character.forDigit(hash[i] & 0x0F, 16));
 			}
+			return id.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-1 not available.", e);
+		}
+	}
 
-			@Override
-			public void onSend(MQTTFrame frame) {
-				super.onSend(frame);
-				Log.d(TAG, frame.toString());
-			}
-		});
+	/**
+	 * Get the tracer that logs MQTT frames when verbose SDK logging is enabled and can record a
+	 * sample of recent frames for {@link FrameTracer#dump(String)}.
+	 *
+	 * @return
+	 */
+	public FrameTracer getFrameTracer() {
+		return frameTracer;
 	}
 
 	/**
@@ -151,7 +299,15 @@ public class MqttService extends Service {
 	public void onDestroy() {
 		super.onDestroy();
 		stopMonitoringNetwork();
+		connectionStateMachine.stop();
+		outboundQueue.stop();
+		sharedRingReader.stop();
 		disconnect();
+		connectionPool.close();
+		registrationManager.clear();
+		if (journalingManager != null) {
+			journalingManager.close();
+		}
 	}
 
 	/**
@@ -165,48 +321,66 @@ public class MqttService extends Service {
 	}
 
 	/**
-	 * Reconnect to the MQTT broker.
+	 * Reconnect to the MQTT broker. Requests made while an attempt is already scheduled or running
+	 * are merged into it.
 	 */
 	protected void reconnect() {
 		if (!hasBeenConfigured()) {
 			Log.d(TAG, "Reconnect called without client having configured settings. Ignoring.");
 			return;
 		}
-		if (connectionState == MqttConnectionState.Connecting) {
-			Log.d(TAG, "Connection request ignored. Already in process of connecting...");
-			return;
-		}
+		connectionStateMachine.reconnect(false);
+	}
 
-		new Thread(new Runnable() {
+	/**
+	 * Connect to the MQTT broker with the current configuration. Only called on the connection
+	 * state machine thread.
+	 *
+	 * @throws Exception
+	 */
+	protected void connect() throws Exception {
+		Log.d(TAG, "Connecting to MQTT...");
+		disconnect();
 
-			@Override
-			public void run() {
-				Log.d(TAG, "Connecting to MQTT...");
-				connectionState = MqttConnectionState.Connecting;
+		mqtt.setHost(configuration.getBrokerHostname(), configuration.getBrokerPort());
+		mqtt.setClientId(createClientId(configuration.getDeviceToken()));
+		mqttManager.setQosPolicy(MqttQosPolicy.from(configuration));
+		connectionPool.setShards(mqtt, createUplinkShards(configuration));
+		connection = mqtt.futureConnection();
+		connection.connect().await();
+		boolean sessionPresent = frameTracer.isSessionPresent();
+		Log.d(TAG, "Connected to MQTT" + (sessionPresent ? " and resumed session." : "."));
+		mqttManager.connect(
+				configuration.getTenant(),
+				configuration.getDeviceToken(),
+				connection,
+				sessionPresent);
+		registrationManager.connected();
+	}
 
-				disconnect();
+	/** Lets the connection state machine drive the connection */
+	private final ConnectionStateMachine.Connector connector = new ConnectionStateMachine.Connector() {
 
-				try {
-					mqtt.setHost(configuration.getBrokerHostname(), configuration.getBrokerPort());
-					connection = mqtt.blockingConnection();
-					connection.connect();
-					Log.d(TAG, "Connected to MQTT.");
-					mqttManager.connect(
-							configuration.getTenant(),
-							configuration.getDeviceToken(),
-							connection);
-					registrationManager.connected();
-					connectionState = MqttConnectionState.Connected;
-				} catch (URISyntaxException e) {
-					Log.d(TAG, "Error setting MQTT host.", e);
-					connectionState = MqttConnectionState.Disconnected;
-				} catch (Exception e) {
-					Log.d(TAG, "Error connecting to MQTT host.", e);
-					connectionState = MqttConnectionState.Disconnected;
-				}
-			}
-		}, TAG).start();
-	}
+		@Override
+		public boolean canConnect() {
+			return hasBeenConfigured() && isOnline();
+		}
+
+		@Override
+		public boolean isConnected() {
+			return isMqttConnected();
+		}
+
+		@Override
+		public void connect() throws Exception {
+			MqttService.this.connect();
+		}
+
+		@Override
+		public void disconnect() {
+			MqttService.this.disconnect();
+		}
+	};
 
 	/**
 	 * Disconnect from the MQTT broker.
@@ -219,9 +393,8 @@ public class MqttService extends Service {
 						configuration.getTenant(),
 						configuration.getDeviceToken(),
 						connection);
-				connection.disconnect();
+				connection.disconnect().await();
 				connection = null;
-				connectionState = MqttConnectionState.Disconnected;
 				registrationManager.disconnected();
 			} catch (Exception e) {
 				Log.d(TAG, "Error disconnecting from MQTT.", e);
@@ -238,6 +411,16 @@ public class MqttService extends Service {
 		return ((connection != null) && (connection.isConnected()));
 	}
 
+	/**
+	 * Indicates if outbound messages can be accepted, either for immediate delivery or for storage
+	 * in the journal until the connection is restored.
+	 *
+	 * @return
+	 */
+	protected boolean canAcceptMessages() {
+		return (journalingManager != null) || isMqttConnected();
+	}
+
 	/**
 	 * Indicates if a client has already sent in a configuration that can be used to start the
 	 * service.
@@ -326,13 +509,11 @@ public class MqttService extends Service {
 			needsReconnect = false;
 		}
 
-		if ((!isMqttConnected()) || (needsReconnect)) {
-			if (isOnline()) {
-				reconnect();
-			} else {
-				// Indicate that we are waiting for the network.
-				connectionState = MqttConnectionState.WaitingForNetwork;
-			}
+		// Waits for the network if it is unavailable.
+		if (needsReconnect) {
+			connectionStateMachine.reconnect(true);
+		} else if (!isMqttConnected()) {
+			reconnect();
 		}
 	}
 
@@ -368,6 +549,31 @@ public class MqttService extends Service {
 			}
 		}
 
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see
+		 * com.sitewhere.android.messaging.IToSiteWhere#registerWithProtocol(com.sitewhere.android
+		 * .messaging.IFromSiteWhere, com.sitewhere.android.messaging.IFromSiteWhereV2, int)
+		 */
+		@Override
+		public int registerWithProtocol(IFromSiteWhere client, IFromSiteWhereV2 batchCallback, int protocolVersion)
+				throws RemoteException {
+			int version = Math.min(protocolVersion, RegistrationManager.PROTOCOL_VERSION);
+			if ((version < 2) || (batchCallback == null) || RegistrationManager.isLocal(client)) {
+				version = 1;
+				batchCallback = null;
+			}
+			Log.d(TAG, "Sending register request for protocol version " + version + "...");
+			registrationManager.addClient(client, batchCallback);
+
+			// If we were already connected, make sure the client knows.
+			if (isMqttConnected()) {
+				registrationManager.connected();
+			}
+			return version;
+		}
+
 		/*
 		 * (non-Javadoc)
 		 * 
@@ -375,7 +581,7 @@ public class MqttService extends Service {
 		 */
 		@Override
 		public void send(byte[] payload) throws RemoteException {
-			if (connection != null && connection.isConnected()) {
+			if (canAcceptMessages()) {
 				try {
 					mqttManager.send(payload);
 				} catch (SiteWhereMqttException e) {
@@ -385,16 +591,169 @@ public class MqttService extends Service {
 			}
 		}
 
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see com.sitewhere.android.messaging.IToSiteWhere#sendBatch(byte[])
+		 */
+		@Override
+		public void sendBatch(byte[] frames) throws RemoteException {
+			if (canAcceptMessages()) {
+				try {
+					EventFrames.Reader reader = new EventFrames.Reader(frames);
+					while (reader.next()) {
+						mqttManager.send(frames, reader.getOffset(), reader.getLength());
+					}
+				} catch (SiteWhereMessagingException e) {
+					Log.e(TAG, "Error unpacking batched message.", e);
+					throw new RemoteException();
+				} catch (SiteWhereMqttException e) {
+					Log.e(TAG, "Error sending batched message.", e);
+					throw new RemoteException();
+				}
+			}
+		}
+
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see
+		 * com.sitewhere.android.messaging.IToSiteWhere#attachSharedRing(com.sitewhere.android.messaging
+		 * .IFromSiteWhere, com.sitewhere.androidsdk.messaging.SharedRing)
+		 */
+		@Override
+		public boolean attachSharedRing(IFromSiteWhere client, SharedRing ring) throws RemoteException {
+			if (RegistrationManager.isLocal(client)) {
+				return false;
+			}
+			try {
+				sharedRingReader.attach(client.asBinder(), ring);
+				return true;
+			} catch (IOException e) {
+				Log.w(TAG, "Unable to attach shared ring. Client will send through binder.", e);
+				return false;
+			}
+		}
+
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see
+		 * com.sitewhere.android.messaging.IToSiteWhere#signalSharedRing(com.sitewhere.android.messaging
+		 * .IFromSiteWhere)
+		 */
+		@Override
+		public void signalSharedRing(IFromSiteWhere client) throws RemoteException {
+			sharedRingReader.signal(client.asBinder());
+		}
+
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see
+		 * com.sitewhere.android.messaging.IToSiteWhere#flushSharedRing(com.sitewhere.android.messaging
+		 * .IFromSiteWhere)
+		 */
+		@Override
+		public void flushSharedRing(IFromSiteWhere client) throws RemoteException {
+			sharedRingReader.flush(client.asBinder());
+		}
+
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see com.sitewhere.android.messaging.IToSiteWhere#sendAsync(byte[], long,
+		 * com.sitewhere.android.messaging.ISendCallback)
+		 */
+		@Override
+		public void sendAsync(byte[] payload, long id, ISendCallback callback) throws RemoteException {
+			outboundQueue.offer(payload, false, id, callback);
+		}
+
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see com.sitewhere.android.messaging.IToSiteWhere#sendBatchAsync(byte[], long,
+		 * com.sitewhere.android.messaging.ISendCallback)
+		 */
+		@Override
+		public void sendBatchAsync(byte[] frames, long id, ISendCallback callback) throws RemoteException {
+			outboundQueue.offer(frames, true, id, callback);
+		}
+
         @Override
         public void registerForEvents(String topic) throws RemoteException {
             try {
-                mqttManager.subscribe(topic);
+                registrationManager.addSharedSubscription(topic);
             } catch (SiteWhereMqttException e) {
                 Log.e(TAG, "Error subscribing to topic " + topic, e);
                 throw new RemoteException();
             }
         }
 
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see com.sitewhere.android.messaging.IToSiteWhere#subscribeForEvents(com.sitewhere.android
+		 * .messaging.IFromSiteWhere, java.lang.String)
+		 */
+		@Override
+		public void subscribeForEvents(IFromSiteWhere client, String topic) throws RemoteException {
+			try {
+				if (!registrationManager.subscribe(client, topic)) {
+					Log.w(TAG, "Ignoring subscription to " + topic + " from unregistered client.");
+				}
+			} catch (SiteWhereMqttException e) {
+				Log.e(TAG, "Error subscribing to topic " + topic, e);
+				throw new RemoteException();
+			}
+		}
+
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see com.sitewhere.android.messaging.IToSiteWhere#unsubscribeFromEvents(com.sitewhere.android
+		 * .messaging.IFromSiteWhere, java.lang.String)
+		 */
+		@Override
+		public void unsubscribeFromEvents(IFromSiteWhere client, String topic) throws RemoteException {
+			registrationManager.unsubscribe(client, topic);
+		}
+
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see com.sitewhere.android.messaging.IToSiteWhere#addChildDevices(com.sitewhere.android
+		 * .messaging.IFromSiteWhere, java.lang.String[])
+		 */
+		@Override
+		public void addChildDevices(IFromSiteWhere client, String[] deviceTokens) throws RemoteException {
+			try {
+				if (!registrationManager.addChildDevices(client, deviceTokens)) {
+					Log.w(TAG, "Ignoring child devices from unregistered client.");
+				}
+			} catch (SiteWhereMqttException e) {
+				Log.e(TAG, "Error adding child devices.", e);
+				throw new RemoteException();
+			}
+		}
+
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see com.sitewhere.android.messaging.IToSiteWhere#removeChildDevices(com.sitewhere.android
+		 * .messaging.IFromSiteWhere, java.lang.String[])
+		 */
+		@Override
+		public void removeChildDevices(IFromSiteWhere client, String[] deviceTokens) throws RemoteException {
+			try {
+				registrationManager.removeChildDevices(client, deviceTokens);
+			} catch (SiteWhereMqttException e) {
+				Log.e(TAG, "Error removing child devices.", e);
+				throw new RemoteException();
+			}
+		}
+
         /*
                  * (non-Javadoc)
                  *
@@ -406,6 +765,7 @@ public class MqttService extends Service {
 		public void unregister(IFromSiteWhere client) throws RemoteException {
 			Log.d(TAG, "Sending unregister request...");
 			registrationManager.removeClient(client);
+			sharedRingReader.detach(client.asBinder());
 		}
 	};
 
@@ -440,10 +800,7 @@ public class MqttService extends Service {
 		public void onReceive(Context context, Intent intent) {
 			Log.d(TAG, "Network status change detected.");
 			if (!isOnline()) {
-				if (isMqttConnected()) {
-					disconnect();
-					connectionState = MqttConnectionState.WaitingForNetwork;
-				}
+				connectionStateMachine.networkLost();
 			} else {
 				if ((!isMqttConnected()) && (hasBeenConfigured())) {
 					reconnect();
@@ -0,0 +1,556 @@
+/*
+ * Copyright (c) SiteWhere, LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.androidsdk.mqtt;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of outbound payloads stored in fixed-size segment files. Records are read
+ * back in the order they were appended, and the read position is checkpointed to disk so that a
+ * restarted service resumes where it left off. Delivery is at-least-once: records read after the
+ * last checkpoint may be replayed after a crash. Several records can be read with
+ * {@link #peek()} and {@link #next()} and then removed together with {@link #commit()}, so a
+ * reader does not have to wait for each one to be delivered. Appended records are forced to disk before
+ * {@link #append(byte[], int, int)} returns, with concurrent appends sharing one sync. When the
+ * journal grows past its segment limit, the oldest segment is discarded.
+ */
+public class OutboundJournal {
+
+	/** Default maximum size of a segment file in bytes */
+	public static final int DEFAULT_SEGMENT_SIZE = 1024 * 1024;
+
+	/** Default maximum number of segment files kept on disk */
+	public static final int DEFAULT_MAX_SEGMENTS = 32;
+
+	/** Record header holds payload length and CRC */
+	private static final int RECORD_HEADER_SIZE = 8;
+
+	/** Number of records consumed between checkpoint writes */
+	private static final int CHECKPOINT_INTERVAL = 64;
+
+	/** Suffix for segment files */
+	private static final String SEGMENT_SUFFIX = ".seg";
+
+	/** Name of checkpoint file */
+	private static final String CHECKPOINT_FILE = "checkpoint";
+
+	/** Directory holding segments */
+	private final File directory;
+
+	/** Maximum size of a segment */
+	private final int segmentSize;
+
+	/** Maximum number of segments */
+	private final int maxSegments;
+
+	/** Ids of segments on disk, oldest first */
+	private final LinkedList<Long> segments = new LinkedList<Long>();
+
+	/** Reused buffer for record headers */
+	private final ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+
+	/** Reused buffer for checkpoint */
+	private final ByteBuffer checkpoint = ByteBuffer.allocate(16);
+
+	/** Used to verify records */
+	private final CRC32 crc = new CRC32();
+
+	/** Channel for segment being appended */
+	private FileChannel writeChannel;
+
+	/** Id of segment being appended */
+	private long writeSegment;
+
+	/** Append position in write segment */
+	private long writePosition;
+
+	/** Channel for segment the cursor is in */
+	private FileChannel readChannel;
+
+	/** Id of segment holding the oldest record not yet committed */
+	private long readSegment;
+
+	/** Position of the oldest record not yet committed */
+	private long readPosition;
+
+	/** Id of segment holding the next record to read */
+	private long cursorSegment;
+
+	/** Position of the next record to read */
+	private long cursorPosition;
+
+	/** Records read since the last commit */
+	private int uncommitted;
+
+	/** Channel for checkpoint file */
+	private FileChannel checkpointChannel;
+
+	/** Records consumed since last checkpoint */
+	private int uncheckpointed;
+
+	/** Serializes forcing appended records to disk */
+	private final Object syncLock = new Object();
+
+	/** Number of records appended since the journal was opened */
+	private long appended;
+
+	/** Number of appended records known to be on disk (guarded by syncLock) */
+	private long synced;
+
+	public OutboundJournal(File directory) throws IOException {
+		this(directory, DEFAULT_SEGMENT_SIZE, DEFAULT_MAX_SEGMENTS);
+	}
+
+	public OutboundJournal(File directory, int segmentSize, int maxSegments) throws IOException {
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		this.maxSegments = maxSegments;
+		open();
+	}
+
+	/**
+	 * Load existing segments and checkpoint, recovering the tail segment after an unclean
+	 * shutdown.
+	 *
+	 * @throws IOException
+	 */
+	protected void open() throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Unable to create journal directory " + directory);
+		}
+		List<Long> found = new ArrayList<Long>();
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				String name = file.getName();
+				if (name.endsWith(SEGMENT_SUFFIX)) {
+					try {
+						found.add(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+					} catch (NumberFormatException e) {
+						Log.w(MqttService.TAG, "Ignoring unexpected file in journal: " + name);
+					}
+				}
+			}
+		}
+		Collections.sort(found);
+		segments.addAll(found);
+
+		checkpointChannel = new RandomAccessFile(new File(directory, CHECKPOINT_FILE), "rw").getChannel();
+		long savedSegment = -1;
+		long savedPosition = 0;
+		if (checkpointChannel.size() >= checkpoint.capacity()) {
+			checkpoint.clear();
+			readFully(checkpointChannel, checkpoint, 0);
+			checkpoint.flip();
+			savedSegment = checkpoint.getLong();
+			savedPosition = checkpoint.getLong();
+		}
+
+		if (segments.isEmpty()) {
+			segments.add(Math.max(0, savedSegment));
+		}
+		writeSegment = segments.getLast();
+		writeChannel = openSegment(writeSegment, "rw");
+		writePosition = recover(writeChannel);
+
+		// Resume from checkpoint unless the segment it refers to has been discarded.
+		if (segments.contains(savedSegment)) {
+			readSegment = savedSegment;
+			readPosition = savedPosition;
+		} else {
+			readSegment = segments.getFirst();
+			readPosition = 0;
+		}
+		if ((readSegment == writeSegment) && (readPosition > writePosition)) {
+			readPosition = writePosition;
+		}
+		cursorSegment = readSegment;
+		cursorPosition = readPosition;
+		Log.d(MqttService.TAG, "Opened outbound journal with " + segments.size() + " segment(s).");
+	}
+
+	/**
+	 * Append a payload to the journal. Returns once the record is on disk.
+	 *
+	 * @param payload
+	 * @param offset
+	 * @param length
+	 * @throws IOException
+	 */
+	public void append(byte[] payload, int offset, int length) throws IOException {
+		long sequence;
+		synchronized (this) {
+			int recordSize = RECORD_HEADER_SIZE + length;
+			if ((writePosition > 0) && (writePosition + recordSize > segmentSize)) {
+				roll();
+			}
+			crc.reset();
+			crc.update(payload, offset, length);
+			header.clear();
+			header.putInt(length);
+			header.putInt((int) crc.getValue());
+			header.flip();
+			ByteBuffer body = ByteBuffer.wrap(payload, offset, length);
+			long position = writePosition;
+			while (header.hasRemaining()) {
+				position += writeChannel.write(header, position);
+			}
+			while (body.hasRemaining()) {
+				position += writeChannel.write(body, position);
+			}
+			writePosition = position;
+			sequence = ++appended;
+		}
+		force(sequence);
+	}
+
+	/**
+	 * Force records up to the given one to disk. Appends that finish while another thread is
+	 * forcing wait for it and are then covered by a single force of their own, so concurrent
+	 * writers share syncs instead of paying for one each.
+	 *
+	 * @param sequence
+	 * @throws IOException
+	 */
+	protected void force(long sequence) throws IOException {
+		synchronized (syncLock) {
+			if (synced >= sequence) {
+				return;
+			}
+			long target;
+			FileChannel channel;
+			synchronized (this) {
+				target = appended;
+				channel = writeChannel;
+			}
+
+			// Earlier segments were forced when rolled.
+			channel.force(false);
+			synced = target;
+		}
+	}
+
+	/**
+	 * Get the oldest record without removing it. Records read since the last commit are read
+	 * again after this one.
+	 *
+	 * @return payload or null if journal is empty
+	 * @throws IOException
+	 */
+	public synchronized byte[] peek() throws IOException {
+		if (cursorSegment != readSegment) {
+			closeQuietly(readChannel);
+			readChannel = null;
+		}
+		cursorSegment = readSegment;
+		cursorPosition = readPosition;
+		uncommitted = 0;
+		return next();
+	}
+
+	/**
+	 * Get the record after the last one returned by {@link #peek()} or {@link #next()} without
+	 * removing it.
+	 *
+	 * @return payload or null if there are no more records
+	 * @throws IOException
+	 */
+	public synchronized byte[] next() throws IOException {
+		while (true) {
+			if ((cursorSegment == writeSegment) && (cursorPosition >= writePosition)) {
+				return null;
+			}
+			if (cursorSegment != writeSegment && cursorPosition >= segmentLength()) {
+				advanceSegment();
+				continue;
+			}
+			if (readChannel == null) {
+				readChannel = openSegment(cursorSegment, "r");
+			}
+			header.clear();
+			if (!readFully(readChannel, header, cursorPosition)) {
+				skipCorruptSegment("Truncated record header");
+				continue;
+			}
+			header.flip();
+			int length = header.getInt();
+			int expected = header.getInt();
+			if ((length < 0) || (cursorPosition + RECORD_HEADER_SIZE + length > segmentLength())) {
+				skipCorruptSegment("Invalid record length");
+				continue;
+			}
+			byte[] payload = new byte[length];
+			if (!readFully(readChannel, ByteBuffer.wrap(payload), cursorPosition + RECORD_HEADER_SIZE)) {
+				skipCorruptSegment("Truncated record");
+				continue;
+			}
+			crc.reset();
+			crc.update(payload, 0, length);
+			if ((int) crc.getValue() != expected) {
+				skipCorruptSegment("Record checksum mismatch");
+				continue;
+			}
+			cursorPosition += RECORD_HEADER_SIZE + length;
+			uncommitted++;
+			return payload;
+		}
+	}
+
+	/**
+	 * Remove the records returned by {@link #peek()} and {@link #next()} since the last commit.
+	 * Records discarded in the meantime because the journal overflowed are not counted again.
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void commit() throws IOException {
+		if ((cursorSegment == readSegment) && (cursorPosition == readPosition)) {
+			return;
+		}
+		boolean advanced = false;
+		while (readSegment != cursorSegment) {
+			long finished = readSegment;
+			segments.remove(finished);
+			readSegment = segments.getFirst();
+			deleteSegment(finished);
+			advanced = true;
+		}
+		readPosition = cursorPosition;
+		uncheckpointed += uncommitted;
+		uncommitted = 0;
+		if (advanced || (uncheckpointed >= CHECKPOINT_INTERVAL)) {
+			writeCheckpoint();
+		}
+	}
+
+	/**
+	 * Indicates if all appended records have been consumed.
+	 *
+	 * @return
+	 */
+	public synchronized boolean isEmpty() {
+		return (readSegment == writeSegment) && (readPosition >= writePosition);
+	}
+
+	/**
+	 * Persist read position and flush pending writes.
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void sync() throws IOException {
+		writeChannel.force(false);
+		writeCheckpoint();
+	}
+
+	/**
+	 * Flush and close all files.
+	 */
+	public synchronized void close() {
+		try {
+			sync();
+		} catch (IOException e) {
+			Log.w(MqttService.TAG, "Unable to sync outbound journal.", e);
+		}
+		closeQuietly(readChannel);
+		closeQuietly(writeChannel);
+		closeQuietly(checkpointChannel);
+		readChannel = null;
+	}
+
+	/**
+	 * Start a new segment for writes, discarding the oldest segment if over the limit.
+	 *
+	 * @throws IOException
+	 */
+	protected void roll() throws IOException {
+		writeChannel.force(false);
+		closeQuietly(writeChannel);
+		writeSegment++;
+		segments.add(writeSegment);
+		writeChannel = openSegment(writeSegment, "rw");
+		writeChannel.truncate(0);
+		writePosition = 0;
+
+		while (segments.size() > maxSegments) {
+			long oldest = segments.removeFirst();
+			if (oldest == readSegment) {
+				Log.w(MqttService.TAG, "Outbound journal full. Discarding unsent segment " + oldest + ".");
+				closeQuietly(readChannel);
+				readChannel = null;
+				readSegment = segments.getFirst();
+				readPosition = 0;
+				cursorSegment = readSegment;
+				cursorPosition = 0;
+				uncommitted = 0;
+			}
+			deleteSegment(oldest);
+		}
+	}
+
+	/**
+	 * Move the cursor to the next segment. The segment it leaves is deleted once its records are
+	 * committed, right away if none are waiting.
+	 *
+	 * @throws IOException
+	 */
+	protected void advanceSegment() throws IOException {
+		closeQuietly(readChannel);
+		readChannel = null;
+		cursorSegment = segments.get(segments.indexOf(cursorSegment) + 1);
+		cursorPosition = 0;
+		if (uncommitted == 0) {
+			commit();
+		}
+	}
+
+	/**
+	 * Drop the rest of a segment that cannot be read.
+	 *
+	 * @param reason
+	 * @throws IOException
+	 */
+	protected void skipCorruptSegment(String reason) throws IOException {
+		long corrupt = cursorSegment;
+		Log.w(MqttService.TAG, reason + " in journal segment " + corrupt + ". Skipping rest of segment.");
+		if (corrupt == writeSegment) {
+			roll();
+		}
+		if (cursorSegment == corrupt) {
+			advanceSegment();
+		}
+	}
+
+	/**
+	 * Scan a segment and truncate any partially written record at its end.
+	 *
+	 * @param channel
+	 * @return end of last valid record
+	 * @throws IOException
+	 */
+	protected long recover(FileChannel channel) throws IOException {
+		long size = channel.size();
+		long position = 0;
+		ByteBuffer body = ByteBuffer.allocate(0);
+		while (position + RECORD_HEADER_SIZE <= size) {
+			header.clear();
+			readFully(channel, header, position);
+			header.flip();
+			int length = header.getInt();
+			int expected = header.getInt();
+			if ((length < 0) || (position + RECORD_HEADER_SIZE + length > size)) {
+				break;
+			}
+			if (body.capacity() < length) {
+				body = ByteBuffer.allocate(length);
+			}
+			body.clear();
+			body.limit(length);
+			readFully(channel, body, position + RECORD_HEADER_SIZE);
+			crc.reset();
+			crc.update(body.array(), 0, length);
+			if ((int) crc.getValue() != expected) {
+				break;
+			}
+			position += RECORD_HEADER_SIZE + length;
+		}
+		if (position < size) {
+			Log.w(MqttService.TAG, "Truncating " + (size - position) + " byte(s) of incomplete journal data.");
+			channel.truncate(position);
+		}
+		return position;
+	}
+
+	/**
+	 * Write the read position to the checkpoint file.
+	 *
+	 * @throws IOException
+	 */
+	protected void writeCheckpoint() throws IOException {
+		checkpoint.clear();
+		checkpoint.putLong(readSegment);
+		checkpoint.putLong(readPosition);
+		checkpoint.flip();
+		long position = 0;
+		while (checkpoint.hasRemaining()) {
+			position += checkpointChannel.write(checkpoint, position);
+		}
+		checkpointChannel.force(false);
+		uncheckpointed = 0;
+	}
+
+	/**
+	 * Get length of segment the cursor is in.
+	 *
+	 * @return
+	 * @throws IOException
+	 */
+	protected long segmentLength() throws IOException {
+		if (cursorSegment == writeSegment) {
+			return writePosition;
+		}
+		if (readChannel == null) {
+			readChannel = openSegment(cursorSegment, "r");
+		}
+		return readChannel.size();
+	}
+
+	protected FileChannel openSegment(long id, String mode) throws IOException {
+		return new RandomAccessFile(new File(directory, id + SEGMENT_SUFFIX), mode).getChannel();
+	}
+
+	protected void deleteSegment(long id) {
+		File file = new File(directory, id + SEGMENT_SUFFIX);
+		if (!file.delete()) {
+			Log.w(MqttService.TAG, "Unable to delete journal segment " + file);
+		}
+	}
+
+	/**
+	 * Read until buffer is full.
+	 *
+	 * @return false if end of file was reached first
+	 */
+	private static boolean readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			int read = channel.read(buffer, position);
+			if (read < 0) {
+				return false;
+			}
+			position += read;
+		}
+		return true;
+	}
+
+	private static void closeQuietly(FileChannel channel) {
+		if (channel != null) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				Log.w(MqttService.TAG, "Unable to close journal file.", e);
+			}
+		}
+	}
+}
@@ -0,0 +1,303 @@
+/*
+ * Copyright (c) SiteWhere, LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.androidsdk.mqtt;
+
+import android.os.RemoteException;
+import android.util.Log;
+
+import com.sitewhere.androidsdk.messaging.EventFrames;
+import com.sitewhere.androidsdk.messaging.ISendCallback;
+import com.sitewhere.androidsdk.messaging.SiteWhereMessagingException;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Bounded queue of outbound payloads drained by a dedicated publisher thread, so that callers
+ * never wait on the MQTT handshake for the messages they send. A message stored in the outbound
+ * journal instead of being published is reported as stored rather than completed. If publishing
+ * fails partway through a batch, the events not yet published are stored in the journal, so the
+ * sender is not asked to send again events that already went out.
+ */
+public class OutboundMessageQueue {
+
+	/** Default number of messages that may be waiting to be published */
+	public static final int DEFAULT_CAPACITY = 1000;
+
+	/** Messages waiting to be published */
+	private final BlockingQueue<OutboundMessage> queue;
+
+	/** Used to publish messages */
+	private final IMqttInteractionManager mqttManager;
+
+	/** Used to publish messages or store them while disconnected (null if there is no journal) */
+	private final JournalingMqttInteractionManager journalingManager;
+
+	/** Thread that drains the queue */
+	private Thread publisher;
+
+	public OutboundMessageQueue(IMqttInteractionManager mqttManager) {
+		this(mqttManager, null, DEFAULT_CAPACITY);
+	}
+
+	public OutboundMessageQueue(IMqttInteractionManager mqttManager, int capacity) {
+		this(mqttManager, null, capacity);
+	}
+
+	public OutboundMessageQueue(IMqttInteractionManager mqttManager, JournalingMqttInteractionManager journalingManager) {
+		this(mqttManager, journalingManager, DEFAULT_CAPACITY);
+	}
+
+	public OutboundMessageQueue(IMqttInteractionManager mqttManager, JournalingMqttInteractionManager journalingManager,
+			int capacity) {
+		this.mqttManager = mqttManager;
+		this.journalingManager = journalingManager;
+		this.queue = new ArrayBlockingQueue<OutboundMessage>(capacity);
+	}
+
+	/**
+	 * Start the publisher thread.
+	 */
+	public synchronized void start() {
+		if (publisher == null) {
+			publisher = new Thread(new Publisher(), MqttService.TAG + "-publisher");
+			publisher.start();
+		}
+	}
+
+	/**
+	 * Stop the publisher thread. Messages still in the queue are failed.
+	 */
+	public synchronized void stop() {
+		if (publisher != null) {
+			publisher.interrupt();
+			publisher = null;
+		}
+		OutboundMessage message;
+		while ((message = queue.poll()) != null) {
+			notifyFailed(message, "Messaging service stopped.");
+		}
+	}
+
+	/**
+	 * Add a message to the queue without blocking. If the queue is full, the message is rejected
+	 * and the callback (if any) is notified.
+	 *
+	 * @param payload
+	 * @param batch true if payload contains length-prefixed frames
+	 * @param id
+	 * @param callback
+	 * @return
+	 */
+	public boolean offer(byte[] payload, boolean batch, long id, ISendCallback callback) {
+		OutboundMessage message = new OutboundMessage(payload, batch, id, callback);
+		if (queue.offer(message)) {
+			return true;
+		}
+		Log.w(MqttService.TAG, "Outbound queue is full. Rejecting message.");
+		notifyFailed(message, "Outbound queue is full.");
+		return false;
+	}
+
+	/**
+	 * Get number of messages waiting to be published.
+	 *
+	 * @return
+	 */
+	public int size() {
+		return queue.size();
+	}
+
+	/**
+	 * Publish a single queued message.
+	 *
+	 * @param message
+	 */
+	protected void publish(OutboundMessage message) {
+		int total = 1;
+		int sent = 0;
+		try {
+			boolean published = true;
+			if (message.batch) {
+				// Check the whole batch first so a corrupt frame fails it before anything is sent.
+				total = countFrames(message.payload);
+				EventFrames.Reader reader = new EventFrames.Reader(message.payload);
+				while (reader.next()) {
+					published &= send(message.payload, reader.getOffset(), reader.getLength());
+					sent++;
+				}
+			} else {
+				published = send(message.payload, 0, message.payload.length);
+			}
+			if (published) {
+				notifyCompleted(message);
+			} else {
+				notifyStored(message);
+			}
+		} catch (SiteWhereMessagingException e) {
+			Log.e(MqttService.TAG, "Error unpacking batched message.", e);
+			notifyFailed(message, e.getMessage());
+		} catch (SiteWhereMqttException e) {
+			Log.e(MqttService.TAG, "Error sending message.", e);
+			storeUnsent(message, sent, total, e);
+		}
+	}
+
+	/**
+	 * Store the events of a message that were not published after a send failed partway through,
+	 * and report the message as stored. Without a journal, or if storing fails, the message is
+	 * reported as failed with the number of events that did go out.
+	 *
+	 * @param message
+	 * @param sent number of events already published
+	 * @param total number of events in the message
+	 * @param cause
+	 */
+	protected void storeUnsent(OutboundMessage message, int sent, int total, SiteWhereMqttException cause) {
+		int stored = 0;
+		if (journalingManager != null) {
+			try {
+				if (message.batch) {
+					EventFrames.Reader reader = new EventFrames.Reader(message.payload);
+					for (int i = 0; reader.next(); i++) {
+						if (i >= sent) {
+							journalingManager.store(message.payload, reader.getOffset(), reader.getLength());
+							stored++;
+						}
+					}
+				} else {
+					journalingManager.store(message.payload, 0, message.payload.length);
+					stored++;
+				}
+				notifyStored(message);
+				return;
+			} catch (SiteWhereMessagingException e) {
+				Log.e(MqttService.TAG, "Error unpacking batched message.", e);
+			} catch (SiteWhereMqttException e) {
+				Log.e(MqttService.TAG, "Unable to store unsent events.", e);
+			}
+		}
+		notifyFailed(message, "Published " + sent + " and stored " + stored + " of " + total + " event(s). "
+				+ cause.getMessage());
+	}
+
+	/**
+	 * Count the frames in a batch, checking that all of them can be read.
+	 *
+	 * @param frames
+	 * @return
+	 * @throws SiteWhereMessagingException
+	 */
+	protected static int countFrames(byte[] frames) throws SiteWhereMessagingException {
+		EventFrames.Reader reader = new EventFrames.Reader(frames);
+		int count = 0;
+		while (reader.next()) {
+			count++;
+		}
+		return count;
+	}
+
+	/**
+	 * Publish a payload, storing it in the journal if it can not be published yet.
+	 *
+	 * @param payload
+	 * @param offset
+	 * @param length
+	 * @return false if the payload was stored instead of published
+	 * @throws SiteWhereMqttException
+	 */
+	protected boolean send(byte[] payload, int offset, int length) throws SiteWhereMqttException {
+		if (journalingManager != null) {
+			return journalingManager.sendOrStore(payload, offset, length);
+		}
+		mqttManager.send(payload, offset, length);
+		return true;
+	}
+
+	protected void notifyCompleted(OutboundMessage message) {
+		if (message.callback != null) {
+			try {
+				message.callback.sendCompleted(message.id);
+			} catch (RemoteException e) {
+				Log.w(MqttService.TAG, "Unable to notify client of completed send.", e);
+			}
+		}
+	}
+
+	protected void notifyStored(OutboundMessage message) {
+		if (message.callback != null) {
+			try {
+				message.callback.sendStored(message.id);
+			} catch (RemoteException e) {
+				Log.w(MqttService.TAG, "Unable to notify client of stored send.", e);
+			}
+		}
+	}
+
+	protected void notifyFailed(OutboundMessage message, String reason) {
+		if (message.callback != null) {
+			try {
+				message.callback.sendFailed(message.id, reason);
+			} catch (RemoteException e) {
+				Log.w(MqttService.TAG, "Unable to notify client of failed send.", e);
+			}
+		}
+	}
+
+	/**
+	 * Payload waiting to be published along with its completion callback.
+	 */
+	protected static class OutboundMessage {
+
+		/** Encoded payload */
+		final byte[] payload;
+
+		/** Indicates payload holds length-prefixed frames */
+		final boolean batch;
+
+		/** Client-assigned id */
+		final long id;
+
+		/** Optional completion callback */
+		final ISendCallback callback;
+
+		OutboundMessage(byte[] payload, boolean batch, long id, ISendCallback callback) {
+			this.payload = payload;
+			this.batch = batch;
+			this.id = id;
+			this.callback = callback;
+		}
+	}
+
+	/**
+	 * Drains the queue in a background thread.
+	 */
+	private class Publisher implements Runnable {
+
+		@Override
+		public void run() {
+			Log.d(MqttService.TAG, "Started outbound message publisher thread.");
+			while (!Thread.currentThread().isInterrupted()) {
+				try {
+					publish(queue.take());
+				} catch (InterruptedException e) {
+					Log.d(MqttService.TAG, "Outbound message publisher interrupted.");
+					break;
+				}
+			}
+		}
+	}
+}
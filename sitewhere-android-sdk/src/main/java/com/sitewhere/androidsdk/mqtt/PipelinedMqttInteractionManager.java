@@ -0,0 +1,293 @@
+/*
+ * Copyright (c) SiteWhere, LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.androidsdk.mqtt;
+
+import android.util.Log;
+
+import org.fusesource.hawtbuf.Buffer;
+import org.fusesource.mqtt.client.Future;
+import org.fusesource.mqtt.client.FutureConnection;
+import org.fusesource.mqtt.client.QoS;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * Extends {@link DefaultMqttInteractionManager} to publish through the non-blocking
+ * {@link FutureConnection}, keeping up to a fixed number of publishes in flight instead of waiting
+ * for each handshake to finish before starting the next. A send only blocks once the window is
+ * full, and then only until the oldest publish completes. Inbound processing is unchanged.
+ * <p>
+ * QoS 1 and 2 payloads are kept until acknowledged. If a publish fails, its payload is kept and
+ * sent again ahead of the next message, or on the next connect if the connection is down. Since
+ * the sender of a failed message has already returned, the failure is not reported to it, and
+ * messages may be delivered more than once. At most a fixed number of failed payloads are kept,
+ * and the oldest is dropped when the limit is reached. {@link #flush()} throws if payloads are
+ * still waiting to be sent again after it has retried them.
+ */
+public class PipelinedMqttInteractionManager extends DefaultMqttInteractionManager {
+
+	/** Default number of publishes allowed in flight */
+	public static final int DEFAULT_MAX_IN_FLIGHT = 16;
+
+	/** Default number of failed payloads kept for sending again */
+	public static final int DEFAULT_MAX_FAILED = 1000;
+
+	/** Maximum number of publishes in flight */
+	private final int maxInFlight;
+
+	/** Maximum number of failed payloads kept */
+	private final int maxFailed;
+
+	/** Publishes in flight, oldest at head */
+	private final Future<?>[] inFlight;
+
+	/** Payloads of publishes in flight, or null for QoS 0 */
+	private final Buffer[] payloads;
+
+	/** Payloads of failed publishes, oldest first, waiting to be sent again */
+	private final ArrayDeque<Buffer> failed = new ArrayDeque<Buffer>();
+
+	/** Index of oldest publish in flight */
+	private int head;
+
+	/** Number of publishes in flight */
+	private int count;
+
+	/** Non-blocking connection used for publishing */
+	private FutureConnection connection;
+
+	public PipelinedMqttInteractionManager() {
+		this(DEFAULT_MAX_IN_FLIGHT);
+	}
+
+	public PipelinedMqttInteractionManager(int maxInFlight) {
+		this(maxInFlight, DEFAULT_MAX_FAILED);
+	}
+
+	public PipelinedMqttInteractionManager(int maxInFlight, int maxFailed) {
+		super();
+		if (maxInFlight < 1) {
+			throw new IllegalArgumentException("At least one publish must be allowed in flight.");
+		}
+		if (maxFailed < 0) {
+			throw new IllegalArgumentException("Maximum number of failed publishes can not be negative.");
+		}
+		this.maxInFlight = maxInFlight;
+		this.maxFailed = maxFailed;
+		this.inFlight = new Future<?>[maxInFlight];
+		this.payloads = new Buffer[maxInFlight];
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.sitewhere.android.mqtt.DefaultMqttInteractionManager#connect(java.lang.String,
+	 * java.lang.String, org.fusesource.mqtt.client.FutureConnection, boolean)
+	 */
+	@Override
+	public void connect(String tenantId, String deviceToken, FutureConnection connection, boolean sessionPresent)
+			throws SiteWhereMqttException {
+		super.connect(tenantId, deviceToken, connection, sessionPresent);
+		synchronized (inFlight) {
+			requeue();
+			this.connection = connection;
+			retryFailed();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.sitewhere.android.mqtt.DefaultMqttInteractionManager#send(byte[], int, int)
+	 */
+	@Override
+	public void send(byte[] payload, int offset, int length) throws SiteWhereMqttException {
+		synchronized (inFlight) {
+			if (connection == null) {
+				throw new SiteWhereMqttException("Attempting to send a message while disconnected.");
+			}
+			if (connection.isConnected()) {
+				retryFailed();
+			}
+			QoS qos = getPublishQos(payload, offset, length);
+
+			// Keep a copy of acknowledged payloads in case the caller reuses its buffer.
+			Buffer buffer = (qos == QoS.AT_MOST_ONCE) ? new Buffer(payload, offset, length)
+					: new Buffer(Arrays.copyOfRange(payload, offset, offset + length));
+			publish(buffer, qos);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.sitewhere.android.mqtt.IMqttInteractionManager#flush()
+	 */
+	@Override
+	public void flush() throws SiteWhereMqttException {
+		synchronized (inFlight) {
+			awaitAll();
+			if ((connection != null) && connection.isConnected() && retryFailed()) {
+				awaitAll();
+			}
+			if (!failed.isEmpty()) {
+				throw new SiteWhereMqttException(
+						failed.size() + " publish(es) not acknowledged. They will be sent again later.");
+			}
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.sitewhere.android.mqtt.DefaultMqttInteractionManager#disconnect(java.lang.String,
+	 * java.lang.String, org.fusesource.mqtt.client.FutureConnection)
+	 */
+	@Override
+	public void disconnect(String tenantId, String deviceToken, FutureConnection connection)
+			throws SiteWhereMqttException {
+		synchronized (inFlight) {
+			awaitAll();
+			this.connection = null;
+		}
+		super.disconnect(tenantId, deviceToken, connection);
+	}
+
+	/**
+	 * Get number of publishes currently in flight.
+	 *
+	 * @return
+	 */
+	public int getInFlightCount() {
+		synchronized (inFlight) {
+			return count;
+		}
+	}
+
+	/**
+	 * Get number of failed publishes waiting to be sent again.
+	 *
+	 * @return
+	 */
+	public int getFailedCount() {
+		synchronized (inFlight) {
+			return failed.size();
+		}
+	}
+
+	/**
+	 * Start a publish and add it to the window.
+	 *
+	 * @param buffer
+	 * @param qos
+	 */
+	private void publish(Buffer buffer, QoS qos) {
+		if (count == maxInFlight) {
+			awaitOldest();
+		}
+		int slot = (head + count) % maxInFlight;
+		inFlight[slot] = connection.publish(getOutboundTopicBuffer(), buffer, qos, false);
+		payloads[slot] = (qos == QoS.AT_MOST_ONCE) ? null : buffer;
+		count++;
+	}
+
+	/**
+	 * Publish failed payloads again in order, ahead of anything sent afterward.
+	 *
+	 * @return true if any payloads were published
+	 */
+	private boolean retryFailed() {
+		int retries = failed.size();
+		if (retries == 0) {
+			return false;
+		}
+		Log.d(MqttService.TAG, "Sending " + retries + " failed publish(es) again.");
+		for (int i = 0; i < retries; i++) {
+			Buffer retry = failed.poll();
+			if (retry == null) {
+				break;
+			}
+			publish(retry, getPublishQos(retry.data, retry.offset, retry.length));
+		}
+		return true;
+	}
+
+	/**
+	 * Keep the payload of a failed publish so it can be sent again, dropping the oldest one if
+	 * the limit has been reached.
+	 *
+	 * @param payload
+	 */
+	private void addFailed(Buffer payload) {
+		if (maxFailed == 0) {
+			Log.w(MqttService.TAG, "Dropping failed publish.");
+			return;
+		}
+		if (failed.size() == maxFailed) {
+			failed.poll();
+			Log.w(MqttService.TAG, "Too many failed publishes. Dropping oldest.");
+		}
+		failed.add(payload);
+	}
+
+	/**
+	 * Wait for the oldest publish in flight and release its slot. The payload of a failed QoS 1 or
+	 * 2 publish is kept so it can be sent again.
+	 */
+	private void awaitOldest() {
+		Future<?> oldest = inFlight[head];
+		Buffer payload = payloads[head];
+		inFlight[head] = null;
+		payloads[head] = null;
+		head = (head + 1) % maxInFlight;
+		count--;
+		try {
+			oldest.await();
+		} catch (Exception e) {
+			if (payload != null) {
+				addFailed(payload);
+			}
+			Log.w(MqttService.TAG, "Pipelined publish failed.", e);
+		}
+	}
+
+	/**
+	 * Wait for all publishes in flight to complete.
+	 */
+	private void awaitAll() {
+		while (count > 0) {
+			awaitOldest();
+		}
+	}
+
+	/**
+	 * Move publishes still in flight from a previous connection to the list of failed publishes,
+	 * since they may never be acknowledged.
+	 */
+	private void requeue() {
+		for (int i = 0; i < count; i++) {
+			Buffer payload = payloads[(head + i) % maxInFlight];
+			if (payload != null) {
+				addFailed(payload);
+			}
+		}
+		Arrays.fill(inFlight, null);
+		Arrays.fill(payloads, null);
+		head = 0;
+		count = 0;
+	}
+}
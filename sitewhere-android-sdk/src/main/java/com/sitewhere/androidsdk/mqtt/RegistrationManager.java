@@ -15,36 +15,193 @@
  */
 package com.sitewhere.androidsdk.mqtt;
 
+import android.os.Binder;
+import android.os.IBinder;
+import android.os.IInterface;
 import android.os.RemoteException;
 import android.util.Log;
 
+import com.sitewhere.androidsdk.logging.SiteWhereLog;
 import com.sitewhere.androidsdk.messaging.IFromSiteWhere;
+import com.sitewhere.androidsdk.messaging.IFromSiteWhereV2;
+import com.sitewhere.androidsdk.messaging.SystemCommand;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Manages list of registered clients and sends commands to them.
+ * <p>
+ * Clients are registered and removed from binder threads while notifications are sent from the
+ * MQTT receive thread, so the list is kept in a copy-on-write array. Notifications iterate a
+ * snapshot of the array without locking or allocating. Clients are identified by their binder,
+ * and are removed when their process dies or a call to them fails.
+ * <p>
+ * Each client has a {@link ClientDispatcher} that makes binder calls on its own thread, so the
+ * receive thread only queues notifications and is never held up by a slow client.
+ * <p>
+ * Event messages are only delivered to clients that subscribed to a matching topic filter.
+ * Subscriptions are reference counted, and the {@link SubscriptionListener} is told when the
+ * first client subscribes to a filter and when the last one goes away, so the broker
+ * subscription can follow. Listener calls for a filter are made in the same order as the changes
+ * that caused them. Shared subscriptions hold a count of their own.
+ * <p>
+ * Child devices are counted the same way. Commands for a child device are only delivered to the
+ * clients that added it, and its command topics are only unsubscribed once no client holds it.
  * 
  * @author Derek
  */
 public class RegistrationManager implements IMqttCallback {
 
-	/** List of clients interested in data from SiteWhere */
-	private List<IFromSiteWhere> clients = new ArrayList<IFromSiteWhere>();
+	/** Default number of notifications queued for each client */
+	public static final int DEFAULT_QUEUE_CAPACITY = 256;
+
+	/** Newest callback protocol version supported */
+	public static final int PROTOCOL_VERSION = 2;
+
+	/** Default most messages delivered in one batch */
+	public static final int DEFAULT_BATCH_MESSAGES = 64;
+
+	/** Default most bytes delivered in one batch (kept well under the binder transaction limit) */
+	public static final int DEFAULT_BATCH_BYTES = 64 * 1024;
+
+	/** Default time to wait for more messages before sending a partial batch */
+	public static final long DEFAULT_BATCH_WINDOW_MS = 5;
+
+	/** Shared empty list of clients */
+	private static final ClientDispatcher[] NO_CLIENTS = new ClientDispatcher[0];
+
+	/** Number of notifications queued for each client */
+	private final int queueCapacity;
+
+	/** Action taken when a client's queue is full */
+	private final DeliveryOverflowPolicy overflowPolicy;
+
+	/** Clients interested in data from SiteWhere (replaced on every change) */
+	private volatile ClientDispatcher[] clients = NO_CLIENTS;
+
+	/** Guards changes to the list of clients */
+	private final Object lock = new Object();
+
+	/** Clients subscribed to each event topic filter */
+	private final TopicRouter<ClientDispatcher> subscriptions = new TopicRouter<ClientDispatcher>();
+
+	/** Number of clients subscribed to each event topic filter */
+	private final Map<String, Integer> subscriberCounts = new HashMap<String, Integer>();
+
+	/** Filters whose messages are delivered to all clients */
+	private final TopicRouter<String> sharedSubscriptions = new TopicRouter<String>();
+
+	/** Clients holding each child device (arrays are replaced on every change) */
+	private final Map<String, ClientDispatcher[]> childClients = new ConcurrentHashMap<String, ClientDispatcher[]>();
+
+	/** Serializes broker changes made for clients, so they reach the listener in order */
+	private final Object brokerLock = new Object();
+
+	/** Clients matching the current event message (only used on the receive thread) */
+	private final List<ClientDispatcher> matched = new ArrayList<ClientDispatcher>();
+
+	/** Shared filters matching the current event message (only used on the receive thread) */
+	private final List<String> matchedShared = new ArrayList<String>();
+
+	/** Notified when broker subscriptions need to change */
+	private volatile SubscriptionListener subscriptionListener;
+
+	/** Most messages delivered in one batch to version 2 clients */
+	private volatile int batchMessages = DEFAULT_BATCH_MESSAGES;
+
+	/** Most bytes delivered in one batch to version 2 clients */
+	private volatile int batchBytes = DEFAULT_BATCH_BYTES;
+
+	/** Time to wait for more messages before sending a partial batch */
+	private volatile long batchWindowMs = DEFAULT_BATCH_WINDOW_MS;
+
+	public RegistrationManager() {
+		this(DEFAULT_QUEUE_CAPACITY, DeliveryOverflowPolicy.DropOldest);
+	}
+
+	public RegistrationManager(int queueCapacity, DeliveryOverflowPolicy overflowPolicy) {
+		this.queueCapacity = queueCapacity;
+		this.overflowPolicy = overflowPolicy;
+	}
 
 	/**
-	 * Add a new client to the list.
+	 * Add a new client that registered without a protocol version. Such clients may predate
+	 * decoded system commands, so those are delivered to them as received.
 	 * 
 	 * @param client
 	 */
 	public void addClient(IFromSiteWhere client) {
-		if (!clients.contains(client)) {
+		addClient(client, null, false);
+	}
+
+	/**
+	 * Add a new client to the list. If a batch callback is passed, messages are delivered to it
+	 * in batches instead of one call per message, unless the client is in the service process.
+	 * 
+	 * @param client
+	 * @param batchCallback version 2 callback or null
+	 */
+	public void addClient(IFromSiteWhere client, IFromSiteWhereV2 batchCallback) {
+		addClient(client, batchCallback, true);
+	}
+
+	private void addClient(IFromSiteWhere client, IFromSiteWhereV2 batchCallback, boolean decodedCommands) {
+		IBinder binder = client.asBinder();
+		if (isLocal(client)) {
+			batchCallback = null;
+		}
+		synchronized (lock) {
+			if (indexOf(clients, binder) >= 0) {
+				return;
+			}
+			ClientDispatcher added = new ClientDispatcher(this, client, batchCallback, decodedCommands, binder,
+					queueCapacity, overflowPolicy, batchMessages, batchBytes, batchWindowMs);
+			try {
+				binder.linkToDeath(added, 0);
+			} catch (RemoteException e) {
+				Log.w(MqttService.TAG, "Client died before it could be registered.", e);
+				return;
+			}
 			Log.d(MqttService.TAG, "Registration manager adding client.");
-			clients.add(client);
+			added.start();
+			ClientDispatcher[] current = clients;
+			ClientDispatcher[] updated = new ClientDispatcher[current.length + 1];
+			System.arraycopy(current, 0, updated, 0, current.length);
+			updated[current.length] = added;
+			clients = updated;
 		}
 	}
 
+	/**
+	 * Indicates whether a client lives in the service process. Binder hands such clients the stub
+	 * object itself, so calls to it are plain Java calls with arguments passed by reference, and
+	 * transports that exist to save binder transactions (batches, shared rings) only add copies.
+	 * 
+	 * @param client
+	 * @return
+	 */
+	public static boolean isLocal(IInterface client) {
+		return client.asBinder() instanceof Binder;
+	}
+
+	/**
+	 * Set limits for batches delivered to version 2 clients. Applies to clients added afterward.
+	 * 
+	 * @param maxMessages
+	 * @param maxBytes
+	 * @param windowMs
+	 */
+	public void setBatching(int maxMessages, int maxBytes, long windowMs) {
+		this.batchMessages = Math.max(1, maxMessages);
+		this.batchBytes = Math.max(1, maxBytes);
+		this.batchWindowMs = Math.max(0, windowMs);
+	}
+
 	/**
 	 * Remove an existing client from the list.
 	 * 
@@ -52,7 +209,219 @@ public class RegistrationManager implements IMqttCallback {
 	 */
 	public void removeClient(IFromSiteWhere client) {
 		Log.d(MqttService.TAG, "Registration manager removing client.");
-		clients.remove(client);
+		remove(client.asBinder());
+	}
+
+	/**
+	 * Subscribe a registered client to event messages on topics matching a filter.
+	 *
+	 * @param client
+	 * @param filter
+	 * @return false if the client is not registered
+	 * @throws SiteWhereMqttException if the broker subscription fails
+	 */
+	public boolean subscribe(IFromSiteWhere client, String filter) throws SiteWhereMqttException {
+		synchronized (brokerLock) {
+			boolean first;
+			synchronized (lock) {
+				ClientDispatcher dispatcher = find(client.asBinder());
+				if (dispatcher == null) {
+					return false;
+				}
+				if (!dispatcher.subscriptions.add(filter)) {
+					return true;
+				}
+				subscriptions.add(filter, dispatcher);
+				first = (retain(filter) == 1);
+			}
+			SubscriptionListener listener = subscriptionListener;
+			if (first && (listener != null)) {
+				listener.onSubscribe(filter);
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Remove a client's subscription to a topic filter.
+	 *
+	 * @param client
+	 * @param filter
+	 */
+	public void unsubscribe(IFromSiteWhere client, String filter) {
+		synchronized (brokerLock) {
+			boolean last;
+			synchronized (lock) {
+				ClientDispatcher dispatcher = find(client.asBinder());
+				if ((dispatcher == null) || !dispatcher.subscriptions.remove(filter)) {
+					return;
+				}
+				subscriptions.remove(filter, dispatcher);
+				last = (release(filter) == 0);
+			}
+			if (last) {
+				released(filter);
+			}
+		}
+	}
+
+	/**
+	 * Deliver event messages on topics matching a filter to every registered client. Used for
+	 * subscriptions that are not made on behalf of a particular client. A shared filter counts as
+	 * a subscriber for as long as the service runs, so the broker subscription is kept when
+	 * clients subscribed to the same filter go away.
+	 *
+	 * @param filter
+	 * @throws SiteWhereMqttException if the broker subscription fails
+	 */
+	public void addSharedSubscription(String filter) throws SiteWhereMqttException {
+		synchronized (brokerLock) {
+			boolean first;
+			synchronized (lock) {
+				if (sharedSubscriptions.contains(filter)) {
+					return;
+				}
+				sharedSubscriptions.add(filter, filter);
+				first = (retain(filter) == 1);
+			}
+			SubscriptionListener listener = subscriptionListener;
+			if (first && (listener != null)) {
+				listener.onSubscribe(filter);
+			}
+		}
+	}
+
+	/**
+	 * Add child devices whose commands are delivered to a registered client. The listener is told
+	 * about devices no other client holds.
+	 *
+	 * @param client
+	 * @param deviceTokens
+	 * @return false if the client is not registered
+	 * @throws SiteWhereMqttException if the broker subscription fails
+	 */
+	public boolean addChildDevices(IFromSiteWhere client, String[] deviceTokens) throws SiteWhereMqttException {
+		synchronized (brokerLock) {
+			List<String> added = new ArrayList<String>();
+			synchronized (lock) {
+				ClientDispatcher dispatcher = find(client.asBinder());
+				if (dispatcher == null) {
+					return false;
+				}
+				for (String token : deviceTokens) {
+					if (dispatcher.childDevices.add(token) && (addChildClient(token, dispatcher) == 1)) {
+						added.add(token);
+					}
+				}
+			}
+			SubscriptionListener listener = subscriptionListener;
+			if (!added.isEmpty() && (listener != null)) {
+				listener.onAddChildDevices(added.toArray(new String[added.size()]));
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Remove a client's child devices. The listener is told about devices no client holds any
+	 * more.
+	 *
+	 * @param client
+	 * @param deviceTokens
+	 * @throws SiteWhereMqttException if the broker unsubscription fails
+	 */
+	public void removeChildDevices(IFromSiteWhere client, String[] deviceTokens) throws SiteWhereMqttException {
+		synchronized (brokerLock) {
+			List<String> removed = new ArrayList<String>();
+			synchronized (lock) {
+				ClientDispatcher dispatcher = find(client.asBinder());
+				if (dispatcher == null) {
+					return;
+				}
+				for (String token : deviceTokens) {
+					if (dispatcher.childDevices.remove(token) && (removeChildClient(token, dispatcher) == 0)) {
+						removed.add(token);
+					}
+				}
+			}
+			SubscriptionListener listener = subscriptionListener;
+			if (!removed.isEmpty() && (listener != null)) {
+				listener.onRemoveChildDevices(removed.toArray(new String[removed.size()]));
+			}
+		}
+	}
+
+	/**
+	 * Get the number of clients holding a child device.
+	 *
+	 * @param deviceToken
+	 * @return
+	 */
+	public int getChildDeviceClientCount(String deviceToken) {
+		ClientDispatcher[] holders = childClients.get(deviceToken);
+		return (holders != null) ? holders.length : 0;
+	}
+
+	/**
+	 * Get the number of subscribers to a topic filter. A shared subscription counts as one.
+	 *
+	 * @param filter
+	 * @return
+	 */
+	public int getSubscriberCount(String filter) {
+		synchronized (lock) {
+			Integer count = subscriberCounts.get(filter);
+			return (count != null) ? count : 0;
+		}
+	}
+
+	/**
+	 * Set listener notified when broker subscriptions need to change.
+	 *
+	 * @param subscriptionListener
+	 */
+	public void setSubscriptionListener(SubscriptionListener subscriptionListener) {
+		this.subscriptionListener = subscriptionListener;
+	}
+
+	/**
+	 * Remove all clients and stop their delivery threads.
+	 */
+	public void clear() {
+		synchronized (lock) {
+			for (ClientDispatcher client : clients) {
+				client.getBinder().unlinkToDeath(client, 0);
+				client.stop();
+			}
+			clients = NO_CLIENTS;
+			subscriptions.clear();
+			subscriberCounts.clear();
+			sharedSubscriptions.clear();
+			childClients.clear();
+		}
+	}
+
+	/**
+	 * Get the number of registered clients.
+	 *
+	 * @return
+	 */
+	public int getClientCount() {
+		return clients.length;
+	}
+
+	/**
+	 * Get delivery metrics for each registered client.
+	 *
+	 * @return
+	 */
+	public List<ClientDispatcher.Metrics> getDeliveryMetrics() {
+		ClientDispatcher[] current = clients;
+		List<ClientDispatcher.Metrics> metrics = new ArrayList<ClientDispatcher.Metrics>(current.length);
+		for (ClientDispatcher client : current) {
+			metrics.add(client.getMetrics());
+		}
+		return metrics;
 	}
 
 	/*
@@ -62,18 +431,7 @@ public class RegistrationManager implements IMqttCallback {
 	 */
 	@Override
 	public void connected() {
-		List<IFromSiteWhere> unreachable = new ArrayList<IFromSiteWhere>();
-		for (IFromSiteWhere client : clients) {
-			try {
-				client.connected();
-			} catch (RemoteException e) {
-				Log.e(MqttService.TAG, "Unable to send message to client. Removing from list.", e);
-				unreachable.add(client);
-			}
-		}
-		for (IFromSiteWhere client : unreachable) {
-			clients.remove(client);
-		}
+		broadcast(ClientDispatcher.CONNECTED, null, null, null);
 	}
 
 	/*
@@ -83,18 +441,25 @@ public class RegistrationManager implements IMqttCallback {
 	 */
 	@Override
 	public void onSystemCommandReceived(String topic, byte[] payload) {
-		Log.d(MqttService.TAG, "Notifying clients system command was received.");
-		List<IFromSiteWhere> unreachable = new ArrayList<IFromSiteWhere>();
-		for (IFromSiteWhere client : clients) {
-			try {
-				client.receivedSystemCommand(payload);
-			} catch (RemoteException e) {
-				Log.w(MqttService.TAG, "Unable to send message to client. Removing from list.", e);
-				unreachable.add(client);
-			}
-		}
-		for (IFromSiteWhere client : unreachable) {
-			clients.remove(client);
+		SiteWhereLog.d(MqttService.TAG, "Notifying clients system command was received.");
+		broadcast(ClientDispatcher.SYSTEM_COMMAND, topic, null, decodeSystemCommand(payload));
+	}
+
+	/**
+	 * Decode a system command once so clients do not each parse it.
+	 *
+	 * @param payload
+	 * @return
+	 */
+	protected SystemCommand decodeSystemCommand(byte[] payload) {
+		try {
+			return SystemCommand.decode(payload);
+		} catch (IOException e) {
+			Log.w(MqttService.TAG, "Unable to decode system command. Passing it to clients as received.", e);
+			return SystemCommand.undecoded(payload);
+		} catch (RuntimeException e) {
+			Log.w(MqttService.TAG, "Unsupported system command. Passing it to clients as received.", e);
+			return SystemCommand.undecoded(payload);
 		}
 	}
 
@@ -105,56 +470,309 @@ public class RegistrationManager implements IMqttCallback {
 	 */
 	@Override
 	public void onCustomCommandReceived(String topic, byte[] payload) {
-		Log.d(MqttService.TAG, "Notifying clients custom command was received.");
-		List<IFromSiteWhere> unreachable = new ArrayList<IFromSiteWhere>();
-		for (IFromSiteWhere client : clients) {
-			try {
-				client.receivedCustomCommand(payload);
-			} catch (RemoteException e) {
-				Log.w(MqttService.TAG, "Unable to send message to client. Removing from list.", e);
-				unreachable.add(client);
-			}
-		}
-		for (IFromSiteWhere client : unreachable) {
-			clients.remove(client);
-		}
-	}
-
-    @Override
-    public void onEventMessageReceived(String topic, byte[] payload) {
-        Log.d(MqttService.TAG, "Notifying clients event message was received.");
-        List<IFromSiteWhere> unreachable = new ArrayList<IFromSiteWhere>();
-        for (IFromSiteWhere client : clients) {
-            try {
-                client.receivedEventMessage(topic, payload);
-            } catch (RemoteException e) {
-                Log.w(MqttService.TAG, "Unable to send message to client. Removing from list.", e);
-                unreachable.add(client);
-            }
-        }
-        for (IFromSiteWhere client : unreachable) {
-            clients.remove(client);
-        }
-    }
-
-    /*
-         * (non-Javadoc)
-         *
-         * @see com.sitewhere.android.mqtt.IMqttCallback#disconnected()
-         */
+		SiteWhereLog.d(MqttService.TAG, "Notifying clients custom command was received.");
+		broadcast(ClientDispatcher.CUSTOM_COMMAND, topic, null, payload);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.sitewhere.android.mqtt.IMqttCallback#onChildSystemCommandReceived(java.lang.String,
+	 * java.lang.String, byte[])
+	 */
+	@Override
+	public void onChildSystemCommandReceived(String deviceToken, String topic, byte[] payload) {
+		deliverToChildClients(ClientDispatcher.CHILD_SYSTEM_COMMAND, topic, deviceToken, payload);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.sitewhere.android.mqtt.IMqttCallback#onChildCustomCommandReceived(java.lang.String,
+	 * java.lang.String, byte[])
+	 */
+	@Override
+	public void onChildCustomCommandReceived(String deviceToken, String topic, byte[] payload) {
+		deliverToChildClients(ClientDispatcher.CHILD_CUSTOM_COMMAND, topic, deviceToken, payload);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.sitewhere.android.mqtt.IMqttCallback#onEventMessageReceived(java.lang.String, byte[])
+	 */
+	@Override
+	public void onEventMessageReceived(String topic, byte[] payload) {
+		matchedShared.clear();
+		if (sharedSubscriptions.match(topic, matchedShared)) {
+			SiteWhereLog.d(MqttService.TAG, "Notifying clients event message was received.");
+			broadcast(ClientDispatcher.EVENT_MESSAGE, topic, null, payload);
+			return;
+		}
+		matched.clear();
+		subscriptions.match(topic, matched);
+		SiteWhereLog.d(MqttService.TAG, "Notifying %d client(s) event message was received.", matched.size());
+		for (int i = 0; i < matched.size(); i++) {
+			matched.get(i).enqueue(ClientDispatcher.EVENT_MESSAGE, topic, null, payload);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.sitewhere.android.mqtt.IMqttCallback#disconnected()
+	 */
 	@Override
 	public void disconnected() {
-		List<IFromSiteWhere> unreachable = new ArrayList<IFromSiteWhere>();
-		for (IFromSiteWhere client : clients) {
-			try {
-				client.disconnected();
-			} catch (RemoteException e) {
-				Log.w(MqttService.TAG, "Unable to send message to client. Removing from list.", e);
-				unreachable.add(client);
+		broadcast(ClientDispatcher.DISCONNECTED, null, null, null);
+	}
+
+	/**
+	 * Queue a notification for every registered client.
+	 *
+	 * @param kind
+	 * @param topic
+	 * @param deviceToken
+	 * @param payload
+	 */
+	private void broadcast(int kind, String topic, String deviceToken, Object payload) {
+		for (ClientDispatcher client : clients) {
+			client.enqueue(kind, topic, deviceToken, payload);
+		}
+	}
+
+	/**
+	 * Queue a child device command for the clients holding the device.
+	 *
+	 * @param kind
+	 * @param topic
+	 * @param deviceToken
+	 * @param payload
+	 */
+	private void deliverToChildClients(int kind, String topic, String deviceToken, byte[] payload) {
+		ClientDispatcher[] holders = childClients.get(deviceToken);
+		if (holders == null) {
+			SiteWhereLog.d(MqttService.TAG, "Ignoring command for child device %s held by no client.", deviceToken);
+			return;
+		}
+		SiteWhereLog.d(MqttService.TAG, "Notifying %d client(s) command was received for %s.", holders.length,
+				deviceToken);
+		for (ClientDispatcher holder : holders) {
+			holder.enqueue(kind, topic, deviceToken, payload);
+		}
+	}
+
+	/**
+	 * Remove the client registered with the given binder.
+	 *
+	 * @param binder
+	 */
+	void remove(IBinder binder) {
+		synchronized (brokerLock) {
+			List<String> unused = new ArrayList<String>();
+			List<String> unusedChildren = new ArrayList<String>();
+			synchronized (lock) {
+				ClientDispatcher[] current = clients;
+				int index = indexOf(current, binder);
+				if (index < 0) {
+					return;
+				}
+				ClientDispatcher removed = current[index];
+				removed.getBinder().unlinkToDeath(removed, 0);
+				removed.stop();
+				for (String filter : removed.subscriptions) {
+					subscriptions.remove(filter, removed);
+					if (release(filter) == 0) {
+						unused.add(filter);
+					}
+				}
+				removed.subscriptions.clear();
+				for (String token : removed.childDevices) {
+					if (removeChildClient(token, removed) == 0) {
+						unusedChildren.add(token);
+					}
+				}
+				removed.childDevices.clear();
+				if (current.length == 1) {
+					clients = NO_CLIENTS;
+				} else {
+					ClientDispatcher[] updated = new ClientDispatcher[current.length - 1];
+					System.arraycopy(current, 0, updated, 0, index);
+					System.arraycopy(current, index + 1, updated, index, updated.length - index);
+					clients = updated;
+				}
 			}
+			for (String filter : unused) {
+				released(filter);
+			}
+			if (!unusedChildren.isEmpty()) {
+				releasedChildren(unusedChildren.toArray(new String[unusedChildren.size()]));
+			}
+		}
+	}
+
+	/**
+	 * Add a client to those holding a child device. Must hold the lock.
+	 *
+	 * @param deviceToken
+	 * @param dispatcher
+	 * @return updated number of clients holding the device
+	 */
+	private int addChildClient(String deviceToken, ClientDispatcher dispatcher) {
+		ClientDispatcher[] current = childClients.get(deviceToken);
+		if (current == null) {
+			childClients.put(deviceToken, new ClientDispatcher[] { dispatcher });
+			return 1;
 		}
-		for (IFromSiteWhere client : unreachable) {
-			clients.remove(client);
+		ClientDispatcher[] updated = new ClientDispatcher[current.length + 1];
+		System.arraycopy(current, 0, updated, 0, current.length);
+		updated[current.length] = dispatcher;
+		childClients.put(deviceToken, updated);
+		return updated.length;
+	}
+
+	/**
+	 * Remove a client from those holding a child device. Must hold the lock.
+	 *
+	 * @param deviceToken
+	 * @param dispatcher
+	 * @return updated number of clients holding the device
+	 */
+	private int removeChildClient(String deviceToken, ClientDispatcher dispatcher) {
+		ClientDispatcher[] current = childClients.get(deviceToken);
+		if (current == null) {
+			return 0;
 		}
+		int index = indexOf(current, dispatcher.getBinder());
+		if (index < 0) {
+			return current.length;
+		}
+		if (current.length == 1) {
+			childClients.remove(deviceToken);
+			return 0;
+		}
+		ClientDispatcher[] updated = new ClientDispatcher[current.length - 1];
+		System.arraycopy(current, 0, updated, 0, index);
+		System.arraycopy(current, index + 1, updated, index, updated.length - index);
+		childClients.put(deviceToken, updated);
+		return updated.length;
+	}
+
+	/**
+	 * Add a subscriber to the count for a filter. Must hold the lock.
+	 *
+	 * @param filter
+	 * @return updated count
+	 */
+	private int retain(String filter) {
+		Integer count = subscriberCounts.get(filter);
+		int updated = (count != null) ? count + 1 : 1;
+		subscriberCounts.put(filter, updated);
+		return updated;
+	}
+
+	/**
+	 * Remove a subscriber from the count for a filter. Must hold the lock.
+	 *
+	 * @param filter
+	 * @return updated count
+	 */
+	private int release(String filter) {
+		Integer count = subscriberCounts.get(filter);
+		int updated = (count != null) ? count - 1 : 0;
+		if (updated <= 0) {
+			subscriberCounts.remove(filter);
+			return 0;
+		}
+		subscriberCounts.put(filter, updated);
+		return updated;
+	}
+
+	/**
+	 * Tell the listener that no client is subscribed to a filter any more.
+	 *
+	 * @param filter
+	 */
+	private void released(String filter) {
+		SubscriptionListener listener = subscriptionListener;
+		if (listener == null) {
+			return;
+		}
+		try {
+			listener.onUnsubscribe(filter);
+		} catch (SiteWhereMqttException e) {
+			Log.w(MqttService.TAG, "Unable to unsubscribe from topic " + filter, e);
+		}
+	}
+
+	/**
+	 * Tell the listener that no client holds some child devices any more.
+	 *
+	 * @param deviceTokens
+	 */
+	private void releasedChildren(String[] deviceTokens) {
+		SubscriptionListener listener = subscriptionListener;
+		if (listener == null) {
+			return;
+		}
+		try {
+			listener.onRemoveChildDevices(deviceTokens);
+		} catch (SiteWhereMqttException e) {
+			Log.w(MqttService.TAG, "Unable to remove child devices.", e);
+		}
+	}
+
+	private ClientDispatcher find(IBinder binder) {
+		ClientDispatcher[] current = clients;
+		int index = indexOf(current, binder);
+		return (index >= 0) ? current[index] : null;
+	}
+
+	private static int indexOf(ClientDispatcher[] list, IBinder binder) {
+		for (int i = 0; i < list.length; i++) {
+			if (list[i].getBinder() == binder) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Keeps broker subscriptions in line with client subscriptions and child devices. Calls are
+	 * serialized.
+	 */
+	public interface SubscriptionListener {
+
+		/**
+		 * Called when the first client subscribes to a topic filter.
+		 *
+		 * @param filter
+		 * @throws SiteWhereMqttException
+		 */
+		public void onSubscribe(String filter) throws SiteWhereMqttException;
+
+		/**
+		 * Called when no client is subscribed to a topic filter any more.
+		 *
+		 * @param filter
+		 * @throws SiteWhereMqttException
+		 */
+		public void onUnsubscribe(String filter) throws SiteWhereMqttException;
+
+		/**
+		 * Called with child devices that were not held by any client before.
+		 *
+		 * @param deviceTokens
+		 * @throws SiteWhereMqttException
+		 */
+		public void onAddChildDevices(String[] deviceTokens) throws SiteWhereMqttException;
+
+		/**
+		 * Called with child devices that are not held by any client any more.
+		 *
+		 * @param deviceTokens
+		 * @throws SiteWhereMqttException
+		 */
+		public void onRemoveChildDevices(String[] deviceTokens) throws SiteWhereMqttException;
 	}
-}
\ No newline at end of file
+}
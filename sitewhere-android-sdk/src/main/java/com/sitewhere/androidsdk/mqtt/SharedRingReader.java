@@ -0,0 +1,236 @@
+/*
+ * Copyright (c) SiteWhere, LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.androidsdk.mqtt;
+
+import android.os.IBinder;
+import android.os.RemoteException;
+import android.util.Log;
+
+import com.sitewhere.androidsdk.messaging.EventFrames;
+import com.sitewhere.androidsdk.messaging.SharedRing;
+import com.sitewhere.androidsdk.messaging.SiteWhereMessagingException;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Publishes payloads that clients write to {@link SharedRing}s. A client signals its ring when a
+ * write finds it empty, and a single reader thread then drains the ring until it is empty again,
+ * so busy clients send many payloads per binder call.
+ * <p>
+ * Clients are not told about publish errors for payloads sent this way, so payloads that fail
+ * are stored in the outbound journal to be sent again.
+ */
+public class SharedRingReader {
+
+	/** Rings keyed by the binder of the client that owns them */
+	private final Map<IBinder, Attached> rings = new ConcurrentHashMap<IBinder, Attached>();
+
+	/** Used to publish messages */
+	private final IMqttInteractionManager mqttManager;
+
+	/** Stores messages that could not be published (null if there is no journal) */
+	private final JournalingMqttInteractionManager journalingManager;
+
+	/** Thread that drains signalled rings */
+	private final ExecutorService reader = Executors.newSingleThreadExecutor();
+
+	public SharedRingReader(IMqttInteractionManager mqttManager, JournalingMqttInteractionManager journalingManager) {
+		this.mqttManager = mqttManager;
+		this.journalingManager = journalingManager;
+	}
+
+	/**
+	 * Start reading a ring for a client. Any ring previously attached for the client is closed.
+	 *
+	 * @param client
+	 * @param ring
+	 * @throws IOException
+	 */
+	public void attach(final IBinder client, SharedRing ring) throws IOException {
+		ring.map();
+		Attached attached = new Attached(ring);
+		try {
+			client.linkToDeath(new IBinder.DeathRecipient() {
+
+				@Override
+				public void binderDied() {
+					detach(client);
+				}
+			}, 0);
+		} catch (RemoteException e) {
+			ring.close();
+			throw new IOException("Client died before ring could be attached.", e);
+		}
+		Attached previous = rings.put(client, attached);
+		if (previous != null) {
+			previous.close();
+		}
+		Log.d(MqttService.TAG, "Attached shared ring for client.");
+	}
+
+	/**
+	 * Schedule a client's ring to be drained.
+	 *
+	 * @param client
+	 */
+	public void signal(IBinder client) {
+		Attached attached = rings.get(client);
+		if ((attached != null) && attached.scheduled.compareAndSet(false, true)) {
+			try {
+				reader.execute(attached);
+			} catch (RejectedExecutionException e) {
+				Log.w(MqttService.TAG, "Shared ring reader stopped. Ignoring signal.");
+			}
+		}
+	}
+
+	/**
+	 * Drain a client's ring in the calling thread.
+	 *
+	 * @param client
+	 */
+	public void flush(IBinder client) {
+		Attached attached = rings.get(client);
+		if (attached != null) {
+			attached.drain();
+		}
+	}
+
+	/**
+	 * Publish anything left in a client's ring and stop reading it.
+	 *
+	 * @param client
+	 */
+	public void detach(IBinder client) {
+		Attached attached = rings.remove(client);
+		if (attached != null) {
+			attached.drain();
+			attached.close();
+			Log.d(MqttService.TAG, "Detached shared ring for client.");
+		}
+	}
+
+	/**
+	 * Stop the reader thread and close all rings.
+	 */
+	public void stop() {
+		reader.shutdownNow();
+		for (IBinder client : rings.keySet()) {
+			Attached attached = rings.remove(client);
+			if (attached != null) {
+				attached.close();
+			}
+		}
+	}
+
+	/**
+	 * Publish a payload, storing it in the journal if publishing fails.
+	 *
+	 * @param payload
+	 * @param offset
+	 * @param length
+	 */
+	protected void publish(byte[] payload, int offset, int length) {
+		try {
+			mqttManager.send(payload, offset, length);
+		} catch (SiteWhereMqttException e) {
+			if (journalingManager == null) {
+				Log.e(MqttService.TAG, "Error sending message from shared ring. Message was dropped.", e);
+				return;
+			}
+			try {
+				journalingManager.store(payload, offset, length);
+				Log.w(MqttService.TAG, "Error sending message from shared ring. Stored it to send again.", e);
+			} catch (SiteWhereMqttException stored) {
+				Log.e(MqttService.TAG, "Error sending message from shared ring. Message was dropped.", stored);
+			}
+		}
+	}
+
+	/**
+	 * Ring attached for a client. Runs as the drain task when signalled.
+	 */
+	private class Attached implements Runnable, SharedRing.Reader {
+
+		/** Ring written by the client */
+		private final SharedRing ring;
+
+		/** Indicates a drain is already queued */
+		final AtomicBoolean scheduled = new AtomicBoolean();
+
+		/** Indicates the ring was closed (guarded by this) */
+		private boolean closed;
+
+		Attached(SharedRing ring) {
+			this.ring = ring;
+		}
+
+		@Override
+		public void run() {
+			scheduled.set(false);
+			drain();
+		}
+
+		/**
+		 * Publish everything in the ring.
+		 */
+		synchronized void drain() {
+			if (closed) {
+				return;
+			}
+			try {
+				ring.drain(this);
+			} catch (IOException e) {
+				Log.e(MqttService.TAG, "Unable to read shared ring. Closing it.", e);
+				close();
+			}
+		}
+
+		synchronized void close() {
+			if (!closed) {
+				closed = true;
+				ring.close();
+			}
+		}
+
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see com.sitewhere.androidsdk.messaging.SharedRing.Reader#onPayload(byte[], boolean)
+		 */
+		@Override
+		public void onPayload(byte[] payload, boolean batch) {
+			if (!batch) {
+				publish(payload, 0, payload.length);
+				return;
+			}
+			try {
+				EventFrames.Reader frames = new EventFrames.Reader(payload);
+				while (frames.next()) {
+					publish(payload, frames.getOffset(), frames.getLength());
+				}
+			} catch (SiteWhereMessagingException e) {
+				Log.e(MqttService.TAG, "Error unpacking batched message.", e);
+			}
+		}
+	}
+}
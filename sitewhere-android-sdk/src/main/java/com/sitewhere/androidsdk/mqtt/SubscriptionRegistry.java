@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) SiteWhere, LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.androidsdk.mqtt;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Event topic filters the service is subscribed to. Filters are kept across reconnects so they
+ * can all be sent in one SUBSCRIBE frame after connecting. Filters added while connected are held
+ * as pending until the next flush, so several added in a row also share one frame.
+ */
+public class SubscriptionRegistry {
+
+	/** Default time to collect added filters before subscribing */
+	public static final long DEFAULT_WINDOW_MS = 20;
+
+	/** All filters in the order added */
+	private final Set<String> filters = new LinkedHashSet<String>();
+
+	/** Filters added since the last flush */
+	private final Set<String> pending = new LinkedHashSet<String>();
+
+	/** Time to collect added filters before subscribing */
+	private volatile long windowMs = DEFAULT_WINDOW_MS;
+
+	/**
+	 * Add a filter.
+	 *
+	 * @param filter
+	 * @return true if a flush should be scheduled (filter is the first one pending)
+	 */
+	public synchronized boolean add(String filter) {
+		if (!filters.add(filter)) {
+			return false;
+		}
+		pending.add(filter);
+		return pending.size() == 1;
+	}
+
+	/**
+	 * Remove a filter.
+	 *
+	 * @param filter
+	 * @return true if the filter may have been sent to the broker and needs an UNSUBSCRIBE
+	 */
+	public synchronized boolean remove(String filter) {
+		if (!filters.remove(filter)) {
+			return false;
+		}
+		return !pending.remove(filter);
+	}
+
+	/**
+	 * Get all filters and clear the pending ones, since they are sent along with the rest.
+	 *
+	 * @return
+	 */
+	public synchronized List<String> takeAll() {
+		pending.clear();
+		return new ArrayList<String>(filters);
+	}
+
+	/**
+	 * Get filters added since the last flush and clear them.
+	 *
+	 * @return
+	 */
+	public synchronized List<String> takePending() {
+		List<String> taken = new ArrayList<String>(pending);
+		pending.clear();
+		return taken;
+	}
+
+	/**
+	 * Put filters taken by {@link #takePending()} back as pending after they could not be sent.
+	 * Filters removed in the meantime are skipped.
+	 *
+	 * @param taken
+	 */
+	public synchronized void restorePending(List<String> taken) {
+		for (String filter : taken) {
+			if (filters.contains(filter)) {
+				pending.add(filter);
+			}
+		}
+	}
+
+	public long getWindowMs() {
+		return windowMs;
+	}
+
+	public void setWindowMs(long windowMs) {
+		this.windowMs = Math.max(0, windowMs);
+	}
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright (c) SiteWhere, LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.androidsdk.mqtt;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Maps MQTT topic filters to handlers using a trie with one level per topic level. Filters may
+ * use the <code>+</code> (single level) and <code>#</code> (remaining levels) wildcards. Finding
+ * the handlers for a topic walks the trie once per topic level, so the cost does not grow with
+ * the number of registered filters. As in MQTT, wildcards at the first level do not match topics
+ * that start with <code>$</code>.
+ * <p>
+ * Instances are thread safe.
+ *
+ * @param <H> handler type
+ */
+public class TopicRouter<H> {
+
+	/** Single level wildcard */
+	private static final String SINGLE_LEVEL = "+";
+
+	/** Multi level wildcard */
+	private static final String MULTI_LEVEL = "#";
+
+	/** Root of the trie */
+	private final Node<H> root = new Node<H>();
+
+	/**
+	 * Register a handler for a topic filter. Adding the same handler twice for a filter has no
+	 * effect.
+	 *
+	 * @param filter
+	 * @param handler
+	 */
+	public synchronized void add(String filter, H handler) {
+		Node<H> node = root;
+		int start = 0;
+		while (true) {
+			int end = filter.indexOf('/', start);
+			String level = filter.substring(start, (end < 0) ? filter.length() : end);
+			Node<H> child = node.children.get(level);
+			if (child == null) {
+				child = new Node<H>();
+				node.children.put(level, child);
+			}
+			node = child;
+			if (end < 0) {
+				break;
+			}
+			start = end + 1;
+		}
+		if (!node.handlers.contains(handler)) {
+			node.handlers.add(handler);
+		}
+	}
+
+	/**
+	 * Remove a handler for a topic filter.
+	 *
+	 * @param filter
+	 * @param handler
+	 * @return true if the handler was registered for the filter
+	 */
+	public synchronized boolean remove(String filter, H handler) {
+		return remove(root, filter, 0, handler);
+	}
+
+	/**
+	 * Indicates whether any handler is registered for exactly the given filter.
+	 *
+	 * @param filter
+	 * @return
+	 */
+	public synchronized boolean contains(String filter) {
+		Node<H> node = root;
+		int start = 0;
+		while (node != null) {
+			int end = filter.indexOf('/', start);
+			node = node.children.get(filter.substring(start, (end < 0) ? filter.length() : end));
+			if (end < 0) {
+				return (node != null) && !node.handlers.isEmpty();
+			}
+			start = end + 1;
+		}
+		return false;
+	}
+
+	/**
+	 * Add handlers for filters matching a topic to a list. Each handler is added at most once,
+	 * even if several of its filters match. The list is not cleared first, so callers can reuse
+	 * one list across messages.
+	 *
+	 * @param topic
+	 * @param matches
+	 * @return true if any handler matched
+	 */
+	public synchronized boolean match(String topic, List<H> matches) {
+		int before = matches.size();
+		match(root, topic, 0, !topic.startsWith("$"), matches);
+		return matches.size() > before;
+	}
+
+	/**
+	 * Indicates whether no handlers are registered. Levels are pruned as their last handler is
+	 * removed, so this also means the trie holds no nodes.
+	 *
+	 * @return
+	 */
+	public synchronized boolean isEmpty() {
+		return root.children.isEmpty() && root.handlers.isEmpty();
+	}
+
+	/**
+	 * Remove all handlers.
+	 */
+	public synchronized void clear() {
+		root.children.clear();
+		root.handlers.clear();
+	}
+
+	private void match(Node<H> node, String topic, int start, boolean wildcards, List<H> matches) {
+		if (wildcards) {
+			Node<H> rest = node.children.get(MULTI_LEVEL);
+			if (rest != null) {
+				addAll(rest.handlers, matches);
+			}
+		}
+		if (start > topic.length()) {
+			addAll(node.handlers, matches);
+			return;
+		}
+		int end = topic.indexOf('/', start);
+		if (end < 0) {
+			end = topic.length();
+		}
+		Node<H> exact = node.children.get(topic.substring(start, end));
+		if (exact != null) {
+			match(exact, topic, end + 1, true, matches);
+		}
+		if (wildcards) {
+			Node<H> single = node.children.get(SINGLE_LEVEL);
+			if (single != null) {
+				match(single, topic, end + 1, true, matches);
+			}
+		}
+	}
+
+	private boolean remove(Node<H> node, String filter, int start, H handler) {
+		int end = filter.indexOf('/', start);
+		String level = filter.substring(start, (end < 0) ? filter.length() : end);
+		Node<H> child = node.children.get(level);
+		if (child == null) {
+			return false;
+		}
+		boolean removed = (end < 0) ? child.handlers.remove(handler) : remove(child, filter, end + 1, handler);
+		if (child.handlers.isEmpty() && child.children.isEmpty()) {
+			node.children.remove(level);
+		}
+		return removed;
+	}
+
+	private static <H> void addAll(List<H> handlers, List<H> matches) {
+		for (int i = 0; i < handlers.size(); i++) {
+			H handler = handlers.get(i);
+			if (!matches.contains(handler)) {
+				matches.add(handler);
+			}
+		}
+	}
+
+	/**
+	 * Trie node for one topic level.
+	 */
+	private static class Node<H> {
+
+		/** Child nodes by level name (including wildcards) */
+		final Map<String, Node<H>> children = new HashMap<String, Node<H>>();
+
+		/** Handlers for filters ending at this node */
+		final List<H> handlers = new ArrayList<H>(1);
+	}
+}
@@ -36,6 +36,30 @@ public interface IMqttServicePreferences extends Parcelable {
 	/** Preference for tenamt */
 	public static final String PREF_SITEWHERE_TENANT = "tenant";
 
+	/** Preference for measurement QoS level */
+	public static final String PREF_SITEWHERE_QOS_MEASUREMENT = "qos_measurement";
+
+	/** Preference for location QoS level */
+	public static final String PREF_SITEWHERE_QOS_LOCATION = "qos_location";
+
+	/** Preference for alert QoS level */
+	public static final String PREF_SITEWHERE_QOS_ALERT = "qos_alert";
+
+	/** Preference for registration QoS level */
+	public static final String PREF_SITEWHERE_QOS_REGISTRATION = "qos_registration";
+
+	/** Preference for acknowledgement QoS level */
+	public static final String PREF_SITEWHERE_QOS_ACKNOWLEDGEMENT = "qos_acknowledgement";
+
+	/** Preference for command subscription QoS level */
+	public static final String PREF_SITEWHERE_QOS_COMMAND_SUBSCRIPTION = "qos_command_subscription";
+
+	/** Preference for event subscription QoS level */
+	public static final String PREF_SITEWHERE_QOS_EVENT_SUBSCRIPTION = "qos_event_subscription";
+
+	/** Preference for number of broker connections used to publish events */
+	public static final String PREF_SITEWHERE_MQTT_UPLINK_CONNECTIONS = "mqtt_uplink_connections";
+
 	/**
 	 * Get MQTT broker host name.
 	 * 
@@ -62,4 +86,60 @@ public interface IMqttServicePreferences extends Parcelable {
      * @return
      */
 	public String getTenant();
+
+	/**
+	 * Get MQTT QoS level (0, 1 or 2) for measurement events. Null uses the default of 2.
+	 *
+	 * @return
+	 */
+	public Integer getMeasurementQos();
+
+	/**
+	 * Get MQTT QoS level for location events. Null uses the default of 2.
+	 *
+	 * @return
+	 */
+	public Integer getLocationQos();
+
+	/**
+	 * Get MQTT QoS level for alert events. Null uses the default of 2.
+	 *
+	 * @return
+	 */
+	public Integer getAlertQos();
+
+	/**
+	 * Get MQTT QoS level for registration requests. Null uses the default of 2.
+	 *
+	 * @return
+	 */
+	public Integer getRegistrationQos();
+
+	/**
+	 * Get MQTT QoS level for acknowledgements. Null uses the default of 2.
+	 *
+	 * @return
+	 */
+	public Integer getAcknowledgementQos();
+
+	/**
+	 * Get MQTT QoS level for device command and system subscriptions. Null uses the default of 2.
+	 *
+	 * @return
+	 */
+	public Integer getCommandSubscriptionQos();
+
+	/**
+	 * Get MQTT QoS level for event topic subscriptions. Null uses the default of 2.
+	 *
+	 * @return
+	 */
+	public Integer getEventSubscriptionQos();
+
+	/**
+	 * Get number of broker connections used to publish events. Null uses a single connection.
+	 *
+	 * @return
+	 */
+	public Integer getUplinkConnections();
 }
\ No newline at end of file
@@ -37,6 +37,9 @@ public class MqttServicePreferences implements IMqttServicePreferences {
 	/** Default tenant */
 	private static final String DEFAULT_TENANT = "default";
 
+	/** Marks a QoS level that has not been set */
+	private static final int NO_QOS = -1;
+
 	/** MQTT broker host name */
 	private String brokerHostname;
 
@@ -49,6 +52,30 @@ public class MqttServicePreferences implements IMqttServicePreferences {
 	/** Tenant */
 	private String tenant = DEFAULT_TENANT;
 
+	/** Measurement QoS level */
+	private Integer measurementQos;
+
+	/** Location QoS level */
+	private Integer locationQos;
+
+	/** Alert QoS level */
+	private Integer alertQos;
+
+	/** Registration QoS level */
+	private Integer registrationQos;
+
+	/** Acknowledgement QoS level */
+	private Integer acknowledgementQos;
+
+	/** Command subscription QoS level */
+	private Integer commandSubscriptionQos;
+
+	/** Event subscription QoS level */
+	private Integer eventSubscriptionQos;
+
+	/** Number of uplink connections */
+	private Integer uplinkConnections;
+
 	public MqttServicePreferences() {
 	}
 
@@ -57,6 +84,14 @@ public class MqttServicePreferences implements IMqttServicePreferences {
 		this.brokerPort = parcel.readInt();
 		this.deviceToken = parcel.readString();
 		this.tenant = parcel.readString();
+		this.measurementQos = readQos(parcel);
+		this.locationQos = readQos(parcel);
+		this.alertQos = readQos(parcel);
+		this.registrationQos = readQos(parcel);
+		this.acknowledgementQos = readQos(parcel);
+		this.commandSubscriptionQos = readQos(parcel);
+		this.eventSubscriptionQos = readQos(parcel);
+		this.uplinkConnections = readOptionalInt(parcel);
 	}
 
 	/**
@@ -98,6 +133,18 @@ public class MqttServicePreferences implements IMqttServicePreferences {
 				IMqttServicePreferences.PREF_SITEWHERE_DEVICE_TOKEN, null));
 		mqtt.setTenant(prefs.getString(
 		        IMqttServicePreferences.PREF_SITEWHERE_TENANT, null));
+		mqtt.setMeasurementQos(loadQos(prefs, IMqttServicePreferences.PREF_SITEWHERE_QOS_MEASUREMENT));
+		mqtt.setLocationQos(loadQos(prefs, IMqttServicePreferences.PREF_SITEWHERE_QOS_LOCATION));
+		mqtt.setAlertQos(loadQos(prefs, IMqttServicePreferences.PREF_SITEWHERE_QOS_ALERT));
+		mqtt.setRegistrationQos(loadQos(prefs, IMqttServicePreferences.PREF_SITEWHERE_QOS_REGISTRATION));
+		mqtt.setAcknowledgementQos(
+				loadQos(prefs, IMqttServicePreferences.PREF_SITEWHERE_QOS_ACKNOWLEDGEMENT));
+		mqtt.setCommandSubscriptionQos(
+				loadQos(prefs, IMqttServicePreferences.PREF_SITEWHERE_QOS_COMMAND_SUBSCRIPTION));
+		mqtt.setEventSubscriptionQos(
+				loadQos(prefs, IMqttServicePreferences.PREF_SITEWHERE_QOS_EVENT_SUBSCRIPTION));
+		mqtt.setUplinkConnections(
+				loadOptionalInt(prefs, IMqttServicePreferences.PREF_SITEWHERE_MQTT_UPLINK_CONNECTIONS));
 		return mqtt;
 	}
 
@@ -127,6 +174,18 @@ public class MqttServicePreferences implements IMqttServicePreferences {
 			editor.putString(IMqttServicePreferences.PREF_SITEWHERE_TENANT,
 					updated.getTenant());
 		}
+		saveQos(editor, IMqttServicePreferences.PREF_SITEWHERE_QOS_MEASUREMENT, updated.getMeasurementQos());
+		saveQos(editor, IMqttServicePreferences.PREF_SITEWHERE_QOS_LOCATION, updated.getLocationQos());
+		saveQos(editor, IMqttServicePreferences.PREF_SITEWHERE_QOS_ALERT, updated.getAlertQos());
+		saveQos(editor, IMqttServicePreferences.PREF_SITEWHERE_QOS_REGISTRATION, updated.getRegistrationQos());
+		saveQos(editor, IMqttServicePreferences.PREF_SITEWHERE_QOS_ACKNOWLEDGEMENT,
+				updated.getAcknowledgementQos());
+		saveQos(editor, IMqttServicePreferences.PREF_SITEWHERE_QOS_COMMAND_SUBSCRIPTION,
+				updated.getCommandSubscriptionQos());
+		saveQos(editor, IMqttServicePreferences.PREF_SITEWHERE_QOS_EVENT_SUBSCRIPTION,
+				updated.getEventSubscriptionQos());
+		saveOptionalInt(editor, IMqttServicePreferences.PREF_SITEWHERE_MQTT_UPLINK_CONNECTIONS,
+				updated.getUplinkConnections());
 
 		editor.apply();
 		return MqttServicePreferences.loadFrom(prefs);
@@ -179,6 +238,110 @@ public class MqttServicePreferences implements IMqttServicePreferences {
 		this.tenant = tenant;
 	}
 
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.sitewhere.android.mqtt.preferences.IMqttServicePreferences#getMeasurementQos()
+	 */
+	public Integer getMeasurementQos() {
+		return measurementQos;
+	}
+
+	public void setMeasurementQos(Integer measurementQos) {
+		this.measurementQos = measurementQos;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.sitewhere.android.mqtt.preferences.IMqttServicePreferences#getLocationQos()
+	 */
+	public Integer getLocationQos() {
+		return locationQos;
+	}
+
+	public void setLocationQos(Integer locationQos) {
+		this.locationQos = locationQos;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.sitewhere.android.mqtt.preferences.IMqttServicePreferences#getAlertQos()
+	 */
+	public Integer getAlertQos() {
+		return alertQos;
+	}
+
+	public void setAlertQos(Integer alertQos) {
+		this.alertQos = alertQos;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.sitewhere.android.mqtt.preferences.IMqttServicePreferences#getRegistrationQos()
+	 */
+	public Integer getRegistrationQos() {
+		return registrationQos;
+	}
+
+	public void setRegistrationQos(Integer registrationQos) {
+		this.registrationQos = registrationQos;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.sitewhere.android.mqtt.preferences.IMqttServicePreferences#getAcknowledgementQos()
+	 */
+	public Integer getAcknowledgementQos() {
+		return acknowledgementQos;
+	}
+
+	public void setAcknowledgementQos(Integer acknowledgementQos) {
+		this.acknowledgementQos = acknowledgementQos;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.sitewhere.android.mqtt.preferences.IMqttServicePreferences#getCommandSubscriptionQos()
+	 */
+	public Integer getCommandSubscriptionQos() {
+		return commandSubscriptionQos;
+	}
+
+	public void setCommandSubscriptionQos(Integer commandSubscriptionQos) {
+		this.commandSubscriptionQos = commandSubscriptionQos;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.sitewhere.android.mqtt.preferences.IMqttServicePreferences#getEventSubscriptionQos()
+	 */
+	public Integer getEventSubscriptionQos() {
+		return eventSubscriptionQos;
+	}
+
+	public void setEventSubscriptionQos(Integer eventSubscriptionQos) {
+		this.eventSubscriptionQos = eventSubscriptionQos;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.sitewhere.android.mqtt.preferences.IMqttServicePreferences#getUplinkConnections()
+	 */
+	public Integer getUplinkConnections() {
+		return uplinkConnections;
+	}
+
+	public void setUplinkConnections(Integer uplinkConnections) {
+		this.uplinkConnections = uplinkConnections;
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -198,6 +361,16 @@ public class MqttServicePreferences implements IMqttServicePreferences {
 					|| (!deviceToken.equals(other.getDeviceToken()))) {
 				return false;
 			}
+			if (!sameQos(measurementQos, other.getMeasurementQos())
+					|| !sameQos(locationQos, other.getLocationQos())
+					|| !sameQos(alertQos, other.getAlertQos())
+					|| !sameQos(registrationQos, other.getRegistrationQos())
+					|| !sameQos(acknowledgementQos, other.getAcknowledgementQos())
+					|| !sameQos(commandSubscriptionQos, other.getCommandSubscriptionQos())
+					|| !sameQos(eventSubscriptionQos, other.getEventSubscriptionQos())
+					|| !sameOptionalInt(uplinkConnections, other.getUplinkConnections())) {
+				return false;
+			}
 			return true;
 		} else {
 			return super.equals(o);
@@ -225,6 +398,99 @@ public class MqttServicePreferences implements IMqttServicePreferences {
 		parcel.writeInt(getBrokerPort());
 		parcel.writeString(getDeviceToken());
 		parcel.writeString(getTenant());
+		writeQos(parcel, getMeasurementQos());
+		writeQos(parcel, getLocationQos());
+		writeQos(parcel, getAlertQos());
+		writeQos(parcel, getRegistrationQos());
+		writeQos(parcel, getAcknowledgementQos());
+		writeQos(parcel, getCommandSubscriptionQos());
+		writeQos(parcel, getEventSubscriptionQos());
+		writeOptionalInt(parcel, getUplinkConnections());
+	}
+
+	/**
+	 * Load a QoS level, returning null if it has not been set.
+	 *
+	 * @param prefs
+	 * @param key
+	 * @return
+	 */
+	private static Integer loadQos(SharedPreferences prefs, String key) {
+		return prefs.contains(key) ? prefs.getInt(key, NO_QOS) : null;
+	}
+
+	/**
+	 * Save a QoS level if it has been set.
+	 *
+	 * @param editor
+	 * @param key
+	 * @param qos
+	 */
+	private static void saveQos(Editor editor, String key, Integer qos) {
+		if (qos != null) {
+			editor.putInt(key, qos);
+		}
+	}
+
+	private static Integer readQos(Parcel parcel) {
+		int qos = parcel.readInt();
+		return (qos == NO_QOS) ? null : qos;
+	}
+
+	private static void writeQos(Parcel parcel, Integer qos) {
+		parcel.writeInt((qos != null) ? qos : NO_QOS);
+	}
+
+	private static boolean sameQos(Integer a, Integer b) {
+		return sameOptionalInt(a, b);
+	}
+
+	/**
+	 * Load an integer, returning null if it has not been set.
+	 *
+	 * @param prefs
+	 * @param key
+	 * @return
+	 */
+	private static Integer loadOptionalInt(SharedPreferences prefs, String key) {
+		return prefs.contains(key) ? prefs.getInt(key, 0) : null;
+	}
+
+	/**
+	 * Save an integer if it has been set.
+	 *
+	 * @param editor
+	 * @param key
+	 * @param value
+	 */
+	private static void saveOptionalInt(Editor editor, String key, Integer value) {
+		if (value != null) {
+			editor.putInt(key, value);
+		}
+	}
+
+	/**
+	 * Read an integer written by {@link #writeOptionalInt(Parcel, Integer)}. Unlike QoS levels,
+	 * any value is valid, so presence is written separately rather than as a marker value.
+	 *
+	 * @param parcel
+	 * @return
+	 */
+	private static Integer readOptionalInt(Parcel parcel) {
+		return (parcel.readInt() != 0) ? parcel.readInt() : null;
+	}
+
+	private static void writeOptionalInt(Parcel parcel, Integer value) {
+		if (value != null) {
+			parcel.writeInt(1);
+			parcel.writeInt(value);
+		} else {
+			parcel.writeInt(0);
+		}
+	}
+
+	private static boolean sameOptionalInt(Integer a, Integer b) {
+		return (a == null) ? (b == null) : a.equals(b);
 	}
 
 	public static final Parcelable.Creator<MqttServicePreferences> CREATOR = new Parcelable.Creator<MqttServicePreferences>() {
@@ -0,0 +1,193 @@
+package com.sitewhere.androidsdk;
+
+import com.google.protobuf.AbstractMessageLite;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.DeviceEvent;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.DeviceEvent.Command;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.GOptionalDouble;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.GOptionalFixed64;
+import com.sitewhere.communication.protobuf.proto.SiteWhere.GOptionalString;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertArrayEquals;
+
+/**
+ * Checks that {@link DeviceEventEncoder} produces the same bytes as the generated builders.
+ */
+public class DeviceEventEncoderTest {
+
+    private static final long EVENT_DATE = 1546300800123L;
+
+    @Test
+    public void measurement_matchesBuilder() throws IOException {
+        assertMeasurement("device-1", "originator", "engine.temp", 98.6, EVENT_DATE);
+    }
+
+    @Test
+    public void measurement_zeroValues() throws IOException {
+        assertMeasurement("device-1", "originator", "engine.temp", 0.0, 0L);
+    }
+
+    @Test
+    public void measurement_emptyStrings() throws IOException {
+        assertMeasurement("", "", "", 1.5, EVENT_DATE);
+    }
+
+    @Test
+    public void measurement_absentOriginator() throws IOException {
+        assertMeasurement("device-1", null, "engine.temp", -12.25, EVENT_DATE);
+    }
+
+    @Test
+    public void location_matchesBuilder() throws IOException {
+        assertLocation("device-1", "originator", 33.7490, -84.3880, 320.5, EVENT_DATE);
+    }
+
+    @Test
+    public void location_zeroValues() throws IOException {
+        assertLocation("device-1", null, 0.0, 0.0, 0.0, 0L);
+    }
+
+    @Test
+    public void alert_matchesBuilder() throws IOException {
+        assertAlert("device-1", "originator", "engine.overheat", "Engine temperature too high", EVENT_DATE);
+    }
+
+    @Test
+    public void alert_emptyStrings() throws IOException {
+        assertAlert("device-1", "", "", "", 0L);
+    }
+
+    @Test
+    public void alert_nonAsciiStrings() throws IOException {
+        assertAlert("g\u00e9rat-\u00fc", "\u4e2d\u6587", "temp\u00e9rature", "\ud83d\udd25 \u00b0C", EVENT_DATE);
+    }
+
+    @Test
+    public void alert_unpairedSurrogate() throws IOException {
+        assertAlert("device-1", null, "broken", "a\ud83db\udd25", EVENT_DATE);
+    }
+
+    @Test
+    public void multipleEvents_reuseCachedHeaders() throws IOException {
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        DeviceEventEncoder encoder = new DeviceEventEncoder(16);
+        String[] tokens = { "device-1", "device-2", "device-1" };
+        for (String token : tokens) {
+            encoder.writeMeasurement(token, "originator", "engine.temp", 98.6, EVENT_DATE);
+            encoder.writeLocation(token, "originator", 33.7490, -84.3880, 320.5, EVENT_DATE);
+            encoder.writeAlert(token, null, "engine.overheat", "Too hot", EVENT_DATE);
+            encoder.writeMeasurement(token, "originator", "engine.rpm", 3000, EVENT_DATE);
+            writeMessage(expected, Command.SendMeasurement, measurement("engine.temp", 98.6, EVENT_DATE), token,
+                    "originator");
+            writeMessage(expected, Command.SendLocation, location(33.7490, -84.3880, 320.5, EVENT_DATE), token,
+                    "originator");
+            writeMessage(expected, Command.SendAlert, alert("engine.overheat", "Too hot", EVENT_DATE), token, null);
+            writeMessage(expected, Command.SendMeasurement, measurement("engine.rpm", 3000, EVENT_DATE), token,
+                    "originator");
+        }
+        assertArrayEquals(expected.toByteArray(), encoder.toByteArray());
+    }
+
+    @Test
+    public void headerCache_evictsAndChangesOriginator() throws IOException {
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        DeviceEventEncoder encoder = new DeviceEventEncoder(16, 1);
+        String[][] headers = { { "device-1", "a" }, { "device-2", "a" }, { "device-1", "a" }, { "device-1", "b" },
+                { "device-1", null } };
+        for (String[] header : headers) {
+            encoder.writeAlert(header[0], header[1], "type", "message", EVENT_DATE);
+            writeMessage(expected, Command.SendAlert, alert("type", "message", EVENT_DATE), header[0], header[1]);
+        }
+        encoder.clearHeaders().writeAlert("device-1", null, "type", "message", EVENT_DATE);
+        writeMessage(expected, Command.SendAlert, alert("type", "message", EVENT_DATE), "device-1", null);
+        assertArrayEquals(expected.toByteArray(), encoder.toByteArray());
+    }
+
+    @Test
+    public void reset_discardsEncodedBytes() throws IOException {
+        DeviceEventEncoder encoder = new DeviceEventEncoder();
+        encoder.writeMeasurement("device-1", "originator", "ignored", 1.0, EVENT_DATE);
+        encoder.reset().writeMeasurement("device-1", "originator", "engine.temp", 98.6, EVENT_DATE);
+
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        writeMessage(expected, Command.SendMeasurement, measurement("engine.temp", 98.6, EVENT_DATE), "device-1",
+                "originator");
+        assertArrayEquals(expected.toByteArray(), encoder.toByteArray());
+    }
+
+    private static void assertMeasurement(String token, String originator, String name, double value, long date)
+            throws IOException {
+        DeviceEventEncoder encoder = new DeviceEventEncoder();
+        encoder.writeMeasurement(token, originator, name, value, date);
+
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        writeMessage(expected, Command.SendMeasurement, measurement(name, value, date), token, originator);
+        assertArrayEquals(expected.toByteArray(), encoder.toByteArray());
+    }
+
+    private static void assertLocation(String token, String originator, double latitude, double longitude,
+                                       double elevation, long date) throws IOException {
+        DeviceEventEncoder encoder = new DeviceEventEncoder();
+        encoder.writeLocation(token, originator, latitude, longitude, elevation, date);
+
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        writeMessage(expected, Command.SendLocation, location(latitude, longitude, elevation, date), token,
+                originator);
+        assertArrayEquals(expected.toByteArray(), encoder.toByteArray());
+    }
+
+    private static void assertAlert(String token, String originator, String type, String message, long date)
+            throws IOException {
+        DeviceEventEncoder encoder = new DeviceEventEncoder();
+        encoder.writeAlert(token, originator, type, message, date);
+
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        writeMessage(expected, Command.SendAlert, alert(type, message, date), token, originator);
+        assertArrayEquals(expected.toByteArray(), encoder.toByteArray());
+    }
+
+    private static DeviceEvent.DeviceMeasurement measurement(String name, double value, long date) {
+        DeviceEvent.DeviceMeasurement.Builder builder = DeviceEvent.DeviceMeasurement.newBuilder();
+        builder.setEventDate(GOptionalFixed64.newBuilder().setValue(date));
+        builder.setMeasurementName(GOptionalString.newBuilder().setValue(name));
+        builder.setMeasurementValue(GOptionalDouble.newBuilder().setValue(value));
+        return builder.build();
+    }
+
+    private static DeviceEvent.DeviceLocation location(double latitude, double longitude, double elevation,
+                                                       long date) {
+        DeviceEvent.DeviceLocation.Builder builder = DeviceEvent.DeviceLocation.newBuilder();
+        builder.setEventDate(GOptionalFixed64.newBuilder().setValue(date));
+        builder.setLatitude(GOptionalDouble.newBuilder().setValue(latitude));
+        builder.setLongitude(GOptionalDouble.newBuilder().setValue(longitude));
+        builder.setElevation(GOptionalDouble.newBuilder().setValue(elevation));
+        return builder.build();
+    }
+
+    private static DeviceEvent.DeviceAlert alert(String type, String message, long date) {
+        DeviceEvent.DeviceAlert.Builder builder = DeviceEvent.DeviceAlert.newBuilder();
+        builder.setEventDate(GOptionalFixed64.newBuilder().setValue(date));
+        builder.setAlertType(GOptionalString.newBuilder().setValue(type));
+        builder.setAlertMessage(GOptionalString.newBuilder().setValue(message));
+        return builder.build();
+    }
+
+    /**
+     * Write header and payload the way events were encoded before {@link DeviceEventEncoder}.
+     */
+    private static void writeMessage(ByteArrayOutputStream out, Command command, AbstractMessageLite payload,
+                                     String token, String originator) throws IOException {
+        DeviceEvent.Header.Builder header = DeviceEvent.Header.newBuilder();
+        header.setCommand(command);
+        header.setDeviceToken(GOptionalString.newBuilder().setValue(token));
+        if (originator != null) {
+            header.setOriginator(GOptionalString.newBuilder().setValue(originator));
+        }
+        header.build().writeDelimitedTo(out);
+        payload.writeDelimitedTo(out);
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) SiteWhere, LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.androidsdk.messaging;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that frames written by {@link EventFrames} are read back unchanged.
+ */
+public class EventFramesTest {
+
+	@Test
+	public void frames_roundTrip() throws SiteWhereMessagingException {
+		byte[][] frames = { bytes(3, 1), new byte[0], bytes(127, 2), bytes(128, 3), bytes(20000, 4) };
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (byte[] frame : frames) {
+			EventFrames.writeFrame(out, frame, 0, frame.length);
+		}
+		byte[] batch = out.toByteArray();
+
+		EventFrames.Reader reader = new EventFrames.Reader(batch);
+		for (byte[] frame : frames) {
+			assertTrue(reader.next());
+			assertSame(batch, reader.getFrames());
+			assertEquals(frame.length, reader.getLength());
+			assertArrayEquals(frame,
+					Arrays.copyOfRange(batch, reader.getOffset(), reader.getOffset() + reader.getLength()));
+		}
+		assertFalse(reader.next());
+		assertFalse(reader.next());
+	}
+
+	@Test
+	public void writeFrame_usesRegionOfBuffer() throws SiteWhereMessagingException {
+		byte[] source = bytes(10, 5);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		EventFrames.writeFrame(out, source, 2, 5);
+		byte[] batch = out.toByteArray();
+
+		assertEquals(6, batch.length);
+		assertEquals(5, batch[0]);
+		EventFrames.Reader reader = new EventFrames.Reader(batch);
+		assertTrue(reader.next());
+		assertEquals(1, reader.getOffset());
+		assertArrayEquals(Arrays.copyOfRange(source, 2, 7), Arrays.copyOfRange(batch, 1, 6));
+	}
+
+	@Test
+	public void writeFrameLength_writesVarint() {
+		assertArrayEquals(new byte[] { 0 }, length(0));
+		assertArrayEquals(new byte[] { 0x7F }, length(127));
+		assertArrayEquals(new byte[] { (byte) 0x80, 0x01 }, length(128));
+		assertArrayEquals(new byte[] { (byte) 0xAC, 0x02 }, length(300));
+		assertArrayEquals(new byte[] { (byte) 0xFF, (byte) 0xFF, 0x7F }, length(2097151));
+	}
+
+	@Test
+	public void reader_emptyBatch() throws SiteWhereMessagingException {
+		assertFalse(new EventFrames.Reader(new byte[0]).next());
+	}
+
+	@Test
+	public void reader_truncatedPrefix() {
+		assertInvalid(new byte[] { (byte) 0x80 });
+		assertInvalid(new byte[] { 1, 9, (byte) 0xFF });
+	}
+
+	@Test
+	public void reader_overlongPrefix() {
+		assertInvalid(new byte[] { (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x01 });
+	}
+
+	@Test
+	public void reader_lengthPastEnd() {
+		assertInvalid(new byte[] { 4, 1, 2, 3 });
+	}
+
+	@Test
+	public void reader_negativeLength() {
+		assertInvalid(new byte[] { (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x0F, 1 });
+	}
+
+	private static void assertInvalid(byte[] batch) {
+		EventFrames.Reader reader = new EventFrames.Reader(batch);
+		try {
+			while (reader.next()) {
+			}
+			fail("Expected invalid batch to be rejected.");
+		} catch (SiteWhereMessagingException e) {
+			// Expected.
+		}
+	}
+
+	private static byte[] length(int length) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		EventFrames.writeFrameLength(out, length);
+		return out.toByteArray();
+	}
+
+	private static byte[] bytes(int length, int seed) {
+		byte[] bytes = new byte[length];
+		for (int i = 0; i < length; i++) {
+			bytes[i] = (byte) (i * 31 + seed);
+		}
+		return bytes;
+	}
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) SiteWhere, LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.androidsdk.mqtt;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the backoff limits used by {@link ConnectionStateMachine}. Attempts are run directly on
+ * the test thread with the executor stopped, so no retries run in the background.
+ */
+public class ConnectionStateMachineTest {
+
+	private static final long BASE_DELAY_MS = 100;
+
+	private static final long MAX_DELAY_MS = 1000;
+
+	private static final int SAMPLES = 2000;
+
+	private TestConnector connector;
+
+	private ConnectionStateMachine machine;
+
+	@Before
+	public void setUp() {
+		connector = new TestConnector();
+		machine = new ConnectionStateMachine(connector, BASE_DELAY_MS, MAX_DELAY_MS);
+		machine.stop();
+	}
+
+	@After
+	public void tearDown() {
+		machine.stop();
+	}
+
+	@Test
+	public void getDelay_beforeFailures_spreadOverBaseDelay() {
+		assertDelaysWithin(BASE_DELAY_MS);
+	}
+
+	@Test
+	public void getDelay_doublesWithEachFailure() {
+		failAttempts(1);
+		assertDelaysWithin(BASE_DELAY_MS);
+		failAttempts(1);
+		assertDelaysWithin(2 * BASE_DELAY_MS);
+		failAttempts(1);
+		assertDelaysWithin(4 * BASE_DELAY_MS);
+		failAttempts(1);
+		assertDelaysWithin(8 * BASE_DELAY_MS);
+	}
+
+	@Test
+	public void getDelay_cappedAtMaximum() {
+		failAttempts(5);
+		assertDelaysWithin(MAX_DELAY_MS);
+		failAttempts(100);
+		assertDelaysWithin(MAX_DELAY_MS);
+	}
+
+	@Test
+	public void getDelay_resetAfterSuccess() {
+		failAttempts(6);
+		connector.failing = false;
+		machine.runAttempt();
+		assertEquals(MqttConnectionState.Connected, machine.getState());
+		assertDelaysWithin(BASE_DELAY_MS);
+	}
+
+	@Test
+	public void runAttempt_waitsForNetwork() {
+		connector.online = false;
+		machine.runAttempt();
+		assertEquals(MqttConnectionState.WaitingForNetwork, machine.getState());
+		assertEquals(0, connector.attempts);
+	}
+
+	/**
+	 * Run failing attempts.
+	 */
+	private void failAttempts(int attempts) {
+		connector.failing = true;
+		for (int i = 0; i < attempts; i++) {
+			machine.runAttempt();
+		}
+		assertEquals(MqttConnectionState.Disconnected, machine.getState());
+	}
+
+	/**
+	 * Check that delays stay within the limit and use most of the range (full jitter).
+	 */
+	private void assertDelaysWithin(long limit) {
+		long largest = 0;
+		for (int i = 0; i < SAMPLES; i++) {
+			long delay = machine.getDelay();
+			assertTrue("Delay " + delay + " outside 0.." + limit, (delay >= 0) && (delay <= limit));
+			largest = Math.max(largest, delay);
+		}
+		assertTrue("Largest delay " + largest + " for limit " + limit, largest >= limit * 3 / 4);
+	}
+
+	private static class TestConnector implements ConnectionStateMachine.Connector {
+
+		boolean online = true;
+
+		boolean failing = true;
+
+		boolean connected;
+
+		int attempts;
+
+		@Override
+		public boolean canConnect() {
+			return online;
+		}
+
+		@Override
+		public boolean isConnected() {
+			return connected;
+		}
+
+		@Override
+		public void connect() throws Exception {
+			attempts++;
+			if (failing) {
+				throw new Exception("Broker unreachable.");
+			}
+			connected = true;
+		}
+
+		@Override
+		public void disconnect() {
+			connected = false;
+		}
+	}
+}
@@ -0,0 +1,277 @@
+/*
+ * Copyright (c) SiteWhere, LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.androidsdk.mqtt;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks ordering, checkpointing and recovery in {@link OutboundJournal}.
+ */
+public class OutboundJournalTest {
+
+	/** Records are 20 bytes plus an 8 byte header, so two fit in a segment */
+	private static final int SEGMENT_SIZE = 64;
+
+	private static final int RECORD_SIZE = 20;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	/** Journals to close after each test */
+	private final List<OutboundJournal> opened = new ArrayList<OutboundJournal>();
+
+	@After
+	public void tearDown() {
+		for (OutboundJournal journal : opened) {
+			journal.close();
+		}
+	}
+
+	@Test
+	public void records_readInOrder() throws IOException {
+		OutboundJournal journal = open(OutboundJournal.DEFAULT_SEGMENT_SIZE, OutboundJournal.DEFAULT_MAX_SEGMENTS);
+		assertTrue(journal.isEmpty());
+		assertNull(journal.peek());
+
+		append(journal, 0, 3);
+		assertFalse(journal.isEmpty());
+		assertRecords(journal, 0, 3);
+		assertTrue(journal.isEmpty());
+	}
+
+	@Test
+	public void peek_returnsSameRecordUntilCommit() throws IOException {
+		OutboundJournal journal = open(OutboundJournal.DEFAULT_SEGMENT_SIZE, OutboundJournal.DEFAULT_MAX_SEGMENTS);
+		append(journal, 0, 2);
+
+		assertArrayEquals(record(0), journal.peek());
+		assertArrayEquals(record(0), journal.peek());
+		journal.commit();
+		assertArrayEquals(record(1), journal.peek());
+	}
+
+	@Test
+	public void next_readsAheadUntilCommit() throws IOException {
+		OutboundJournal journal = open(SEGMENT_SIZE, OutboundJournal.DEFAULT_MAX_SEGMENTS);
+		append(journal, 0, 5);
+
+		assertArrayEquals(record(0), journal.peek());
+		assertArrayEquals(record(1), journal.next());
+		assertArrayEquals(record(2), journal.next());
+		assertTrue(segment(0).exists());
+
+		journal.commit();
+		assertFalse(segment(0).exists());
+		assertArrayEquals(record(3), journal.peek());
+		assertArrayEquals(record(4), journal.next());
+		assertNull(journal.next());
+		journal.commit();
+		assertTrue(journal.isEmpty());
+	}
+
+	@Test
+	public void peek_rereadsUncommittedRecords() throws IOException {
+		OutboundJournal journal = open(SEGMENT_SIZE, OutboundJournal.DEFAULT_MAX_SEGMENTS);
+		append(journal, 0, 4);
+
+		assertArrayEquals(record(0), journal.peek());
+		assertArrayEquals(record(1), journal.next());
+		assertArrayEquals(record(2), journal.next());
+		assertArrayEquals(record(0), journal.peek());
+		journal.commit();
+		assertRecords(journal, 1, 3);
+	}
+
+	@Test
+	public void reopen_resumesAfterWindowedCommit() throws IOException {
+		OutboundJournal journal = open(SEGMENT_SIZE, OutboundJournal.DEFAULT_MAX_SEGMENTS);
+		append(journal, 0, 5);
+		journal.peek();
+		journal.next();
+		journal.next();
+		journal.commit();
+		journal.close();
+		opened.remove(journal);
+
+		journal = open(SEGMENT_SIZE, OutboundJournal.DEFAULT_MAX_SEGMENTS);
+		assertRecords(journal, 3, 2);
+		assertTrue(journal.isEmpty());
+	}
+
+	@Test
+	public void append_usesPayloadRegion() throws IOException {
+		OutboundJournal journal = open(OutboundJournal.DEFAULT_SEGMENT_SIZE, OutboundJournal.DEFAULT_MAX_SEGMENTS);
+		byte[] payload = { 1, 2, 3, 4, 5 };
+		journal.append(payload, 1, 3);
+
+		assertArrayEquals(new byte[] { 2, 3, 4 }, journal.peek());
+	}
+
+	@Test
+	public void reopen_resumesAfterCheckpoint() throws IOException {
+		OutboundJournal journal = open(SEGMENT_SIZE, OutboundJournal.DEFAULT_MAX_SEGMENTS);
+		append(journal, 0, 5);
+		assertRecords(journal, 0, 2);
+		journal.close();
+		opened.remove(journal);
+
+		journal = open(SEGMENT_SIZE, OutboundJournal.DEFAULT_MAX_SEGMENTS);
+		assertRecords(journal, 2, 3);
+		assertTrue(journal.isEmpty());
+	}
+
+	@Test
+	public void reopen_withoutSync_replaysUncheckpointedRecords() throws IOException {
+		OutboundJournal journal = open(OutboundJournal.DEFAULT_SEGMENT_SIZE, OutboundJournal.DEFAULT_MAX_SEGMENTS);
+		append(journal, 0, 3);
+		assertRecords(journal, 0, 2);
+
+		// Simulate a crash by opening again without closing.
+		OutboundJournal restarted = open(OutboundJournal.DEFAULT_SEGMENT_SIZE,
+				OutboundJournal.DEFAULT_MAX_SEGMENTS);
+		assertRecords(restarted, 0, 3);
+	}
+
+	@Test
+	public void segments_rollAndAreDeletedOnceRead() throws IOException {
+		OutboundJournal journal = open(SEGMENT_SIZE, OutboundJournal.DEFAULT_MAX_SEGMENTS);
+		append(journal, 0, 6);
+		assertTrue(segment(0).exists());
+		assertTrue(segment(2).exists());
+
+		assertRecords(journal, 0, 6);
+		assertNull(journal.peek());
+		assertFalse(segment(0).exists());
+		assertFalse(segment(1).exists());
+		assertTrue(segment(2).exists());
+	}
+
+	@Test
+	public void overflow_discardsOldestSegment() throws IOException {
+		OutboundJournal journal = open(SEGMENT_SIZE, 2);
+		append(journal, 0, 6);
+
+		assertFalse(segment(0).exists());
+		assertRecords(journal, 2, 4);
+		assertTrue(journal.isEmpty());
+	}
+
+	@Test
+	public void overflow_dropsPeekedRecord() throws IOException {
+		OutboundJournal journal = open(SEGMENT_SIZE, 2);
+		append(journal, 0, 4);
+		assertArrayEquals(record(0), journal.peek());
+
+		append(journal, 4, 1);
+		journal.commit();
+		assertRecords(journal, 2, 3);
+	}
+
+	@Test
+	public void reopen_truncatesPartialRecord() throws IOException {
+		OutboundJournal journal = open(OutboundJournal.DEFAULT_SEGMENT_SIZE, OutboundJournal.DEFAULT_MAX_SEGMENTS);
+		append(journal, 0, 2);
+		journal.close();
+		opened.remove(journal);
+
+		RandomAccessFile file = new RandomAccessFile(segment(0), "rw");
+		try {
+			file.seek(file.length());
+			file.writeInt(RECORD_SIZE);
+			file.write(new byte[] { 1, 2, 3 });
+		} finally {
+			file.close();
+		}
+
+		journal = open(OutboundJournal.DEFAULT_SEGMENT_SIZE, OutboundJournal.DEFAULT_MAX_SEGMENTS);
+		assertEquals(2 * (RECORD_SIZE + 8), segment(0).length());
+		append(journal, 2, 1);
+		assertRecords(journal, 0, 3);
+		assertTrue(journal.isEmpty());
+	}
+
+	@Test
+	public void corruptRecord_skipsRestOfSegment() throws IOException {
+		OutboundJournal journal = open(SEGMENT_SIZE, OutboundJournal.DEFAULT_MAX_SEGMENTS);
+		append(journal, 0, 4);
+		journal.close();
+		opened.remove(journal);
+
+		// Flip a payload byte of the second record in the first segment.
+		RandomAccessFile file = new RandomAccessFile(segment(0), "rw");
+		try {
+			long position = (RECORD_SIZE + 8) + 8;
+			file.seek(position);
+			int value = file.read();
+			file.seek(position);
+			file.write(value ^ 0xFF);
+		} finally {
+			file.close();
+		}
+
+		journal = open(SEGMENT_SIZE, OutboundJournal.DEFAULT_MAX_SEGMENTS);
+		assertRecords(journal, 0, 1);
+		assertRecords(journal, 2, 2);
+		assertTrue(journal.isEmpty());
+	}
+
+	private OutboundJournal open(int segmentSize, int maxSegments) throws IOException {
+		OutboundJournal journal = new OutboundJournal(folder.getRoot(), segmentSize, maxSegments);
+		opened.add(journal);
+		return journal;
+	}
+
+	private File segment(long id) {
+		return new File(folder.getRoot(), id + ".seg");
+	}
+
+	private static void append(OutboundJournal journal, int first, int count) throws IOException {
+		for (int i = first; i < first + count; i++) {
+			byte[] record = record(i);
+			journal.append(record, 0, record.length);
+		}
+	}
+
+	private static void assertRecords(OutboundJournal journal, int first, int count) throws IOException {
+		for (int i = first; i < first + count; i++) {
+			assertArrayEquals("Record " + i, record(i), journal.peek());
+			journal.commit();
+		}
+	}
+
+	private static byte[] record(int index) {
+		byte[] record = new byte[RECORD_SIZE];
+		for (int i = 0; i < record.length; i++) {
+			record[i] = (byte) (index * 17 + i);
+		}
+		return record;
+	}
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) SiteWhere, LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.androidsdk.mqtt;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks how {@link SubscriptionRegistry} tracks pending and sent filters.
+ */
+public class SubscriptionRegistryTest {
+
+	@Test
+	public void add_firstPendingFilterSchedulesFlush() {
+		SubscriptionRegistry registry = new SubscriptionRegistry();
+
+		assertTrue(registry.add("a"));
+		assertFalse(registry.add("b"));
+		assertFalse(registry.add("a"));
+		assertEquals(Arrays.asList("a", "b"), registry.takePending());
+
+		assertTrue(registry.add("c"));
+	}
+
+	@Test
+	public void add_existingFilterIsIgnored() {
+		SubscriptionRegistry registry = new SubscriptionRegistry();
+		registry.add("a");
+		registry.takePending();
+
+		assertFalse(registry.add("a"));
+		assertEquals(Collections.<String> emptyList(), registry.takePending());
+	}
+
+	@Test
+	public void remove_pendingFilterNeedsNoUnsubscribe() {
+		SubscriptionRegistry registry = new SubscriptionRegistry();
+		registry.add("a");
+
+		assertFalse(registry.remove("a"));
+		assertEquals(Collections.<String> emptyList(), registry.takePending());
+		assertEquals(Collections.<String> emptyList(), registry.takeAll());
+	}
+
+	@Test
+	public void remove_sentFilterNeedsUnsubscribe() {
+		SubscriptionRegistry registry = new SubscriptionRegistry();
+		registry.add("a");
+		registry.takePending();
+
+		assertTrue(registry.remove("a"));
+		assertFalse(registry.remove("a"));
+	}
+
+	@Test
+	public void remove_unknownFilter() {
+		SubscriptionRegistry registry = new SubscriptionRegistry();
+
+		assertFalse(registry.remove("a"));
+	}
+
+	@Test
+	public void takeAll_returnsFiltersInOrderAndClearsPending() {
+		SubscriptionRegistry registry = new SubscriptionRegistry();
+		registry.add("c");
+		registry.add("a");
+		registry.takePending();
+		registry.add("b");
+
+		assertEquals(Arrays.asList("c", "a", "b"), registry.takeAll());
+		assertEquals(Collections.<String> emptyList(), registry.takePending());
+		assertEquals(Arrays.asList("c", "a", "b"), registry.takeAll());
+
+		// Filters sent with takeAll need an UNSUBSCRIBE when removed.
+		assertTrue(registry.remove("b"));
+	}
+
+	@Test
+	public void restorePending_skipsRemovedFilters() {
+		SubscriptionRegistry registry = new SubscriptionRegistry();
+		registry.add("a");
+		registry.add("b");
+		List<String> taken = registry.takePending();
+		registry.remove("b");
+		registry.add("c");
+
+		registry.restorePending(taken);
+		assertEquals(Arrays.asList("c", "a"), registry.takePending());
+
+		// Restored filters are pending again, so removing them needs no UNSUBSCRIBE.
+		registry.restorePending(Arrays.asList("a"));
+		assertFalse(registry.remove("a"));
+	}
+
+	@Test
+	public void windowMs_isNeverNegative() {
+		SubscriptionRegistry registry = new SubscriptionRegistry();
+		assertEquals(SubscriptionRegistry.DEFAULT_WINDOW_MS, registry.getWindowMs());
+
+		registry.setWindowMs(-5);
+		assertEquals(0, registry.getWindowMs());
+
+		registry.setWindowMs(50);
+		assertEquals(50, registry.getWindowMs());
+	}
+}
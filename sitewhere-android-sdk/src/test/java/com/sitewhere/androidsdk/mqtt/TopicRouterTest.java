@@ -0,0 +1,220 @@
+/*
+ * Copyright (c) SiteWhere, LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.androidsdk.mqtt;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks topic filter matching in {@link TopicRouter} against the MQTT 3.1.1 rules.
+ */
+public class TopicRouterTest {
+
+	@Test
+	public void exactFilter_matchesSameTopicOnly() {
+		TopicRouter<String> router = new TopicRouter<String>();
+		router.add("sport/tennis/player1", "h");
+
+		assertMatches(router, "sport/tennis/player1", "h");
+		assertMatches(router, "sport/tennis/player2");
+		assertMatches(router, "sport/tennis");
+		assertMatches(router, "sport/tennis/player1/ranking");
+	}
+
+	@Test
+	public void singleLevelWildcard_matchesOneLevel() {
+		TopicRouter<String> router = new TopicRouter<String>();
+		router.add("sport/+/player1", "h");
+
+		assertMatches(router, "sport/tennis/player1", "h");
+		assertMatches(router, "sport/golf/player1", "h");
+		assertMatches(router, "sport/player1");
+		assertMatches(router, "sport/tennis/doubles/player1");
+	}
+
+	@Test
+	public void singleLevelWildcard_matchesEmptyLevel() {
+		TopicRouter<String> router = new TopicRouter<String>();
+		router.add("sport/+", "h");
+
+		assertMatches(router, "sport/", "h");
+		assertMatches(router, "sport/tennis", "h");
+		assertMatches(router, "sport");
+	}
+
+	@Test
+	public void singleLevelWildcard_alone() {
+		TopicRouter<String> router = new TopicRouter<String>();
+		router.add("+", "h");
+
+		assertMatches(router, "sport", "h");
+		assertMatches(router, "sport/tennis");
+		assertMatches(router, "/sport");
+	}
+
+	@Test
+	public void multiLevelWildcard_matchesRemainingLevels() {
+		TopicRouter<String> router = new TopicRouter<String>();
+		router.add("sport/tennis/#", "h");
+
+		assertMatches(router, "sport/tennis/player1", "h");
+		assertMatches(router, "sport/tennis/player1/ranking", "h");
+		assertMatches(router, "sport/golf");
+	}
+
+	@Test
+	public void multiLevelWildcard_matchesParentLevel() {
+		TopicRouter<String> router = new TopicRouter<String>();
+		router.add("sport/tennis/#", "h");
+
+		assertMatches(router, "sport/tennis", "h");
+		assertMatches(router, "sport");
+	}
+
+	@Test
+	public void multiLevelWildcard_alone_matchesEverything() {
+		TopicRouter<String> router = new TopicRouter<String>();
+		router.add("#", "h");
+
+		assertMatches(router, "sport", "h");
+		assertMatches(router, "sport/tennis/player1", "h");
+		assertMatches(router, "/", "h");
+	}
+
+	@Test
+	public void wildcards_afterSingleLevelWildcard() {
+		TopicRouter<String> router = new TopicRouter<String>();
+		router.add("+/tennis/#", "h");
+
+		assertMatches(router, "sport/tennis", "h");
+		assertMatches(router, "sport/tennis/player1", "h");
+		assertMatches(router, "sport/golf/player1");
+	}
+
+	@Test
+	public void dollarTopics_notMatchedByLeadingWildcards() {
+		TopicRouter<String> router = new TopicRouter<String>();
+		router.add("#", "all");
+		router.add("+/monitor/Clients", "single");
+
+		assertMatches(router, "$SYS/monitor/Clients");
+		assertMatches(router, "$SYS");
+	}
+
+	@Test
+	public void dollarTopics_matchedByExplicitFilters() {
+		TopicRouter<String> router = new TopicRouter<String>();
+		router.add("$SYS/#", "all");
+		router.add("$SYS/monitor/+", "single");
+
+		assertMatches(router, "$SYS/monitor/Clients", "all", "single");
+		assertMatches(router, "$SYS", "all");
+	}
+
+	@Test
+	public void handler_addedOncePerMessage() {
+		TopicRouter<String> router = new TopicRouter<String>();
+		router.add("sport/#", "h");
+		router.add("sport/+/player1", "h");
+		router.add("sport/tennis/player1", "h");
+		router.add("sport/tennis/player1", "other");
+
+		assertMatches(router, "sport/tennis/player1", "h", "other");
+	}
+
+	@Test
+	public void match_appendsWithoutClearing() {
+		TopicRouter<String> router = new TopicRouter<String>();
+		router.add("a", "h");
+
+		List<String> matches = new ArrayList<String>();
+		matches.add("existing");
+		assertTrue(router.match("a", matches));
+		assertFalse(router.match("b", matches));
+		assertEquals(Arrays.asList("existing", "h"), matches);
+	}
+
+	@Test
+	public void remove_onlyRemovesGivenHandler() {
+		TopicRouter<String> router = new TopicRouter<String>();
+		router.add("sport/tennis", "a");
+		router.add("sport/tennis", "b");
+
+		assertTrue(router.remove("sport/tennis", "a"));
+		assertFalse(router.remove("sport/tennis", "a"));
+		assertFalse(router.remove("sport/golf", "b"));
+		assertMatches(router, "sport/tennis", "b");
+		assertTrue(router.contains("sport/tennis"));
+	}
+
+	@Test
+	public void remove_prunesEmptyLevels() {
+		TopicRouter<String> router = new TopicRouter<String>();
+		router.add("sport/tennis/player1", "h");
+		router.add("sport/+/#", "h");
+
+		assertTrue(router.remove("sport/tennis/player1", "h"));
+		assertFalse(router.contains("sport/tennis/player1"));
+		assertFalse(router.isEmpty());
+
+		assertTrue(router.remove("sport/+/#", "h"));
+		assertFalse(router.contains("sport/+/#"));
+		assertTrue(router.isEmpty());
+		assertMatches(router, "sport/tennis/player1");
+	}
+
+	@Test
+	public void remove_keepsLevelsWithOtherFilters() {
+		TopicRouter<String> router = new TopicRouter<String>();
+		router.add("sport", "parent");
+		router.add("sport/tennis", "child");
+
+		assertTrue(router.remove("sport/tennis", "child"));
+		assertTrue(router.contains("sport"));
+		assertMatches(router, "sport", "parent");
+
+		router.add("sport/tennis", "child");
+		assertMatches(router, "sport/tennis", "child");
+	}
+
+	@Test
+	public void clear_removesAllHandlers() {
+		TopicRouter<String> router = new TopicRouter<String>();
+		router.add("a/b", "h");
+		router.add("#", "h");
+		router.clear();
+
+		assertTrue(router.isEmpty());
+		assertMatches(router, "a/b");
+	}
+
+	private static void assertMatches(TopicRouter<String> router, String topic, String... expected) {
+		List<String> matches = new ArrayList<String>();
+		router.match(topic, matches);
+		Collections.sort(matches);
+		List<String> sorted = new ArrayList<String>(Arrays.asList(expected));
+		Collections.sort(sorted);
+		assertEquals("Handlers for " + topic, sorted, matches);
+	}
+}